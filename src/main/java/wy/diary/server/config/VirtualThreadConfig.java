@@ -0,0 +1,48 @@
+package wy.diary.server.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import java.util.concurrent.Executors;
+
+/**
+ * 虚拟线程模式（需要Java 21），由 diary.threads.virtual 开启
+ * <p>
+ * 请求处理中的文件读写、JDBC和微信接口调用都是阻塞的，Tomcat默认的平台线程池（200个线程）在磁盘变慢时
+ * 很快被占满，后续请求只能排队。开启后Tomcat为每个请求创建一个虚拟线程，阻塞时只挂起虚拟线程，
+ * 并发请求数不再受线程池大小限制；定时任务和备份工作线程（见 BackupQueueService）同样改用虚拟线程。
+ */
+@Configuration
+@ConditionalOnProperty(name = "diary.threads.virtual", havingValue = "true")
+public class VirtualThreadConfig {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadConfig.class);
+
+    /**
+     * Tomcat的请求处理线程池替换为每个请求一个虚拟线程
+     */
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer() {
+        logger.info("请求处理已切换为虚拟线程");
+        return protocolHandler -> protocolHandler.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    /**
+     * 定时任务调度器，替换Spring Boot默认的单线程调度器
+     * <p>
+     * 备份、归档、检查点、段文件合并等定时任务都会长时间阻塞在磁盘读写上，
+     * 默认只有一个调度线程时会互相推迟；虚拟线程开销很小，每个任务可以有自己的执行线程。
+     */
+    @Bean
+    public ThreadPoolTaskScheduler taskScheduler(@Value("${spring.task.scheduling.pool.size:8}") int poolSize) {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(poolSize);
+        scheduler.setThreadFactory(Thread.ofVirtual().name("scheduling-", 0).factory());
+        return scheduler;
+    }
+}
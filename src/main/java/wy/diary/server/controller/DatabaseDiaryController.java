@@ -1,11 +1,25 @@
 package wy.diary.server.controller;
 
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import wy.diary.server.dto.DiarySaveDTO;
 import wy.diary.server.dto.request.DeleteDiaryRequest;
+import wy.diary.server.dto.response.SaveResult;
 import wy.diary.server.model.ApiResponse;
+import wy.diary.server.model.CachedPage;
+import wy.diary.server.model.DiarySource;
 import wy.diary.server.service.DiaryDatabaseService;
+import wy.diary.server.entity.Diary;
+import wy.diary.server.service.DiaryBatchService;
+import wy.diary.server.service.DiaryChangeService;
+import wy.diary.server.service.DiaryPageCacheService;
+import wy.diary.server.service.DiaryQueryService;
+import wy.diary.server.service.DiaryStatsService;
+import wy.diary.server.util.DiaryDateRange;
+import wy.diary.server.util.DiaryView;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,22 +36,140 @@ public class DatabaseDiaryController {
     @Autowired
     private DiaryDatabaseService diaryDatabaseService;
 
+    @Autowired
+    private DiaryQueryService diaryQueryService;
+
+    @Autowired
+    private DiaryStatsService diaryStatsService;
+
+    @Autowired
+    private DiaryChangeService diaryChangeService;
+
+    @Autowired
+    private DiaryBatchService diaryBatchService;
+
+    @Autowired
+    private DiaryPageCacheService diaryPageCacheService;
+
+    // 批量保存一次最多提交的日记数
+    @Value("${diary.batch-save.max-size:100}")
+    private int batchSaveMaxSize;
+
     @PostMapping("/save")
-    public Map<String, Object> saveDiary(@RequestBody DiarySaveDTO diaryDto) {
+    public ApiResponse saveDiary(@RequestBody DiarySaveDTO diaryDto) {
         //增加日志
         logger.info("DatabaseDiaryController.saveDiary() called with: diaryDto = [{}]", diaryDto);
 
-        try {
-            String diaryId = diaryDatabaseService.saveDiary(diaryDto);
+        String diaryId;
+        String openId = diaryDto.getOpenId();
+        try (DiaryStatsService.PendingWrite ignored = diaryStatsService.beginWrite(DiarySource.DATABASE, openId)) {
+            try {
+                diaryId = diaryBatchService.saveDiary(diaryDto);
+            } catch (Exception e) {
+                logger.error("保存日记失败", e);
+                return ApiResponse.fail("保存失败: " + e.getMessage());
+            }
 
-            Map<String, String> data = new HashMap<>();
-            data.put("diaryId", diaryId);
-            
-            return ApiResponse.success("日记保存成功", data);
+            // 日记已提交，之后的步骤失败也要返回成功，否则客户端重试会保存出重复的日记
+            diaryQueryService.evictTotalCount(openId);
+            diaryPageCacheService.bumpVersion(DiarySource.DATABASE, openId);
+            diaryStatsService.onSave(DiarySource.DATABASE, openId, diaryDto.getLogTime(), null,
+                    diaryDto.getImageUrls() != null ? diaryDto.getImageUrls().length : 0);
+        }
+        try {
+            Diary saved = diaryQueryService.getDiaryByDiaryId(openId, diaryId);
+            if (saved != null) {
+                diaryChangeService.onSave(DiarySource.DATABASE, openId, diaryId, diaryQueryService.toDiaryMap(saved));
+            }
         } catch (Exception e) {
-            logger.error("保存日记失败", e);
-            return ApiResponse.error("保存失败: " + e.getMessage());
+            logger.error("日记 {} 已保存，记录变更失败，要求客户端重新同步", diaryId, e);
+            try {
+                diaryChangeService.requireResync(DiarySource.DATABASE, openId);
+            } catch (Exception ex) {
+                logger.error("写入用户 {} 的reset记录失败", openId, ex);
+            }
         }
+
+        return ApiResponse.ok("日记保存成功", SaveResult.ofDiaryId(diaryId));
+    }
+
+    /**
+     * 批量保存日记，用于离线客户端一次提交积压的日记
+     * <p>
+     * 整批日记在一个事务中用一条INSERT写入；已存在的日记ID视为重复提交，直接返回成功。日记归属当前登录用户，
+     * 带了其他用户openId的日记和空元素逐条返回失败，不影响其他日记。
+     * @param diaryDtos 日记列表
+     * @param openid 用户ID (由拦截器注入)
+     * @return 按提交顺序的逐条结果
+     */
+    @PostMapping("/batchSave")
+    public Map<String, Object> batchSaveDiaries(
+            @RequestBody List<DiarySaveDTO> diaryDtos,
+            @RequestAttribute("openid") String openid) {
+        if (diaryDtos == null || diaryDtos.isEmpty()) {
+            return ApiResponse.error("日记列表不能为空");
+        }
+        if (diaryDtos.size() > batchSaveMaxSize) {
+            return ApiResponse.error("一次最多保存" + batchSaveMaxSize + "篇日记");
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>(Collections.nCopies(diaryDtos.size(), null));
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < diaryDtos.size(); i++) {
+            DiarySaveDTO diaryDto = diaryDtos.get(i);
+            if (diaryDto == null) {
+                results.set(i, createBatchResult(i, null, false, "日记不能为空"));
+                continue;
+            }
+            if (diaryDto.getOpenId() != null && !diaryDto.getOpenId().isEmpty() && !diaryDto.getOpenId().equals(openid)) {
+                results.set(i, createBatchResult(i, diaryDto.getDiaryId(), false, "不能保存其他用户的日记"));
+                continue;
+            }
+            indexes.add(i);
+        }
+
+        if (!indexes.isEmpty()) {
+            List<DiarySaveDTO> userDtos = new ArrayList<>();
+            for (int index : indexes) {
+                userDtos.add(diaryDtos.get(index));
+            }
+            try (DiaryStatsService.PendingWrite ignored = diaryStatsService.beginWrite(DiarySource.DATABASE, openid)) {
+                Map<String, Diary> inserted = diaryBatchService.saveDiaries(openid, userDtos);
+                diaryQueryService.evictTotalCount(openid);
+                diaryPageCacheService.bumpVersion(DiarySource.DATABASE, openid);
+                Set<String> reported = new HashSet<>();
+                for (int index : indexes) {
+                    String diaryId = diaryDtos.get(index).getDiaryId();
+                    Diary diary = inserted.get(diaryId);
+                    if (diary == null || !reported.add(diaryId)) {
+                        results.set(index, createBatchResult(index, diaryId, true, "日记已存在"));
+                        continue;
+                    }
+                    diaryStatsService.onSave(DiarySource.DATABASE, openid, diary.getLogTime(), null,
+                            DiaryStatsService.countImages(diary.getImageUrls()));
+                    diaryChangeService.onSave(DiarySource.DATABASE, openid, diaryId, diaryQueryService.toDiaryMap(diary));
+                    results.set(index, createBatchResult(index, diaryId, true, "日记保存成功"));
+                }
+            } catch (Exception e) {
+                logger.error("批量保存用户 {} 的日记失败", openid, e);
+                for (int index : indexes) {
+                    results.set(index, createBatchResult(index, diaryDtos.get(index).getDiaryId(), false,
+                            "保存失败: " + e.getMessage()));
+                }
+            }
+        }
+
+        int successCount = 0;
+        for (Map<String, Object> result : results) {
+            if (Boolean.TRUE.equals(result.get("success"))) {
+                successCount++;
+            }
+        }
+        Map<String, Object> data = new HashMap<>();
+        data.put("results", results);
+        data.put("successCount", successCount);
+        data.put("failureCount", results.size() - successCount);
+        return ApiResponse.success("批量保存完成", data);
     }
 
     @GetMapping("/getDiaryId")
@@ -53,27 +185,156 @@ public class DatabaseDiaryController {
 
     /**
      * 获取日记列表（分页）
+     * <p>
+     * 响应按用户的版本号缓存并带ETag，日记未变化时带 If-None-Match 的请求返回304
      * @param pageIndex 页码，从1开始
      * @param pageSize 每页记录数
+     * @param cursor 游标分页：传入上一页返回的nextCursor，首页传空字符串；不传时按页码分页
+     * @param withTotal 游标分页时是否返回总记录数
+     * @param view full(默认)返回完整日记；summary只返回预览、图片数和元数据，完整内容通过/detail获取
+     * @param fields 逗号分隔的返回字段，指定后忽略view
      * @param openid 用户ID (由拦截器注入)
      * @return 分页的日记列表
      */
     @GetMapping("/list")
-    public Map<String, Object> listDiaries(
+    public ResponseEntity<?> listDiaries(
             @RequestParam(defaultValue = "1") int pageIndex,
             @RequestParam(defaultValue = "10") int pageSize,
-            @RequestAttribute("openid") String openid) {
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "false") boolean withTotal,
+            @RequestParam(required = false) String view,
+            @RequestParam(required = false) String fields,
+            @RequestAttribute("openid") String openid,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
         
         try {
-            Map<String, Object> paginationData = diaryDatabaseService.getDiariesByOpenId(openid, pageIndex, pageSize);
-            return ApiResponse.success("获取日记列表成功", paginationData);
+            DiaryView diaryView = DiaryView.of(view, fields);
+            String pageKey = (cursor != null
+                    ? "cursor:" + cursor + ":" + pageSize + ":" + withTotal
+                    : "page:" + pageIndex + ":" + pageSize) + ":" + diaryView;
+            CachedPage page = diaryPageCacheService.getPage(DiarySource.DATABASE, openid, pageKey, () -> {
+                if (cursor != null) {
+                    return ApiResponse.ok("获取日记列表成功",
+                            diaryQueryService.getDiariesByCursor(openid, cursor, pageSize, withTotal, diaryView));
+                }
+                if (!diaryView.isFull()) {
+                    return ApiResponse.ok("获取日记列表成功",
+                            diaryQueryService.getSummaryPage(openid, pageIndex, pageSize, diaryView));
+                }
+                Map<String, Object> paginationData = diaryDatabaseService.getDiariesByOpenId(openid, pageIndex, pageSize);
+                if (!diaryView.isDefault()) {
+                    paginationData = applyView(paginationData, diaryView);
+                }
+                return ApiResponse.ok("获取日记列表成功", paginationData);
+            });
+            return page.toResponse(ifNoneMatch, acceptEncoding);
             
         } catch (Exception e) {
             logger.error("获取日记列表失败", e);
+            return ResponseEntity.ok(ApiResponse.error("获取日记列表失败: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * 按日记ID获取一篇完整的日记，配合列表的摘要视图使用
+     * @param diaryId 日记ID
+     * @param openid 用户ID (由拦截器注入)
+     * @return 与列表完整视图相同格式的日记记录
+     */
+    @GetMapping("/detail")
+    public Map<String, Object> getDiary(
+            @RequestParam String diaryId,
+            @RequestAttribute("openid") String openid) {
+        
+        try {
+            Diary diary = diaryQueryService.getDiaryByDiaryId(openid, diaryId);
+            if (diary == null) {
+                return ApiResponse.error("未找到指定ID的日记");
+            }
+            return ApiResponse.success("获取日记成功", diaryQueryService.toDiaryMap(diary));
+        } catch (Exception e) {
+            logger.error("获取日记失败", e);
+            return ApiResponse.error("获取日记失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 获取日期范围内的日记
+     * @param from 起始日期 yyyy-MM-dd（含）
+     * @param to 结束日期 yyyy-MM-dd（含）
+     * @param openid 用户ID (由拦截器注入)
+     * @return 范围内的日记，最新的在前
+     */
+    @GetMapping("/range")
+    public Map<String, Object> listDiariesInRange(
+            @RequestParam String from,
+            @RequestParam String to,
+            @RequestAttribute("openid") String openid) {
+        
+        try {
+            Map<String, Object> data = diaryQueryService.getDiariesInRange(openid, DiaryDateRange.of(from, to));
+            return ApiResponse.success("获取日记列表成功", data);
+        } catch (Exception e) {
+            logger.error("按日期范围获取日记失败", e);
             return ApiResponse.error("获取日记列表失败: " + e.getMessage());
         }
     }
 
+    /**
+     * 获取某个月每天的日记数，用于日历视图
+     * @param month 月份 yyyy-MM
+     * @param openid 用户ID (由拦截器注入)
+     * @return 日期到日记数的映射，没有日记的日期不返回
+     */
+    @GetMapping("/calendar")
+    public Map<String, Object> getMonthCalendar(
+            @RequestParam String month,
+            @RequestAttribute("openid") String openid) {
+        
+        try {
+            return ApiResponse.success("获取日历成功", diaryQueryService.getMonthCalendar(openid, month));
+        } catch (Exception e) {
+            logger.error("获取日历失败", e);
+            return ApiResponse.error("获取日历失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 获取写作统计
+     * @param openid 用户ID (由拦截器注入)
+     * @return 日记数、图片数、按年/月的日记数和连续写作天数
+     */
+    @GetMapping("/stats")
+    public Map<String, Object> getStats(@RequestAttribute("openid") String openid) {
+        try {
+            return ApiResponse.success("获取统计成功", diaryStatsService.getStats(DiarySource.DATABASE, openid));
+        } catch (Exception e) {
+            logger.error("获取统计失败", e);
+            return ApiResponse.error("获取统计失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 增量同步：获取某个序号之后的日记变更
+     * @param since 客户端已同步到的序号，首次同步传0
+     * @param limit 最多返回的变更条数
+     * @param openid 用户ID (由拦截器注入)
+     * @return 按序号排列的新增/修改(put)和删除(delete)记录；resync为true时需要重新拉取完整列表
+     */
+    @GetMapping("/changes")
+    public Map<String, Object> getChanges(
+            @RequestParam(defaultValue = "0") long since,
+            @RequestParam(defaultValue = "500") int limit,
+            @RequestAttribute("openid") String openid) {
+        try {
+            return ApiResponse.success("获取变更成功", diaryChangeService.getChanges(DiarySource.DATABASE, openid, since, limit));
+        } catch (Exception e) {
+            logger.error("获取日记变更失败", e);
+            return ApiResponse.error("获取变更失败: " + e.getMessage());
+        }
+    }
+
     /**
      * 删除日记
      *
@@ -92,12 +353,24 @@ public class DatabaseDiaryController {
                 return ApiResponse.error("日记ID不能为空");
             }
             
-            boolean success = diaryDatabaseService.deleteDiary(diaryId);
-            
-            if (success) {
-                return ApiResponse.success("日记删除成功", true);
-            } else {
-                return ApiResponse.error("未找到指定ID的日记");
+            try (DiaryStatsService.PendingWrite ignored = diaryStatsService.beginWrite(DiarySource.DATABASE, openid)) {
+                // 删除前按用户查找，只能删除自己的日记；同时读取记录时间和图片数，用于更新写作统计
+                Diary diary = diaryQueryService.getDiaryByDiaryId(openid, diaryId);
+                if (diary == null) {
+                    return ApiResponse.error("未找到指定ID的日记");
+                }
+                boolean success = diaryDatabaseService.deleteDiary(diaryId);
+
+                if (success) {
+                    diaryQueryService.evictTotalCount(openid);
+                    diaryPageCacheService.bumpVersion(DiarySource.DATABASE, openid);
+                    diaryStatsService.onDelete(DiarySource.DATABASE, openid, diary.getLogTime(), null,
+                            DiaryStatsService.countImages(diary.getImageUrls()));
+                    diaryChangeService.onDelete(DiarySource.DATABASE, openid, diaryId);
+                    return ApiResponse.success("日记删除成功", true);
+                } else {
+                    return ApiResponse.error("未找到指定ID的日记");
+                }
             }
             
         } catch (Exception e) {
@@ -105,4 +378,27 @@ public class DatabaseDiaryController {
             return ApiResponse.error("删除日记失败: " + e.getMessage());
         }
     }
+
+    /**
+     * 对页码分页结果中的记录应用视图
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> applyView(Map<String, Object> paginationData, DiaryView view) {
+        List<Map<String, Object>> records = new ArrayList<>();
+        for (Map<String, Object> record : (List<Map<String, Object>>) paginationData.get("records")) {
+            records.add(diaryQueryService.applyView(record, view));
+        }
+        Map<String, Object> data = new HashMap<>(paginationData);
+        data.put("records", records);
+        return data;
+    }
+
+    private Map<String, Object> createBatchResult(int index, String diaryId, boolean success, String message) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("index", index);
+        result.put("diaryId", diaryId);
+        result.put("success", success);
+        result.put("message", message);
+        return result;
+    }
 } 
\ No newline at end of file
@@ -1,10 +1,31 @@
 package wy.diary.server.controller;
 
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import wy.diary.server.dto.DiarySaveDTO;
 import wy.diary.server.dto.request.DeleteDiaryRequest;
+import wy.diary.server.dto.response.CursorPageResult;
+import wy.diary.server.dto.response.DiaryRecord;
+import wy.diary.server.dto.response.PageResult;
+import wy.diary.server.dto.response.SaveResult;
 import wy.diary.server.model.ApiResponse;
+import wy.diary.server.model.CachedPage;
+import wy.diary.server.model.DiarySource;
+import wy.diary.server.model.DiaryIndexEntry;
+import wy.diary.server.model.DiaryPage;
+import wy.diary.server.service.DiaryChangeService;
+import wy.diary.server.service.DiaryPageCacheService;
+import wy.diary.server.service.DiaryShadowReadService;
+import wy.diary.server.service.DiaryStatsService;
+import wy.diary.server.service.ImageReclaimService;
+import wy.diary.server.store.DiaryStore;
+import wy.diary.server.util.DiaryDateRange;
+import wy.diary.server.util.DiaryPreview;
+import wy.diary.server.util.DiaryView;
+import wy.diary.server.util.PageCursor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,67 +39,137 @@ import org.json.*;
 public class DiaryController {
     private static final Logger logger = LoggerFactory.getLogger(DiaryController.class);
 
-    @Value("${diary.storage.path:diary}")
-    private String storagePath;
+    @Autowired
+    private DiaryStore diaryStore;
+
+    @Autowired
+    private DiaryStatsService diaryStatsService;
+
+    @Autowired
+    private DiaryChangeService diaryChangeService;
+
+    @Autowired
+    private ImageReclaimService imageReclaimService;
+
+    @Autowired
+    private DiaryPageCacheService diaryPageCacheService;
+
+    @Autowired
+    private DiaryShadowReadService diaryShadowReadService;
+
+    // 批量保存一次最多提交的日记数
+    @Value("${diary.batch-save.max-size:100}")
+    private int batchSaveMaxSize;
 
     @PostMapping("/save")
-    public Map<String, Object> saveDiary(@RequestBody DiarySaveDTO diaryDto) {
+    public ApiResponse saveDiary(@RequestBody DiarySaveDTO diaryDto) {
 
         //增加日志
         System.out.println("DiaryController.saveDiary() called with: diaryDto = [" + diaryDto + "]");
 
         try {
-            // 确保目录存在
-            Path dirPath = Paths.get(storagePath);
-            if (!Files.exists(dirPath)) {
-                Files.createDirectories(dirPath);
-            }
-
             // 获取当前年份
             String year = new SimpleDateFormat("yyyy").format(new Date());
-            String filename = diaryDto.getOpenId() + "-" + year + ".json";
-            Path filePath = dirPath.resolve(filename);
-
-            // 读取现有文件或创建新文件
-            JSONObject json;
-            if (Files.exists(filePath)) {
-                String content = new String(Files.readAllBytes(filePath));
-                json = new JSONObject(content);
-            } else {
-                json = new JSONObject();
-            }
-
-            // 生成key: 日期+序号
-            String dateKey = diaryDto.getLogTime();
-            int seq = 1;
-            String fullKey;
-            do {
-                fullKey = dateKey + String.format("%02d", seq++);
-            } while (json.has(fullKey));
 
             // 保存数据
-            JSONObject diaryJson = new JSONObject();
-            diaryJson.put("editorContent", diaryDto.getEditorContent());
-            diaryJson.put("createTime", diaryDto.getCreateTime());
-            diaryJson.put("logTime", diaryDto.getLogTime());
-            diaryJson.put("logWeek", diaryDto.getLogWeek());
-            diaryJson.put("logLunar", diaryDto.getLogLunar());
-            diaryJson.put("address", diaryDto.getAddress());
-            diaryJson.put("diaryId", diaryDto.getDiaryId());
-            diaryJson.put("imageUrls", diaryDto.getImageUrls());
-            
-            json.put(fullKey, diaryJson);
+            JSONObject diaryJson = toDiaryJson(diaryDto);
 
-            // 写入文件
-            Files.write(filePath, json.toString().getBytes());
+            // key(日期+序号)由存储引擎分配
+            String fullKey;
+            try (DiaryStatsService.PendingWrite ignored = diaryStatsService.beginWrite(DiarySource.FILE, diaryDto.getOpenId())) {
+                fullKey = diaryStore.save(diaryDto.getOpenId(), year, diaryJson);
+                diaryPageCacheService.bumpVersion(DiarySource.FILE, diaryDto.getOpenId());
+                diaryStatsService.onSave(DiarySource.FILE, diaryDto.getOpenId(), diaryDto.getLogTime(), year,
+                        diaryDto.getImageUrls() != null ? diaryDto.getImageUrls().length : 0);
+            }
+            diaryChangeService.onSave(DiarySource.FILE, diaryDto.getOpenId(), diaryDto.getDiaryId(),
+                    toDiaryMap(DiaryIndexEntry.of(year, fullKey, diaryJson)));
 
-            Map<String, String> data = new HashMap<>();
-            data.put("key", fullKey);
-            
-            return ApiResponse.success("日记保存成功", data);
+            return ApiResponse.ok("日记保存成功", SaveResult.ofKey(fullKey));
         } catch (Exception e) {
-            return ApiResponse.error("保存失败: " + e.getMessage());
+            return ApiResponse.fail("保存失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 批量保存日记，用于离线客户端一次提交积压的日记
+     * <p>
+     * 整批一次写入日志、只落盘一次，key在写线程中一次分配。日记归属当前登录用户，
+     * 带了其他用户openId的日记和空元素逐条返回失败，不影响其他日记。
+     * @param diaryDtos 日记列表
+     * @param openid 用户ID (由拦截器注入)
+     * @return 按提交顺序的逐条结果，成功的包含分配到的key
+     */
+    @PostMapping("/batchSave")
+    public Map<String, Object> batchSaveDiaries(
+            @RequestBody List<DiarySaveDTO> diaryDtos,
+            @RequestAttribute("openid") String openid) {
+        if (diaryDtos == null || diaryDtos.isEmpty()) {
+            return ApiResponse.error("日记列表不能为空");
+        }
+        if (diaryDtos.size() > batchSaveMaxSize) {
+            return ApiResponse.error("一次最多保存" + batchSaveMaxSize + "篇日记");
+        }
+
+        // 与单篇保存一致，日记归属保存时的年份
+        String year = new SimpleDateFormat("yyyy").format(new Date());
+        List<Map<String, Object>> results = new ArrayList<>(Collections.nCopies(diaryDtos.size(), null));
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < diaryDtos.size(); i++) {
+            DiarySaveDTO diaryDto = diaryDtos.get(i);
+            if (diaryDto == null) {
+                results.set(i, createBatchResult(i, null, null, "日记不能为空"));
+                continue;
+            }
+            if (diaryDto.getOpenId() != null && !diaryDto.getOpenId().isEmpty() && !diaryDto.getOpenId().equals(openid)) {
+                results.set(i, createBatchResult(i, diaryDto.getDiaryId(), null, "不能保存其他用户的日记"));
+                continue;
+            }
+            indexes.add(i);
+        }
+
+        if (!indexes.isEmpty()) {
+            List<JSONObject> diaryJsons = new ArrayList<>();
+            for (int index : indexes) {
+                diaryJsons.add(toDiaryJson(diaryDtos.get(index)));
+            }
+            try (DiaryStatsService.PendingWrite ignored = diaryStatsService.beginWrite(DiarySource.FILE, openid)) {
+                List<String> keys = diaryStore.saveAll(openid, year, diaryJsons);
+                diaryPageCacheService.bumpVersion(DiarySource.FILE, openid);
+                for (int i = 0; i < keys.size(); i++) {
+                    int index = indexes.get(i);
+                    DiarySaveDTO diaryDto = diaryDtos.get(index);
+                    String key = keys.get(i);
+                    if (key == null) {
+                        results.set(index, createBatchResult(index, diaryDto.getDiaryId(), null, "保存失败"));
+                        continue;
+                    }
+                    diaryStatsService.onSave(DiarySource.FILE, openid, diaryDto.getLogTime(), year,
+                            diaryDto.getImageUrls() != null ? diaryDto.getImageUrls().length : 0);
+                    diaryChangeService.onSave(DiarySource.FILE, openid, diaryDto.getDiaryId(),
+                            toDiaryMap(DiaryIndexEntry.of(year, key, diaryJsons.get(i))));
+                    results.set(index, createBatchResult(index, diaryDto.getDiaryId(), key, "日记保存成功"));
+                }
+            } catch (Exception e) {
+                logger.error("批量保存用户 {} 的日记失败", openid, e);
+                for (int index : indexes) {
+                    results.set(index, createBatchResult(index, diaryDtos.get(index).getDiaryId(), null,
+                            "保存失败: " + e.getMessage()));
+                }
+            }
+        }
+
+        int successCount = 0;
+        for (Map<String, Object> result : results) {
+            if (Boolean.TRUE.equals(result.get("success"))) {
+                successCount++;
+            }
         }
+        Map<String, Object> data = new HashMap<>();
+        data.put("results", results);
+        data.put("successCount", successCount);
+        data.put("failureCount", results.size() - successCount);
+        return ApiResponse.success("批量保存完成", data);
     }
 
     @GetMapping("/getDiaryId")
@@ -94,107 +185,222 @@ public class DiaryController {
 
     /**
      * 获取日记列表（分页）
+     * <p>
+     * 响应按用户的版本号缓存并带ETag，日记未变化时带 If-None-Match 的请求返回304
      * @param pageIndex 页码，从1开始
      * @param pageSize 每页记录数
+     * @param cursor 游标分页：传入上一页返回的nextCursor，首页传空字符串；不传时按页码分页
+     * @param withTotal 游标分页时是否返回总记录数
+     * @param view full(默认)返回完整日记；summary只返回预览、图片数和元数据，完整内容通过/detail获取
+     * @param fields 逗号分隔的返回字段，指定后忽略view
      * @param openid 用户ID (由拦截器注入)
      * @return 分页的日记列表
      */
     @GetMapping("/list")
-    public Map<String, Object> listDiaries(
+    public ResponseEntity<?> listDiaries(
             @RequestParam(defaultValue = "1") int pageIndex,
             @RequestParam(defaultValue = "10") int pageSize,
-            @RequestAttribute("openid") String openid) {
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "false") boolean withTotal,
+            @RequestParam(required = false) String view,
+            @RequestParam(required = false) String fields,
+            @RequestAttribute("openid") String openid,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
         
         try {
-            // 获取目录下该用户的所有日记文件
-            Path dirPath = Paths.get(storagePath);
-            if (!Files.exists(dirPath)) {
-                Files.createDirectories(dirPath);
-            }
-            
-            List<Path> userFiles = new ArrayList<>();
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath, openid + "-*.json")) {
-                for (Path path : stream) {
-                    userFiles.add(path);
-                }
-            }
-            
-            List<Map<String, Object>> allDiaries = new ArrayList<>();
-            
-            // 从每个文件中读取日记数据
-            for (Path filePath : userFiles) {
-                if (!Files.exists(filePath)) {
-                    continue;
-                }
-                
-                // 读取文件内容
-                String content = new String(Files.readAllBytes(filePath));
-                JSONObject json = new JSONObject(content);
-                
-                // 将JSON对象转换为列表
-                Iterator<String> keys = json.keys();
-                while (keys.hasNext()) {
-                    String key = keys.next();
-                    JSONObject diary = json.getJSONObject(key);
-                    
-                    Map<String, Object> diaryMap = new HashMap<>();
-                    diaryMap.put("key", key);
-                    diaryMap.put("diaryId", diary.optString("diaryId", ""));
-                    diaryMap.put("editorContent", diary.optString("editorContent", ""));
-                    diaryMap.put("createTime", diary.optString("createTime", ""));
-                    diaryMap.put("logTime", diary.optString("logTime", ""));
-                    diaryMap.put("logWeek", diary.optString("logWeek", ""));
-                    diaryMap.put("logLunar", diary.optString("logLunar", ""));
-                    diaryMap.put("address", diary.optString("address", ""));
-                    
-                    // 处理图片URL数组
-                    JSONArray imageUrlsArray = diary.optJSONArray("imageUrls");
-                    List<String> imageUrls = new ArrayList<>();
-                    if (imageUrlsArray != null) {
-                        for (int i = 0; i < imageUrlsArray.length(); i++) {
-                            String fullPath = imageUrlsArray.getString(i);
-                            // 从路径中提取文件名和后缀
-                            String fileName = Paths.get(fullPath).getFileName().toString();
-                            imageUrls.add(fileName);
-                        }
+            DiaryView diaryView = DiaryView.of(view, fields);
+            String pageKey = (cursor != null
+                    ? "cursor:" + cursor + ":" + pageSize + ":" + withTotal
+                    : "page:" + pageIndex + ":" + pageSize) + ":" + diaryView;
+            CachedPage page = diaryPageCacheService.getPage(DiarySource.FILE, openid, pageKey, () -> {
+                long start = System.nanoTime();
+                if (cursor != null) {
+                    CursorPageResult result = listDiariesByCursor(openid, cursor, pageSize, withTotal, diaryView);
+                    if (cursor.isEmpty() && diaryView.isDefault()) {
+                        diaryShadowReadService.shadowList(openid, null, pageSize, result.records(), null,
+                                System.nanoTime() - start);
                     }
-                    diaryMap.put("imageUrls", imageUrls);
-                    allDiaries.add(diaryMap);
+                    return ApiResponse.ok("获取日记列表成功", result);
                 }
-            }
-            
-            // 如果没有找到任何日记，返回空列表
-            if (allDiaries.isEmpty()) {
-                Map<String, Object> paginationData = createPaginationData(new ArrayList<>(), pageIndex, pageSize, 0);
-                return ApiResponse.success("获取日记列表成功", paginationData);
-            }
-            
-            // 按日期降序排序（最新的日记在前面）
-            allDiaries.sort((d1, d2) -> {
-                String logTime1 = (String) d1.get("logTime");
-                String logTime2 = (String) d2.get("logTime");
-                return logTime2.compareTo(logTime1); // 降序
+                PageResult result = listDiariesByPage(openid, pageIndex, pageSize, diaryView);
+                if (diaryView.isDefault()) {
+                    diaryShadowReadService.shadowList(openid, pageIndex, pageSize, result.records(), result.totalCount(),
+                            System.nanoTime() - start);
+                }
+                return ApiResponse.ok("获取日记列表成功", result);
             });
+            return page.toResponse(ifNoneMatch, acceptEncoding);
             
-            // 计算总记录数
-            int totalCount = allDiaries.size();
-            
-            // 分页处理
-            int startIndex = (pageIndex - 1) * pageSize;
-            int endIndex = Math.min(startIndex + pageSize, totalCount);
+        } catch (Exception e) {
+            return ResponseEntity.ok(ApiResponse.error("获取日记列表失败: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * 页码分页获取日记列表
+     */
+    private PageResult listDiariesByPage(String openid, int pageIndex, int pageSize, DiaryView view) throws Exception {
+        DiaryPage page = diaryStore.page(openid, pageIndex, pageSize);
+        int totalCount = page.getTotalCount();
+        
+        List<Object> diaries = new ArrayList<>(page.getRecords().size());
+        for (DiaryIndexEntry entry : page.getRecords()) {
+            diaries.add(toDiaryMap(entry, view));
+        }
+        
+        // 构建分页响应数据
+        return PageResult.of(diaries, pageIndex, pageSize, totalCount);
+    }
+
+    /**
+     * 游标分页获取日记列表，按 (logTime, key) 定位上一页的最后一条
+     */
+    private CursorPageResult listDiariesByCursor(String openid, String cursor, int pageSize, boolean withTotal,
+                                                 DiaryView view) throws Exception {
+        DiaryIndexEntry after = null;
+        if (!cursor.isEmpty()) {
+            PageCursor pageCursor = PageCursor.decode(cursor);
+            after = DiaryIndexEntry.probe(pageCursor.getYear(), pageCursor.getKey(), pageCursor.getLogTime());
+        }
+        
+        // 多取一条用于判断是否还有下一页
+        DiaryPage page = diaryStore.scan(openid, after, pageSize + 1);
+        List<DiaryIndexEntry> entries = page.getRecords();
+        int totalCount = page.getTotalCount();
+        
+        boolean hasNext = entries.size() > pageSize;
+        if (hasNext) {
+            entries = entries.subList(0, pageSize);
+        }
+        
+        List<Object> diaries = new ArrayList<>(entries.size());
+        for (DiaryIndexEntry entry : entries) {
+            diaries.add(toDiaryMap(entry, view));
+        }
+        
+        String nextCursor = null;
+        if (hasNext && !entries.isEmpty()) {
+            DiaryIndexEntry last = entries.get(entries.size() - 1);
+            nextCursor = new PageCursor(last.getLogTime(), last.getKey(), last.getYear()).encode();
+        }
+        
+        return CursorPageResult.of(diaries, pageSize, nextCursor, withTotal ? totalCount : null);
+    }
+
+    /**
+     * 按日记ID获取一篇完整的日记，配合列表的摘要视图使用
+     * @param diaryId 日记ID
+     * @param openid 用户ID (由拦截器注入)
+     * @return 与列表完整视图相同格式的日记记录
+     */
+    @GetMapping("/detail")
+    public Map<String, Object> getDiary(
+            @RequestParam String diaryId,
+            @RequestAttribute("openid") String openid) {
+        
+        try {
+            DiaryIndexEntry entry = diaryStore.get(openid, diaryId);
+            if (entry == null) {
+                return ApiResponse.error("未找到指定ID的日记");
+            }
+            return ApiResponse.success("获取日记成功", toDiaryMap(entry));
+        } catch (Exception e) {
+            return ApiResponse.error("获取日记失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 获取日期范围内的日记
+     * @param from 起始日期 yyyy-MM-dd（含）
+     * @param to 结束日期 yyyy-MM-dd（含）
+     * @param openid 用户ID (由拦截器注入)
+     * @return 范围内的日记，最新的在前
+     */
+    @GetMapping("/range")
+    public Map<String, Object> listDiariesInRange(
+            @RequestParam String from,
+            @RequestParam String to,
+            @RequestAttribute("openid") String openid) {
+        
+        try {
+            DiaryDateRange range = DiaryDateRange.of(from, to);
             
             List<Map<String, Object>> diaries = new ArrayList<>();
-            if (startIndex < totalCount) {
-                diaries = allDiaries.subList(startIndex, endIndex);
+            for (DiaryIndexEntry entry : diaryStore.range(openid, range)) {
+                diaries.add(toDiaryMap(entry));
             }
             
-            // 构建分页响应数据
-            Map<String, Object> paginationData = createPaginationData(diaries, pageIndex, pageSize, totalCount);
+            Map<String, Object> data = new HashMap<>();
+            data.put("records", diaries);
+            data.put("totalCount", diaries.size());
+            return ApiResponse.success("获取日记列表成功", data);
+        } catch (Exception e) {
+            return ApiResponse.error("获取日记列表失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 获取某个月每天的日记数，用于日历视图
+     * @param month 月份 yyyy-MM
+     * @param openid 用户ID (由拦截器注入)
+     * @return 日期到日记数的映射，没有日记的日期不返回
+     */
+    @GetMapping("/calendar")
+    public Map<String, Object> getMonthCalendar(
+            @RequestParam String month,
+            @RequestAttribute("openid") String openid) {
+        
+        try {
+            DiaryDateRange range = DiaryDateRange.ofMonth(month);
             
-            return ApiResponse.success("获取日记列表成功", paginationData);
+            // 按日期有序的存储上只扫描当月的日记
+            Map<String, Integer> days = new TreeMap<>();
+            List<DiaryIndexEntry> entries = diaryStore.range(openid, range);
+            for (DiaryIndexEntry entry : entries) {
+                days.merge(DiaryDateRange.dayOf(entry.getLogTime(), entry.getYear()), 1, Integer::sum);
+            }
             
+            Map<String, Object> data = new HashMap<>();
+            data.put("month", month);
+            data.put("days", days);
+            data.put("totalCount", entries.size());
+            return ApiResponse.success("获取日历成功", data);
         } catch (Exception e) {
-            return ApiResponse.error("获取日记列表失败: " + e.getMessage());
+            return ApiResponse.error("获取日历失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 获取写作统计
+     * @param openid 用户ID (由拦截器注入)
+     * @return 日记数、图片数、按年/月的日记数和连续写作天数
+     */
+    @GetMapping("/stats")
+    public Map<String, Object> getStats(@RequestAttribute("openid") String openid) {
+        try {
+            return ApiResponse.success("获取统计成功", diaryStatsService.getStats(DiarySource.FILE, openid));
+        } catch (Exception e) {
+            return ApiResponse.error("获取统计失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 增量同步：获取某个序号之后的日记变更
+     * @param since 客户端已同步到的序号，首次同步传0
+     * @param limit 最多返回的变更条数
+     * @param openid 用户ID (由拦截器注入)
+     * @return 按序号排列的新增/修改(put)和删除(delete)记录；resync为true时需要重新拉取完整列表
+     */
+    @GetMapping("/changes")
+    public Map<String, Object> getChanges(
+            @RequestParam(defaultValue = "0") long since,
+            @RequestParam(defaultValue = "500") int limit,
+            @RequestAttribute("openid") String openid) {
+        try {
+            return ApiResponse.success("获取变更成功", diaryChangeService.getChanges(DiarySource.FILE, openid, since, limit));
+        } catch (Exception e) {
+            return ApiResponse.error("获取变更失败: " + e.getMessage());
         }
     }
 
@@ -217,104 +423,29 @@ public class DiaryController {
                 return ApiResponse.error("日记ID不能为空");
             }
             
-            // 获取目录下该用户的所有日记文件
-            Path dirPath = Paths.get(storagePath);
-            if (!Files.exists(dirPath)) {
-                return ApiResponse.error("日记目录不存在");
-            }
-            
-            List<Path> userFiles = new ArrayList<>();
-            
-            // 如果提供了创建年份，直接定位到对应年份的文件
-            if (createYear != null && !createYear.isEmpty()) {
-                Path targetFilePath = dirPath.resolve(openid + "-" + createYear + ".json");
-                if (Files.exists(targetFilePath)) {
-                    userFiles.add(targetFilePath);
-                } else {
-                    return ApiResponse.error("未找到" + createYear + "年的日记文件");
-                }
-            } else {
-                // 否则遍历所有文件
-                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath, openid + "-*.json")) {
-                    for (Path path : stream) {
-                        userFiles.add(path);
-                    }
+            long start = System.nanoTime();
+            DiaryIndexEntry deletedDiary;
+            try (DiaryStatsService.PendingWrite ignored = diaryStatsService.beginWrite(DiarySource.FILE, openid)) {
+                deletedDiary = diaryStore.delete(openid, diaryId, createYear);
+                if (deletedDiary != null) {
+                    diaryPageCacheService.bumpVersion(DiarySource.FILE, openid);
+                    diaryStatsService.onDelete(DiarySource.FILE, openid, deletedDiary.getLogTime(), deletedDiary.getYear(),
+                            deletedDiary.getImageUrls().size());
                 }
             }
-            
-            if (userFiles.isEmpty()) {
-                return ApiResponse.error("未找到用户日记文件");
+            diaryShadowReadService.shadowDelete(openid, diaryId, deletedDiary != null, System.nanoTime() - start);
+            if (deletedDiary == null) {
+                return ApiResponse.error("未找到指定ID的日记");
             }
+            diaryChangeService.onDelete(DiarySource.FILE, openid, diaryId);
             
-            boolean diaryFound = false;
-            String deletedKey = null;
-            Path modifiedFilePath = null;
-            int imagesDeleted = 0; // 记录删除的图片数量
-            
-            // 从每个文件中查找并删除日记
-            for (Path filePath : userFiles) {
-                if (!Files.exists(filePath)) {
-                    continue;
-                }
-                
-                // 读取文件内容
-                String content = new String(Files.readAllBytes(filePath));
-                JSONObject json = new JSONObject(content);
-                
-                // 查找包含指定diaryId的日记
-                Iterator<String> keys = json.keys();
-                while (keys.hasNext()) {
-                    String key = keys.next();
-                    JSONObject diary = json.getJSONObject(key);
-                    
-                    String currentDiaryId = diary.optString("diaryId", "");
-                    if (diaryId.equals(currentDiaryId)) {
-                        // 找到匹配的日记，删除相关的图片文件
-                        JSONArray imageUrlsArray = diary.optJSONArray("imageUrls");
-                        if (imageUrlsArray != null && !imageUrlsArray.isEmpty()) {
-                            for (int i = 0; i < imageUrlsArray.length(); i++) {
-                                String imagePath = imageUrlsArray.getString(i);
-                                try {
-                                    // 删除图片文件
-                                    Path imageFilePath = Paths.get(imagePath);
-                                    if (Files.exists(imageFilePath)) {
-                                        Files.delete(imageFilePath);
-                                        logger.info("已删除日记图片: {}", imagePath);
-                                        imagesDeleted++; // 增加删除计数
-                                    } else {
-                                        logger.warn("日记图片不存在，无法删除: {}", imagePath);
-                                    }
-                                } catch (Exception e) {
-                                    logger.error("删除日记图片失败: {}, 错误: {}", imagePath, e.getMessage(), e);
-                                }
-                            }
-                        }
-                        
-                        // 移除日记条目
-                        keys.remove();
-                        diaryFound = true;
-                        deletedKey = key;
-                        modifiedFilePath = filePath;
-                        break;
-                    }
-                }
-                
-                // 如果找到并删除了日记，更新文件
-                if (diaryFound) {
-                    Files.write(filePath, json.toString().getBytes());
-                    break;
-                }
+            // 相关的图片文件登记到回收队列，由后台线程删除
+            try {
+                imageReclaimService.enqueue(openid, deletedDiary.getImageUrls());
+            } catch (Exception e) {
+                logger.error("登记日记图片回收失败: {}, 图片: {}", diaryId, deletedDiary.getImageUrls(), e);
             }
             
-            if (!diaryFound) {
-                return ApiResponse.error("未找到指定ID的日记");
-            }
-            
-//            Map<String, Object> data = new HashMap<>();
-//            data.put("diaryId", diaryId);
-//            data.put("key", deletedKey);
-//            data.put("file", modifiedFilePath.getFileName().toString());
-//            data.put("imagesDeleted", imagesDeleted); // 添加删除的图片数量信息
             return ApiResponse.success("日记删除成功", true);
             
         } catch (Exception e) {
@@ -323,22 +454,65 @@ public class DiaryController {
     }
 
     /**
-     * 创建分页数据结构
-     * @param records 当前页的记录
-     * @param pageIndex 当前页码
-     * @param pageSize 每页大小
-     * @param totalCount 总记录数
-     * @return 包含分页信息的数据结构
+     * 将保存请求转换为存储的日记JSON
      */
-    private Map<String, Object> createPaginationData(List<?> records, int pageIndex, int pageSize, int totalCount) {
-        Map<String, Object> data = new HashMap<>();
-        data.put("records", records);
-        data.put("pageIndex", pageIndex);
-        data.put("pageSize", pageSize);
-        data.put("totalCount", totalCount);
-        data.put("totalPages", (int) Math.ceil((double) totalCount / pageSize));
-        data.put("hasNext", pageIndex * pageSize < totalCount);
-        data.put("hasPrevious", pageIndex > 1);
-        return data;
+    private JSONObject toDiaryJson(DiarySaveDTO diaryDto) {
+        JSONObject diaryJson = new JSONObject();
+        diaryJson.put("editorContent", diaryDto.getEditorContent());
+        diaryJson.put("preview", DiaryPreview.of(diaryDto.getEditorContent()));
+        diaryJson.put("createTime", diaryDto.getCreateTime());
+        diaryJson.put("logTime", diaryDto.getLogTime());
+        diaryJson.put("logWeek", diaryDto.getLogWeek());
+        diaryJson.put("logLunar", diaryDto.getLogLunar());
+        diaryJson.put("address", diaryDto.getAddress());
+        diaryJson.put("diaryId", diaryDto.getDiaryId());
+        if (diaryDto.getImageUrls() != null) {
+            diaryJson.put("imageUrls", new JSONArray(diaryDto.getImageUrls()));
+        }
+        return diaryJson;
+    }
+
+    /**
+     * 批量保存的单条结果，key为null表示保存失败
+     */
+    private Map<String, Object> createBatchResult(int index, String diaryId, String key, String message) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("index", index);
+        result.put("diaryId", diaryId);
+        result.put("key", key);
+        result.put("success", key != null);
+        result.put("message", message);
+        return result;
+    }
+
+    /**
+     * 按视图转换日记记录，完整视图与原有格式相同，直接返回不可变记录
+     */
+    private Object toDiaryMap(DiaryIndexEntry entry, DiaryView view) {
+        if (view.isDefault()) {
+            return toDiaryRecord(entry);
+        }
+        Map<String, Object> diaryMap = toDiaryMap(entry);
+        diaryMap.put("preview", entry.getPreview() != null ? entry.getPreview() : "");
+        diaryMap.put("imageCount", entry.getImageUrls().size());
+        return view.project(diaryMap);
+    }
+
+    /**
+     * 将索引条目转换为列表接口返回的日记记录
+     */
+    private Map<String, Object> toDiaryMap(DiaryIndexEntry entry) {
+        return toDiaryRecord(entry).toMap();
+    }
+
+    private DiaryRecord toDiaryRecord(DiaryIndexEntry entry) {
+        // 处理图片URL数组
+        List<String> imageUrls = new ArrayList<>(entry.getImageUrls().size());
+        for (String fullPath : entry.getImageUrls()) {
+            // 从路径中提取文件名和后缀
+            imageUrls.add(Paths.get(fullPath).getFileName().toString());
+        }
+        return new DiaryRecord(entry.getKey(), entry.getDiaryId(), entry.getEditorContent(), entry.getCreateTime(),
+                entry.getLogTime(), entry.getLogWeek(), entry.getLogLunar(), entry.getAddress(), imageUrls);
     }
 }
@@ -1,82 +1,332 @@
 package wy.diary.server.controller;
 
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import wy.diary.server.model.ApiResponse;
+import wy.diary.server.model.CachedImage;
+import wy.diary.server.service.ImageBlobService;
+import wy.diary.server.service.ImageCacheService;
+import wy.diary.server.service.ImageReclaimService;
+import wy.diary.server.service.ImageUploadService;
+import wy.diary.server.service.ImageVariantService;
+import wy.diary.server.util.FileResponses;
+import wy.diary.server.util.MultipartStream;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.time.Year;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping("/api/images")
 public class ImageController {
 
+    private static final CacheControl IMMUTABLE = CacheControl.maxAge(365, TimeUnit.DAYS).immutable();
+
+    private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+
+    // 表单普通字段（日记ID、校验值）的长度上限
+    private static final int MAX_FIELD_SIZE = 4096;
+
     @Value("${image.storage.path}")
     private String storagePath;
 
+    @Value("${spring.servlet.multipart.max-file-size:50MB}")
+    private DataSize maxFileSize;
+
+    @Value("${spring.servlet.multipart.max-request-size:100MB}")
+    private DataSize maxRequestSize;
+
+    @Autowired
+    private ImageReclaimService imageReclaimService;
+
+    @Autowired
+    private ImageVariantService imageVariantService;
+
+    @Autowired
+    private ImageBlobService imageBlobService;
+
+    @Autowired
+    private ImageUploadService imageUploadService;
+
+    @Autowired
+    private ImageCacheService imageCacheService;
+
+    /**
+     * 上传图片接口：边读请求体边写入图片目录，同时计算SHA-256和检查大小，不经过multipart临时文件
+     * <p>
+     * 表单字段：file 图片文件，diaryId 日记ID，sha256 可选，提供时校验文件内容；字段顺序不限。
+     * @param openid 用户OpenID (由拦截器注入)
+     * @return 图片路径和文件名
+     */
     @PostMapping("/upload")
-    public Map<String, Object> uploadImage(@RequestParam("file") MultipartFile file,
-                                           @RequestParam("diaryId") String diaryId,
+    public Map<String, Object> uploadImage(HttpServletRequest request,
                                           @RequestAttribute("openid") String openid) throws IOException {
         Map<String, Object> response = new HashMap<>();
-        
-        if (file.isEmpty()) {
+
+        String boundary = MultipartStream.boundaryOf(request.getContentType());
+        if (boundary == null) {
             response.put("status", "error");
-            response.put("message", "上传的文件为空");
+            response.put("message", "请使用multipart/form-data上传图片");
             return response;
         }
-        
+        if (request.getContentLengthLong() > maxRequestSize.toBytes()) {
+            response.put("status", "error");
+            response.put("message", "上传的请求超过大小限制: " + maxRequestSize.toMegabytes() + "MB");
+            return response;
+        }
+
+        Path temp = null;
         try {
-            // 创建用户目录结构: /diary-server/images/{userId}/{year}/
-            String year = String.valueOf(Year.now().getValue());
-            String userDir = storagePath + openid + "/" + year + "/";
-
-            // 确保目录存在
-            Path dirPath = Paths.get(userDir);
-            if (!Files.exists(dirPath)) {
-                Files.createDirectories(dirPath);
+            // 文件先写入图片目录下的临时文件（与最终位置在同一文件系统，提交时只移动或链接）
+            Map<String, String> fields = new HashMap<>();
+            String originalFilename = null;
+            String hash = null;
+            long size = 0;
+            MultipartStream multipart = new MultipartStream(request.getInputStream(), boundary);
+            MultipartStream.Part part;
+            while ((part = multipart.nextPart()) != null) {
+                if (part.isFile() && "file".equals(part.name()) && temp == null) {
+                    temp = imageBlobService.createTempFile();
+                    MessageDigest digest = ImageBlobService.sha256();
+                    size = receiveFile(part.content(), temp, digest);
+                    hash = HexFormat.of().formatHex(digest.digest());
+                    originalFilename = part.fileName();
+                } else if (!part.isFile() && part.name() != null) {
+                    fields.put(part.name(), readField(part.content()));
+                }
             }
 
-            // 生成带日期时间的唯一文件名
-            String originalFilename = file.getOriginalFilename();
-            String fileExtension = originalFilename.substring(originalFilename.lastIndexOf("."));
-            String timestamp = java.time.LocalDateTime.now().format(java.time.format.DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
-            String uniqueFileName = timestamp + "_" + diaryId + fileExtension;
-
-            // 保存文件
-            Path filePath = Paths.get(userDir + uniqueFileName);
-            try (InputStream inputStream = file.getInputStream()) {
-                Files.copy(inputStream, filePath);
+            if (temp == null || size == 0) {
+                response.put("status", "error");
+                response.put("message", "上传的文件为空");
+                return response;
             }
-            
+            String diaryId = fields.get("diaryId");
+            if (diaryId == null || diaryId.isEmpty()) {
+                response.put("status", "error");
+                response.put("message", "没有提供日记ID");
+                return response;
+            }
+            String expectedHash = fields.get("sha256");
+            if (expectedHash != null && !expectedHash.equalsIgnoreCase(hash)) {
+                response.put("status", "error");
+                response.put("message", "文件校验失败，请重新上传");
+                return response;
+            }
+
             // 构建成功响应
             response.put("status", "success");
             response.put("message", "文件上传成功");
-            response.put("data", new HashMap<String, String>() {{
-                put("url", filePath.toString());
-                put("fileName", uniqueFileName);
-            }});
-            
+            response.put("data", saveImage(temp, hash, openid, diaryId, originalFilename));
+
+        } catch (MaxUploadSizeExceededException e) {
+            response.put("status", "error");
+            response.put("message", "上传的文件超过大小限制: " + maxFileSize.toMegabytes() + "MB");
         } catch (IOException e) {
             // 构建错误响应
             response.put("status", "error");
             response.put("message", "文件上传失败: " + e.getMessage());
+        } finally {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
         }
-        
+
         return response;
     }
-    
+
+    /**
+     * 分片上传：登记上传
+     * @param requestData 请求体，包含 diaryId、fileName、size（字节），可选 sha256
+     * @param openid 用户OpenID (由拦截器注入)
+     * @return uploadId、chunkSize、chunkCount 和已收到的分片
+     */
+    @PostMapping("/upload/init")
+    public Map<String, Object> initUpload(@RequestBody Map<String, Object> requestData,
+                                          @RequestAttribute("openid") String openid) {
+        String diaryId = (String) requestData.get("diaryId");
+        String fileName = (String) requestData.get("fileName");
+        Object size = requestData.get("size");
+        if (diaryId == null || diaryId.isEmpty()) {
+            return ApiResponse.error("没有提供日记ID");
+        }
+        if (fileName == null || fileName.isEmpty() || !(size instanceof Number)) {
+            return ApiResponse.error("没有提供文件名或文件大小");
+        }
+        try {
+            return ApiResponse.success("登记上传成功", imageUploadService.init(openid, diaryId, fileName,
+                    ((Number) size).longValue(), (String) requestData.get("sha256")));
+        } catch (IllegalArgumentException e) {
+            return ApiResponse.error(e.getMessage());
+        } catch (Exception e) {
+            return ApiResponse.error("登记上传失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 分片上传：上传一个分片，请求体为分片内容；不同分片可以并行上传，失败的分片重新上传即可
+     * @param uploadId 登记上传时返回的ID
+     * @param offset 分片在文件中的偏移，为分片大小的整数倍
+     * @param openid 用户OpenID (由拦截器注入)
+     * @return 已收到的分片
+     */
+    @PutMapping("/upload/{uploadId}")
+    public Map<String, Object> uploadChunk(@PathVariable("uploadId") String uploadId,
+                                           @RequestParam("offset") long offset,
+                                           @RequestAttribute("openid") String openid,
+                                           HttpServletRequest request) {
+        try {
+            return ApiResponse.success("分片上传成功",
+                    imageUploadService.writeChunk(openid, uploadId, offset, request.getInputStream()));
+        } catch (IllegalArgumentException e) {
+            return ApiResponse.error(e.getMessage());
+        } catch (Exception e) {
+            return ApiResponse.error("分片上传失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 分片上传：查询已收到的分片，中断后按缺少的分片继续上传
+     */
+    @GetMapping("/upload/{uploadId}")
+    public Map<String, Object> getUploadStatus(@PathVariable("uploadId") String uploadId,
+                                               @RequestAttribute("openid") String openid) {
+        try {
+            return ApiResponse.success("获取上传状态成功", imageUploadService.getStatus(openid, uploadId));
+        } catch (IllegalArgumentException e) {
+            return ApiResponse.error(e.getMessage());
+        }
+    }
+
+    /**
+     * 分片上传：全部分片到齐后保存图片，返回与 /upload 相同的图片路径和文件名
+     */
+    @PostMapping("/upload/{uploadId}/complete")
+    public Map<String, Object> completeUpload(@PathVariable("uploadId") String uploadId,
+                                              @RequestAttribute("openid") String openid) {
+        try {
+            ImageUploadService.CompletedUpload upload = imageUploadService.complete(openid, uploadId);
+            Map<String, String> data;
+            try {
+                data = saveImage(upload.file(), upload.sha256(), openid, upload.diaryId(), upload.fileName());
+            } catch (Exception e) {
+                // 上传保留，客户端可以重新提交
+                imageUploadService.release(openid, uploadId);
+                throw e;
+            }
+            // 图片保存后才删除上传
+            imageUploadService.finish(openid, uploadId);
+            return ApiResponse.success("文件上传成功", data);
+        } catch (IllegalArgumentException e) {
+            return ApiResponse.error(e.getMessage());
+        } catch (Exception e) {
+            return ApiResponse.error("文件上传失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 分片上传：放弃上传
+     */
+    @DeleteMapping("/upload/{uploadId}")
+    public Map<String, Object> abortUpload(@PathVariable("uploadId") String uploadId,
+                                           @RequestAttribute("openid") String openid) {
+        try {
+            imageUploadService.abort(openid, uploadId);
+            return ApiResponse.success("已取消上传", null);
+        } catch (IllegalArgumentException e) {
+            return ApiResponse.error(e.getMessage());
+        } catch (Exception e) {
+            return ApiResponse.error("取消上传失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 把上传完成的临时文件保存为日记图片，并在后台生成缩略图
+     * @param temp 与图片目录在同一文件系统上的临时文件
+     * @return 图片路径、文件名和SHA-256
+     */
+    private Map<String, String> saveImage(Path temp, String hash, String openid, String diaryId,
+                                          String originalFilename) throws IOException {
+        // 创建用户目录结构: /diary-server/images/{userId}/{year}/
+        String year = String.valueOf(Year.now().getValue());
+        String userDir = storagePath + openid + "/" + year + "/";
+
+        // 确保目录存在
+        Path dirPath = Paths.get(userDir);
+        if (!Files.exists(dirPath)) {
+            Files.createDirectories(dirPath);
+        }
+
+        // 生成带日期时间的唯一文件名
+        int dot = originalFilename.lastIndexOf(".");
+        String fileExtension = dot >= 0 ? originalFilename.substring(dot) : "";
+        String timestamp = java.time.LocalDateTime.now().format(java.time.format.DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+        String uniqueFileName = timestamp + "_" + diaryId + fileExtension;
+
+        // 保存文件，相同内容的图片只存一份
+        Path filePath = Paths.get(userDir + uniqueFileName);
+        imageBlobService.commit(temp, hash, filePath);
+        // 后台预先生成缩略图，列表页加载时不用再等待
+        imageVariantService.generateAsync(filePath);
+
+        Map<String, String> data = new HashMap<>();
+        data.put("url", filePath.toString());
+        data.put("fileName", uniqueFileName);
+        data.put("sha256", hash);
+        return data;
+    }
+
+    /**
+     * 把上传的文件内容写入临时文件并计算摘要
+     *
+     * @return 文件大小
+     * @throws MaxUploadSizeExceededException 超过 spring.servlet.multipart.max-file-size 时
+     */
+    private long receiveFile(InputStream content, Path temp, MessageDigest digest) throws IOException {
+        long limit = maxFileSize.toBytes();
+        long size = 0;
+        byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+        try (OutputStream output = Files.newOutputStream(temp)) {
+            int read;
+            while ((read = content.read(buffer)) >= 0) {
+                size += read;
+                if (size > limit) {
+                    throw new MaxUploadSizeExceededException(limit);
+                }
+                digest.update(buffer, 0, read);
+                output.write(buffer, 0, read);
+            }
+        }
+        return size;
+    }
+
+    private static String readField(InputStream content) throws IOException {
+        byte[] value = content.readNBytes(MAX_FIELD_SIZE + 1);
+        if (value.length > MAX_FIELD_SIZE) {
+            throw new IOException("表单字段过长");
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
     /**
      * 删除图片接口
      * @param requestData 请求体，包含图片URL列表和日记ID
@@ -117,7 +367,9 @@ public class ImageController {
                     }
                     
                     if (Files.exists(filePath)) {
-                        Files.delete(filePath);
+                        imageVariantService.deleteVariants(filePath);
+                        imageCacheService.invalidate(filePath);
+                        imageBlobService.release(filePath);
                         results.put(url, "删除成功");
                         successCount++;
                     } else {
@@ -144,15 +396,29 @@ public class ImageController {
         }
     }
 
+    /**
+     * 查询删除日记后图片回收的进度
+     * @return 待删除、已删除、不存在和删除失败的图片数
+     */
+    @GetMapping("/reclaim/status")
+    public Map<String, Object> getReclaimStatus() {
+        return ApiResponse.success("获取图片回收进度成功", imageReclaimService.getStatus());
+    }
+
     /**
      * 获取图片接口
      * @param fileName 图片文件名
      * @param openid 用户OpenID (由拦截器注入)
-     * @return 图片数据流
+     * @param width 需要的宽度（像素），返回不小于该宽度的缩略图，可选
+     * @param size 缩略图档位：small、medium、large，未指定width时生效，可选
+     * @return 图片数据流，支持Range请求；文件由容器直接发送，不读入内存
      */
     @GetMapping("/view")
-    public ResponseEntity<byte[]> getImage(@RequestParam("file") String fileName,
-                                          @RequestParam("id") String openid) {
+    public ResponseEntity<?> getImage(@RequestParam("file") String fileName,
+                                      @RequestParam("id") String openid,
+                                      @RequestParam(value = "w", required = false) Integer width,
+                                      @RequestParam(value = "size", required = false) String size,
+                                      HttpServletRequest request) {
         try {
             // 从文件名中提取年份（假设文件名格式为：yyyyMMdd_HHmmss_diaryId.ext）
             String year = ""; 
@@ -165,27 +431,42 @@ public class ImageController {
             
             // 构建完整的文件路径
             String imagePath = storagePath + openid + "/" + year + "/" + fileName;
-            Path filePath = Paths.get(imagePath);
+            Path filePath = Paths.get(imagePath).normalize();
             
-            // 如果文件不存在，直接返回404错误
-            if (!Files.exists(filePath)) {
+            // 如果文件不存在或不在图片目录下，直接返回404错误
+            if (!filePath.startsWith(Paths.get(storagePath).normalize()) || !Files.isRegularFile(filePath)) {
                 return ResponseEntity
                         .status(HttpStatus.NOT_FOUND)
                         .body("图片不存在".getBytes());
             }
             
-            // 读取图片数据
-            byte[] imageData = Files.readAllBytes(filePath);
-            
+            // 请求了宽度时换成对应的缩略图，缩略图与原图格式相同
+            if (width != null && width > 0) {
+                filePath = imageVariantService.getVariant(filePath, imageVariantService.resolveWidth(width));
+            } else if (size != null) {
+                int sizeWidth = imageVariantService.widthOf(size);
+                if (sizeWidth < 0) {
+                    return ResponseEntity
+                            .status(HttpStatus.BAD_REQUEST)
+                            .body("无效的图片尺寸".getBytes());
+                }
+                filePath = imageVariantService.getVariant(filePath, sizeWidth);
+            }
+
             // 确定图片的 MIME 类型
             String mimeType = determineContentType(fileName);
             
             // 返回带有适当内容类型的响应
-            return ResponseEntity
-                    .ok()
-                    .contentType(MediaType.parseMediaType(mimeType))
-                    .contentLength(imageData.length)
-                    .body(imageData);
+            // 文件名带上传时间和日记ID，内容不会变化，客户端可以长期缓存
+            MediaType mediaType = MediaType.parseMediaType(mimeType);
+            CachedImage cached = imageCacheService.get(filePath);
+            if (cached != null) {
+                ResponseEntity<?> response = FileResponses.serve(request, cached, mediaType, IMMUTABLE);
+                if (response != null) {
+                    return response;
+                }
+            }
+            return FileResponses.serve(request, filePath, mediaType, IMMUTABLE);
             
         } catch (Exception e) {
             return ResponseEntity
@@ -0,0 +1,97 @@
+package wy.diary.server.dao;
+
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import wy.diary.server.entity.Diary;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 日记查询DAO，列表游标分页等按 (open_id, log_time) 索引的读查询，以及批量写入
+ */
+@Mapper
+public interface DiaryQueryDao {
+
+    /**
+     * 查询排在 (logTime, id) 之后的日记，按 log_time、id 降序
+     *
+     * @param openId 用户OpenID
+     * @param logTime 上一页最后一条的记录时间，为null时从最新的日记开始
+     * @param id 上一页最后一条的主键id
+     * @param limit 最多返回条数
+     */
+    List<Diary> getDiariesAfter(@Param("openId") String openId,
+                                @Param("logTime") String logTime,
+                                @Param("id") Long id,
+                                @Param("limit") int limit);
+
+    /**
+     * 查询排在 (logTime, id) 之后的日记摘要，不读取完整内容
+     *
+     * @return 每篇日记一行，包含 id、diaryId、preview、imageUrls 和元数据，preview为NULL的旧数据返回内容开头
+     */
+    List<Map<String, Object>> getDiarySummariesAfter(@Param("openId") String openId,
+                                                     @Param("logTime") String logTime,
+                                                     @Param("id") Long id,
+                                                     @Param("limit") int limit);
+
+    /**
+     * 按偏移分页查询日记摘要，按 log_time、id 降序
+     */
+    List<Map<String, Object>> getDiarySummaryPage(@Param("openId") String openId,
+                                                  @Param("offset") int offset,
+                                                  @Param("limit") int limit);
+
+    /**
+     * 统计用户未删除的日记数
+     */
+    int countDiaries(@Param("openId") String openId);
+
+    /**
+     * 查询记录时间在 [from, toExclusive) 内的日记，按 log_time、id 降序
+     *
+     * @param toExclusive 结束日期的下一天（不含），见 {@link wy.diary.server.util.DiaryDateRange#getToExclusive()}
+     */
+    List<Diary> getDiariesInRange(@Param("openId") String openId,
+                                  @Param("from") String from,
+                                  @Param("toExclusive") String toExclusive);
+
+    /**
+     * 按天统计记录时间在 [from, toExclusive) 内的日记数
+     *
+     * @return 每天一行，包含 day（yyyy-MM-dd）和 count
+     */
+    List<Map<String, Object>> countDiariesByDay(@Param("openId") String openId,
+                                                @Param("from") String from,
+                                                @Param("toExclusive") String toExclusive);
+
+    /**
+     * 按日记ID查询用户的一篇未删除日记
+     */
+    Diary getDiaryByDiaryId(@Param("openId") String openId, @Param("diaryId") String diaryId);
+
+    /**
+     * 查询用户所有日记的记录时间和图片，用于重建写作统计
+     */
+    List<Diary> getDiaryStatRows(@Param("openId") String openId);
+
+    /**
+     * 查询用户已存在（未删除）的日记ID
+     */
+    List<String> getExistingDiaryIds(@Param("openId") String openId, @Param("diaryIds") List<String> diaryIds);
+
+    /**
+     * 批量插入日记，一条多行INSERT语句
+     *
+     * @return 插入的行数
+     */
+    int insertDiaries(@Param("diaries") List<Diary> diaries);
+
+    /**
+     * 批量写入日记的内容预览
+     *
+     * @param previews 日记ID到预览的映射
+     */
+    int updatePreviews(@Param("openId") String openId, @Param("previews") Map<String, String> previews);
+}
@@ -0,0 +1,23 @@
+package wy.diary.server.dto.response;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+/**
+ * 游标分页的列表数据
+ *
+ * @param nextCursor 下一页游标，没有下一页时为null
+ * @param totalCount 总记录数，未请求时为null且不输出
+ */
+public record CursorPageResult(
+        List<?> records,
+        int pageSize,
+        String nextCursor,
+        boolean hasNext,
+        @JsonInclude(JsonInclude.Include.NON_NULL) Integer totalCount) {
+
+    public static CursorPageResult of(List<?> records, int pageSize, String nextCursor, Integer totalCount) {
+        return new CursorPageResult(records, pageSize, nextCursor, nextCursor != null, totalCount);
+    }
+}
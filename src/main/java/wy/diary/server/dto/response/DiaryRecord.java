@@ -0,0 +1,44 @@
+package wy.diary.server.dto.response;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 列表接口返回的一篇日记（完整视图）
+ *
+ * @param key 文件存储中的日记key，数据库日记没有key，不输出该字段
+ * @param imageUrls 图片文件名
+ */
+public record DiaryRecord(
+        @JsonInclude(JsonInclude.Include.NON_NULL) String key,
+        String diaryId,
+        String editorContent,
+        String createTime,
+        String logTime,
+        String logWeek,
+        String logLunar,
+        String address,
+        List<String> imageUrls) {
+
+    /**
+     * 转换为Map，用于字段投影和写入变更日志
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> diaryMap = new HashMap<>();
+        if (key != null) {
+            diaryMap.put("key", key);
+        }
+        diaryMap.put("diaryId", diaryId);
+        diaryMap.put("editorContent", editorContent);
+        diaryMap.put("createTime", createTime);
+        diaryMap.put("logTime", logTime);
+        diaryMap.put("logWeek", logWeek);
+        diaryMap.put("logLunar", logLunar);
+        diaryMap.put("address", address);
+        diaryMap.put("imageUrls", imageUrls);
+        return diaryMap;
+    }
+}
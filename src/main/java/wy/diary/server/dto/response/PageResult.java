@@ -0,0 +1,25 @@
+package wy.diary.server.dto.response;
+
+import java.util.List;
+
+/**
+ * 页码分页的列表数据
+ *
+ * @param records 当前页的记录
+ */
+public record PageResult(
+        List<?> records,
+        int pageIndex,
+        int pageSize,
+        int totalCount,
+        int totalPages,
+        boolean hasNext,
+        boolean hasPrevious) {
+
+    public static PageResult of(List<?> records, int pageIndex, int pageSize, int totalCount) {
+        return new PageResult(records, pageIndex, pageSize, totalCount,
+                (int) Math.ceil((double) totalCount / pageSize),
+                pageIndex * pageSize < totalCount,
+                pageIndex > 1);
+    }
+}
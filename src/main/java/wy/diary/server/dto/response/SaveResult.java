@@ -0,0 +1,18 @@
+package wy.diary.server.dto.response;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * 保存日记的结果：文件存储返回分配的key，数据库存储返回日记ID
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record SaveResult(String key, String diaryId) {
+
+    public static SaveResult ofKey(String key) {
+        return new SaveResult(key, null);
+    }
+
+    public static SaveResult ofDiaryId(String diaryId) {
+        return new SaveResult(null, diaryId);
+    }
+}
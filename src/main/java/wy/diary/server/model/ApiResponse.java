@@ -3,10 +3,16 @@ package wy.diary.server.model;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * 接口响应 {status, message, data}
+ * <p>
+ * success/error 返回Map，用于一般接口；ok/fail 返回不可变的响应对象，由Jackson直接按字段序列化，
+ * 用于列表、保存等高频接口，避免每次请求创建HashMap。两者的输出格式相同。
+ */
 public class ApiResponse {
-    private String status;
-    private String message;
-    private Object data;
+    private final String status;
+    private final String message;
+    private final Object data;
 
     private ApiResponse(String status, String message, Object data) {
         this.status = status;
@@ -14,6 +20,14 @@ public class ApiResponse {
         this.data = data;
     }
 
+    public static ApiResponse ok(String message, Object data) {
+        return new ApiResponse("success", message, data);
+    }
+
+    public static ApiResponse fail(String message) {
+        return new ApiResponse("error", message, null);
+    }
+
     public static Map<String, Object> success(String message, Object data) {
         Map<String, Object> response = new HashMap<>();
         response.put("status", "success");
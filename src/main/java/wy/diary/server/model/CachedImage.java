@@ -0,0 +1,31 @@
+package wy.diary.server.model;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 缓存的图片：堆外内存中的文件内容及其修改时间（用于ETag和Last-Modified）
+ */
+public class CachedImage {
+    private final ByteBuffer content;
+    private final long lastModified;
+
+    public CachedImage(ByteBuffer content, long lastModified) {
+        this.content = content.asReadOnlyBuffer();
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * 文件内容的只读视图，每次调用返回独立的位置，可并发读取
+     */
+    public ByteBuffer content() {
+        return content.duplicate();
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public int size() {
+        return content.capacity();
+    }
+}
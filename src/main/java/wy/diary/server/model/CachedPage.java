@@ -0,0 +1,86 @@
+package wy.diary.server.model;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 缓存的列表响应：序列化后gzip压缩的响应体及其ETag
+ * <p>
+ * gzip和未压缩的响应是不同的表示，强ETag不能相同：gzip响应的ETag带 -gz 后缀，并返回 Vary: Accept-Encoding。
+ */
+public class CachedPage {
+    private final String etag;
+    private final byte[] gzipBody;
+
+    public CachedPage(String etag, byte[] gzipBody) {
+        this.etag = etag;
+        this.gzipBody = gzipBody;
+    }
+
+    /**
+     * 构造HTTP响应：ETag与If-None-Match一致时返回304，客户端支持gzip时直接返回压缩后的字节
+     *
+     * @param ifNoneMatch 请求头 If-None-Match，可为null
+     * @param acceptEncoding 请求头 Accept-Encoding，可为null
+     */
+    public ResponseEntity<byte[]> toResponse(String ifNoneMatch, String acceptEncoding) {
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        String responseEtag = getEtag(gzip);
+        if (matches(ifNoneMatch, responseEtag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(responseEtag)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .build();
+        }
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .eTag(responseEtag)
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            return builder.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(gzipBody);
+        }
+        return builder.body(gunzip(gzipBody));
+    }
+
+    /**
+     * @param gzip 是否为gzip压缩的表示
+     */
+    public String getEtag(boolean gzip) {
+        return gzip ? etag.substring(0, etag.length() - 1) + "-gz\"" : etag;
+    }
+
+    public int size() {
+        return gzipBody.length;
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] gunzip(byte[] data) {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
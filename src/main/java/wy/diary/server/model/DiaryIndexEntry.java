@@ -0,0 +1,194 @@
+package wy.diary.server.model;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import wy.diary.server.util.DiaryDateRange;
+import wy.diary.server.util.DiaryPreview;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 日记索引条目，文件存储中一篇日记的只读快照
+ */
+public final class DiaryIndexEntry {
+
+    /**
+     * 按日期降序（最新的日记在前面），同一天按key降序，key相同时按年度文件降序
+     */
+    public static final Comparator<DiaryIndexEntry> NEWEST_FIRST = Comparator
+            .comparing(DiaryIndexEntry::getLogTime, Comparator.reverseOrder())
+            .thenComparing(DiaryIndexEntry::getKey, Comparator.reverseOrder())
+            .thenComparing(DiaryIndexEntry::getYear, Comparator.reverseOrder());
+
+    /**
+     * 按所在日期降序，早期 "M月d日" 格式的日记也排在正确的位置，无法识别日期的排在最后；同一天按 {@link #NEWEST_FIRST}
+     */
+    public static final Comparator<DiaryIndexEntry> NEWEST_DAY_FIRST = Comparator
+            .comparing((DiaryIndexEntry entry) -> DiaryDateRange.dayOf(entry.getLogTime(), entry.getYear()),
+                    Comparator.nullsLast(Comparator.reverseOrder()))
+            .thenComparing(NEWEST_FIRST);
+
+    private final String year;
+    private final String key;
+    private final String diaryId;
+    private final String editorContent;
+    private final String preview;
+    private final String createTime;
+    private final String logTime;
+    private final String logWeek;
+    private final String logLunar;
+    private final String address;
+    private final List<String> imageUrls;
+
+    private DiaryIndexEntry(String year, String key, String diaryId, String editorContent, String preview,
+                            String createTime, String logTime, String logWeek, String logLunar, String address,
+                            List<String> imageUrls) {
+        this.year = year;
+        this.key = key;
+        this.diaryId = diaryId;
+        this.editorContent = editorContent;
+        // 保存时未计算预览的旧日记，在内容可用时补算
+        this.preview = preview != null || editorContent == null ? preview : DiaryPreview.of(editorContent);
+        this.createTime = createTime;
+        this.logTime = logTime;
+        this.logWeek = logWeek;
+        this.logLunar = logLunar;
+        this.address = address;
+        this.imageUrls = Collections.unmodifiableList(imageUrls);
+    }
+
+    /**
+     * 从年度文件中的一条日记JSON创建索引条目
+     * @param year 日记所在年度文件的年份
+     * @param key 日记在年度文件中的key
+     * @param diary 日记JSON
+     */
+    public static DiaryIndexEntry of(String year, String key, JSONObject diary) {
+        JSONArray imageUrlsArray = diary.optJSONArray("imageUrls");
+        List<String> imageUrls = new ArrayList<>();
+        if (imageUrlsArray != null) {
+            for (int i = 0; i < imageUrlsArray.length(); i++) {
+                imageUrls.add(imageUrlsArray.getString(i));
+            }
+        }
+        return new DiaryIndexEntry(year, key,
+                diary.optString("diaryId", ""),
+                diary.optString("editorContent", ""),
+                diary.optString("preview", null),
+                diary.optString("createTime", ""),
+                diary.optString("logTime", ""),
+                diary.optString("logWeek", ""),
+                diary.optString("logLunar", ""),
+                diary.optString("address", ""),
+                imageUrls);
+    }
+
+    /**
+     * 按字段创建索引条目，用于流式解析年度文件
+     *
+     * @param preview 保存时计算的预览，旧日记没有时为null
+     */
+    public static DiaryIndexEntry of(String year, String key, String diaryId, String editorContent, String preview,
+                                     String createTime, String logTime, String logWeek, String logLunar,
+                                     String address, List<String> imageUrls) {
+        return new DiaryIndexEntry(year, key, diaryId, editorContent, preview, createTime,
+                logTime, logWeek, logLunar, address, new ArrayList<>(imageUrls));
+    }
+
+    /**
+     * 只包含排序字段的条目，用作游标分页的查找键
+     */
+    public static DiaryIndexEntry probe(String year, String key, String logTime) {
+        return new DiaryIndexEntry(year, key, "", "", "", "", logTime, "", "", "", new ArrayList<>());
+    }
+
+    /**
+     * 排在该日期所有日记之前的查找键，用于按日期范围定位
+     */
+    public static DiaryIndexEntry probeBefore(String logTime) {
+        return probe("", "\uffff", logTime);
+    }
+
+    /**
+     * 排在该日期所有日记之后的查找键，用于按不含的上界定位
+     */
+    public static DiaryIndexEntry probeAfter(String logTime) {
+        return probe("", "", logTime);
+    }
+
+    /**
+     * 返回替换了日记内容的副本，用于延迟加载的editorContent
+     */
+    public DiaryIndexEntry withEditorContent(String content) {
+        return new DiaryIndexEntry(year, key, diaryId, content, preview, createTime,
+                logTime, logWeek, logLunar, address, imageUrls);
+    }
+
+    /**
+     * 估算该条目占用的堆内存字节数，用于缓存容量控制；editorContent通常占绝大部分，必须计入
+     */
+    public long estimateBytes() {
+        long bytes = 64;
+        bytes += stringBytes(year) + stringBytes(key) + stringBytes(diaryId) + stringBytes(editorContent)
+                + stringBytes(preview) + stringBytes(createTime) + stringBytes(logTime) + stringBytes(logWeek)
+                + stringBytes(logLunar) + stringBytes(address);
+        for (String url : imageUrls) {
+            bytes += stringBytes(url) + 8;
+        }
+        return bytes;
+    }
+
+    private static long stringBytes(String value) {
+        return value == null ? 0 : 40 + 2L * value.length();
+    }
+
+    public String getYear() {
+        return year;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getDiaryId() {
+        return diaryId;
+    }
+
+    public String getEditorContent() {
+        return editorContent;
+    }
+
+    /**
+     * 去掉标签后的内容预览；流式读取且内容未回读时可能为null
+     */
+    public String getPreview() {
+        return preview;
+    }
+
+    public String getCreateTime() {
+        return createTime;
+    }
+
+    public String getLogTime() {
+        return logTime;
+    }
+
+    public String getLogWeek() {
+        return logWeek;
+    }
+
+    public String getLogLunar() {
+        return logLunar;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public List<String> getImageUrls() {
+        return imageUrls;
+    }
+}
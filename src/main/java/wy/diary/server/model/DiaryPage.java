@@ -0,0 +1,24 @@
+package wy.diary.server.model;
+
+import java.util.List;
+
+/**
+ * 从日记存储中读取的一页日记
+ */
+public class DiaryPage {
+    private final List<DiaryIndexEntry> records;
+    private final int totalCount;
+
+    public DiaryPage(List<DiaryIndexEntry> records, int totalCount) {
+        this.records = records;
+        this.totalCount = totalCount;
+    }
+
+    public List<DiaryIndexEntry> getRecords() {
+        return records;
+    }
+
+    public int getTotalCount() {
+        return totalCount;
+    }
+}
@@ -0,0 +1,8 @@
+package wy.diary.server.model;
+
+/**
+ * 日记数据来源：文件存储（/api/diary）和数据库存储（/api/db/diary）的数据相互独立
+ */
+public enum DiarySource {
+    FILE, DATABASE
+}
@@ -12,7 +12,9 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -67,18 +69,26 @@ public class BackupQueueService implements InitializingBean {
     @Value("${backup.worker.threads:1}")
     private int backupWorkerThreads;
     
+    // 虚拟线程模式下工作线程等待队列和读写文件时不占用平台线程
+    @Value("${diary.threads.virtual:false}")
+    private boolean virtualThreads;
+    
     // 线程池用于执行备份任务
     private ThreadPoolExecutor executor;
     
     @Override
     public void afterPropertiesSet() throws Exception {
         // 初始化线程池，设置核心线程数为配置的backupWorkerThreads
+        ThreadFactory threadFactory = virtualThreads
+                ? Thread.ofVirtual().name("backup-worker-", 0).factory()
+                : Executors.defaultThreadFactory();
         executor = new ThreadPoolExecutor(
                 backupWorkerThreads,
                 backupWorkerThreads,
                 0L,
                 TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<>()
+                new LinkedBlockingQueue<>(),
+                threadFactory
         );
         
         // 启动消费者线程处理队列中的任务
@@ -86,7 +96,7 @@ public class BackupQueueService implements InitializingBean {
             executor.execute(this::processBackupQueue);
         }
         
-        logger.info("备份队列服务已启动，工作线程数: {}", backupWorkerThreads);
+        logger.info("备份队列服务已启动，工作线程数: {}，虚拟线程: {}", backupWorkerThreads, virtualThreads);
     }
     
     /**
@@ -9,10 +9,13 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import wy.diary.server.dao.DiaryDao;
 import wy.diary.server.entity.Diary;
+import wy.diary.server.store.DiaryStore;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.json.JSONObject;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.zip.ZipEntry;
@@ -22,9 +25,18 @@ import java.util.zip.ZipOutputStream;
 public class BackupService implements InitializingBean {
     private static final Logger logger = LoggerFactory.getLogger(BackupService.class);
 
+    // 图片目录中存放去重后图片内容的目录，各日记的图片文件已包含这些内容
+    private static final String IMAGE_BLOB_DIR = ".blobs";
+
+    // 内容相同的图片只写入一次，其余图片在该清单中记录 "图片路径<TAB>已写入的图片路径"
+    private static final String IMAGE_LINKS_ENTRY = "links.txt";
+
     @Autowired
     private DiaryDao diaryDao;
 
+    @Autowired
+    private DiaryStore diaryStore;
+
     @Value("${image.storage.path}")
     private String imageStoragePath;
 
@@ -88,10 +100,17 @@ public class BackupService implements InitializingBean {
                 backupUserDataToZip(zipOut, openId);
             }
 
+            // 备份文件存储中的日记（json存储含已归档的往年数据，segment存储按年份导出）
+            for (String openId : diaryStore.listUsers()) {
+                backupFileDiariesToZip(zipOut, openId);
+            }
+
             // 备份图片文件
             File imageDir = new File(imageStoragePath);
             if (imageDir.exists()) {
-                addFolderToZip(imageDir, "images/", zipOut);
+                Map<String, String> links = new LinkedHashMap<>();
+                addFolderToZip(imageDir, "images/", zipOut, new HashMap<>(), links);
+                writeImageLinks(zipOut, "images/", links);
             }
         }
 
@@ -135,6 +154,28 @@ public class BackupService implements InitializingBean {
         }
     }
 
+    /**
+     * 将文件存储中的用户日记备份到ZIP文件中，每年一个JSON文件；已归档的年份解压后以JSON写入
+     */
+    private void backupFileDiariesToZip(ZipOutputStream zipOut, String openId) {
+        try {
+            for (Map.Entry<String, JSONObject> yearEntry : diaryStore.readYears(openId).entrySet()) {
+                String year = yearEntry.getKey();
+                JSONObject yearData = yearEntry.getValue();
+                if (yearData.isEmpty()) {
+                    continue;
+                }
+                ZipEntry zipEntry = new ZipEntry("file-diary/" + openId + "-" + year + ".json");
+                zipOut.putNextEntry(zipEntry);
+                zipOut.write(yearData.toString(2).getBytes("UTF-8"));
+                zipOut.closeEntry();
+                logger.debug("已备份用户 {} 文件存储中 {} 年的数据，共 {} 条日记", openId, year, yearData.length());
+            }
+        } catch (Exception e) {
+            logger.error("备份用户 {} 文件存储数据失败", openId, e);
+        }
+    }
+
     /**
      * 获取用户日记数据，按年份分组
      */
@@ -221,13 +262,19 @@ public class BackupService implements InitializingBean {
     /**
      * 添加目录到ZIP文件
      */
-    private void addFolderToZip(File folder, String parentPath, ZipOutputStream zipOut) throws IOException {
+    private void addFolderToZip(File folder, String parentPath, ZipOutputStream zipOut,
+                                Map<Object, String> written, Map<String, String> links) throws IOException {
         File[] files = folder.listFiles();
         if (files == null) return;
         
         for (File file : files) {
             if (file.isDirectory()) {
-                addFolderToZip(file, parentPath + file.getName() + "/", zipOut);
+                if (!IMAGE_BLOB_DIR.equals(file.getName())) {
+                    addFolderToZip(file, parentPath + file.getName() + "/", zipOut, written, links);
+                }
+                continue;
+            }
+            if (isWritten(file, parentPath + file.getName(), written, links)) {
                 continue;
             }
             
@@ -292,6 +339,7 @@ public class BackupService implements InitializingBean {
         try (ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(tempFile))) {
             // 备份用户日记数据
             backupUserDataToZip(zipOut, userId);
+            backupFileDiariesToZip(zipOut, userId);
             
             // 用户图片目录
             File userImagesDir = new File(imageStoragePath, userId);
@@ -299,7 +347,9 @@ public class BackupService implements InitializingBean {
             // 检查并备份图片目录
             if (userImagesDir.exists() && userImagesDir.isDirectory()) {
                 logger.info("正在备份用户图片目录: {}", userImagesDir.getAbsolutePath());
-                addDirectoryToZip(zipOut, userImagesDir, userId + "/images/");
+                Map<String, String> links = new LinkedHashMap<>();
+                addDirectoryToZip(zipOut, userImagesDir, userId + "/images/", new HashMap<>(), links);
+                writeImageLinks(zipOut, userId + "/images/", links);
             } else {
                 logger.warn("用户图片目录不存在: {}", userImagesDir.getAbsolutePath());
             }
@@ -315,9 +365,12 @@ public class BackupService implements InitializingBean {
      * @param zipOut ZIP输出流
      * @param directory 要添加的目录
      * @param basePath ZIP内的基础路径
+     * @param written 已写入的文件（按文件标识）及其ZIP内路径
+     * @param links 内容已写入而跳过的文件
      * @throws IOException 如果添加过程中出现IO异常
      */
-    private void addDirectoryToZip(ZipOutputStream zipOut, File directory, String basePath) throws IOException {
+    private void addDirectoryToZip(ZipOutputStream zipOut, File directory, String basePath,
+                                   Map<Object, String> written, Map<String, String> links) throws IOException {
         File[] files = directory.listFiles();
         if (files == null) {
             return;
@@ -328,10 +381,13 @@ public class BackupService implements InitializingBean {
         for (File file : files) {
             if (file.isDirectory()) {
                 // 递归处理子目录
-                addDirectoryToZip(zipOut, file, basePath + file.getName() + "/");
+                addDirectoryToZip(zipOut, file, basePath + file.getName() + "/", written, links);
             } else {
                 // 将文件添加到ZIP
                 String entryPath = basePath + file.getName();
+                if (isWritten(file, entryPath, written, links)) {
+                    continue;
+                }
                 ZipEntry entry = new ZipEntry(entryPath);
                 zipOut.putNextEntry(entry);
                 
@@ -347,4 +403,37 @@ public class BackupService implements InitializingBean {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 同一图片内容的多个硬链接只写入一次
+     *
+     * @return 该文件的内容是否已写入ZIP，已写入时记录到links
+     */
+    private boolean isWritten(File file, String entryPath, Map<Object, String> written,
+                              Map<String, String> links) throws IOException {
+        Object fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        if (fileKey == null) {
+            return false;
+        }
+        String existing = written.putIfAbsent(fileKey, entryPath);
+        if (existing == null) {
+            return false;
+        }
+        links.put(entryPath, existing);
+        return true;
+    }
+
+    private void writeImageLinks(ZipOutputStream zipOut, String basePath, Map<String, String> links) throws IOException {
+        if (links.isEmpty()) {
+            return;
+        }
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> link : links.entrySet()) {
+            content.append(link.getKey()).append('\t').append(link.getValue()).append('\n');
+        }
+        zipOut.putNextEntry(new ZipEntry(basePath + IMAGE_LINKS_ENTRY));
+        zipOut.write(content.toString().getBytes("UTF-8"));
+        zipOut.closeEntry();
+        logger.info("备份中有 {} 张图片与已写入的图片内容相同，记录在 {}", links.size(), basePath + IMAGE_LINKS_ENTRY);
+    }
+}
@@ -0,0 +1,96 @@
+package wy.diary.server.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Year;
+
+/**
+ * 冷数据分层：把已结束年份的年度JSON文件转换为压缩归档
+ * <p>
+ * 日记保存时总是写入当年的文件，往年的文件只会因删除日记而改变，适合压缩存储。
+ * 当年的文件保持未压缩的JSON，读写路径不受影响；归档文件的读取由 {@link DiaryJournalService} 透明处理。
+ * <p>
+ * 只适用于json存储；segment存储（diary.store.engine=segment）不写年度文件，段文件本身已紧凑存储，不支持归档。
+ */
+@Service
+public class DiaryArchiveService {
+    private static final Logger logger = LoggerFactory.getLogger(DiaryArchiveService.class);
+
+    @Autowired
+    private DiaryJournalService diaryJournalService;
+
+    @Value("${diary.archive.enable:true}")
+    private boolean archiveEnabled;
+
+    @Value("${diary.store.engine:json}")
+    private String storeEngine;
+
+    /**
+     * 定时归档所有用户已结束年份的日记文件
+     */
+    @Scheduled(cron = "${diary.archive.cron:0 30 3 * * ?}")
+    public void scheduledArchive() {
+        if (!archiveEnabled) {
+            return;
+        }
+        if (isSegmentStore()) {
+            logger.warn("段文件存储(diary.store.engine=segment)不使用年度文件，跳过归档，可设置 diary.archive.enable=false");
+            return;
+        }
+        logger.info("开始归档往年日记文件");
+        try {
+            archiveClosedYears();
+        } catch (Exception e) {
+            logger.error("归档往年日记文件失败", e);
+        }
+    }
+
+    /**
+     * 归档所有用户早于今年的年度文件
+     *
+     * @throws IllegalStateException 使用段文件存储时
+     */
+    public void archiveClosedYears() throws IOException {
+        if (isSegmentStore()) {
+            throw new IllegalStateException("段文件存储(diary.store.engine=segment)不使用年度文件，不支持归档");
+        }
+        String currentYear = String.valueOf(Year.now().getValue());
+        int archived = 0;
+        long bytesBefore = 0;
+        long bytesAfter = 0;
+        for (String openid : diaryJournalService.listUsers()) {
+            for (String year : diaryJournalService.listYears(openid)) {
+                if (year.compareTo(currentYear) >= 0) {
+                    continue;
+                }
+                Path yearFile = diaryJournalService.yearFilePath(openid, year);
+                if (!Files.exists(yearFile)) {
+                    continue;
+                }
+                try {
+                    long size = Files.size(yearFile);
+                    if (diaryJournalService.archiveYear(openid, year)) {
+                        archived++;
+                        bytesBefore += size;
+                        bytesAfter += Files.size(diaryJournalService.archiveFilePath(openid, year));
+                    }
+                } catch (IOException e) {
+                    logger.error("归档日记文件失败: {}-{}", openid, year, e);
+                }
+            }
+        }
+        logger.info("往年日记归档完成，共归档 {} 个文件，{} 字节压缩为 {} 字节", archived, bytesBefore, bytesAfter);
+    }
+
+    private boolean isSegmentStore() {
+        return "segment".equals(storeEngine);
+    }
+}
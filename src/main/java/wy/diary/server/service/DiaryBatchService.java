@@ -0,0 +1,94 @@
+package wy.diary.server.service;
+
+import org.json.JSONArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import wy.diary.server.dao.DiaryQueryDao;
+import wy.diary.server.dto.DiarySaveDTO;
+import wy.diary.server.entity.Diary;
+import wy.diary.server.util.DiaryPreview;
+
+import java.util.*;
+
+/**
+ * 数据库日记批量保存，用于离线客户端一次提交积压的多篇日记；单篇保存也经由这里，与内容预览在同一个事务中写入
+ */
+@Service
+public class DiaryBatchService {
+    private static final Logger logger = LoggerFactory.getLogger(DiaryBatchService.class);
+
+    @Autowired
+    private DiaryQueryDao diaryQueryDao;
+
+    @Autowired
+    private DiaryDatabaseService diaryDatabaseService;
+
+    /**
+     * 保存一篇日记并写入内容预览，两者在同一个事务中提交，不会出现已保存但预览写入失败的日记
+     *
+     * @return 日记ID
+     */
+    @Transactional
+    public String saveDiary(DiarySaveDTO diaryDto) {
+        String diaryId = diaryDatabaseService.saveDiary(diaryDto);
+        diaryQueryDao.updatePreviews(diaryDto.getOpenId(),
+                Collections.singletonMap(diaryId, DiaryPreview.of(diaryDto.getEditorContent())));
+        return diaryId;
+    }
+
+    /**
+     * 批量保存同一用户的多篇日记，整批在一个事务中用一条INSERT写入，再用一条UPDATE写入内容预览
+     * <p>
+     * 已存在的日记ID视为重复提交（客户端重放），不再插入。
+     *
+     * @param diaryDtos 同一用户的日记，缺少diaryId的会生成一个
+     * @return 新插入的日记，按日记ID索引；重复提交的日记不在其中
+     */
+    @Transactional
+    public Map<String, Diary> saveDiaries(String openId, List<DiarySaveDTO> diaryDtos) {
+        List<String> diaryIds = new ArrayList<>();
+        for (DiarySaveDTO dto : diaryDtos) {
+            if (dto.getDiaryId() == null || dto.getDiaryId().isEmpty()) {
+                dto.setDiaryId(UUID.randomUUID().toString());
+            }
+            diaryIds.add(dto.getDiaryId());
+        }
+
+        Set<String> existing = new HashSet<>(diaryQueryDao.getExistingDiaryIds(openId, diaryIds));
+        Map<String, Diary> inserted = new LinkedHashMap<>();
+        for (DiarySaveDTO dto : diaryDtos) {
+            // 同一批内重复的ID也只插入一次
+            if (!existing.contains(dto.getDiaryId())) {
+                inserted.putIfAbsent(dto.getDiaryId(), toDiary(openId, dto));
+            }
+        }
+
+        if (!inserted.isEmpty()) {
+            diaryQueryDao.insertDiaries(new ArrayList<>(inserted.values()));
+            Map<String, String> previews = new LinkedHashMap<>();
+            for (Diary diary : inserted.values()) {
+                previews.put(diary.getDiaryId(), DiaryPreview.of(diary.getEditorContent()));
+            }
+            diaryQueryDao.updatePreviews(openId, previews);
+        }
+        logger.info("批量保存用户 {} 的日记: 提交 {} 篇，新增 {} 篇", openId, diaryDtos.size(), inserted.size());
+        return inserted;
+    }
+
+    private Diary toDiary(String openId, DiarySaveDTO dto) {
+        Diary diary = new Diary();
+        diary.setDiaryId(dto.getDiaryId());
+        diary.setOpenId(openId);
+        diary.setEditorContent(dto.getEditorContent());
+        diary.setCreateTime(dto.getCreateTime());
+        diary.setLogTime(dto.getLogTime());
+        diary.setLogWeek(dto.getLogWeek());
+        diary.setLogLunar(dto.getLogLunar());
+        diary.setAddress(dto.getAddress());
+        diary.setImageUrls(dto.getImageUrls() != null ? new JSONArray(dto.getImageUrls()).toString() : null);
+        return diary;
+    }
+}
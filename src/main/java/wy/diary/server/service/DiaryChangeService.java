@@ -0,0 +1,362 @@
+package wy.diary.server.service;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import wy.diary.server.model.DiarySource;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 日记变更序列，用于客户端增量同步
+ * <p>
+ * 每个用户一个只追加的变更日志 {diary.storage.path}/changes/{来源}/{openid}.log，每行一条变更，
+ * 序号按用户单调递增。日志的第一行是 reset 记录，表示更早的变更已不可用：
+ * 客户端持有的序号小于它时需要重新拉取完整列表。
+ * 日志超过 diary.changes.max-entries 条后只保留较新的一半，并写入新的 reset 记录。
+ * <p>
+ * 写入失败时已分配的序号不再复用，改为追加一条序号更大的 reset 记录；reset 记录也写不进去时，
+ * 在内存中要求所有客户端重新同步，并在下次写入前重试。
+ * 内存中每隔 INDEX_INTERVAL 个序号记录一次行的文件偏移，读取增量时从 since 之前最近的偏移开始读。
+ */
+@Service
+public class DiaryChangeService {
+    private static final Logger logger = LoggerFactory.getLogger(DiaryChangeService.class);
+
+    private static final String CHANGES_DIR = "changes";
+    private static final String OP_PUT = "put";
+    private static final String OP_DELETE = "delete";
+    private static final String OP_RESET = "reset";
+    // 稀疏偏移索引的间隔（序号数）
+    private static final int INDEX_INTERVAL = 64;
+
+    @Value("${diary.storage.path:diary}")
+    private String storagePath;
+
+    // 单个用户保留的变更条数上限
+    @Value("${diary.changes.max-entries:10000}")
+    private int maxEntries;
+
+    private final ConcurrentMap<String, UserLog> logs = new ConcurrentHashMap<>();
+
+    /**
+     * 记录一次保存
+     *
+     * @param diary 列表接口格式的日记记录
+     */
+    public void onSave(DiarySource source, String openid, String diaryId, Map<String, Object> diary) {
+        JSONObject change = new JSONObject();
+        change.put("op", OP_PUT);
+        change.put("diaryId", diaryId);
+        change.put("diary", diary);
+        append(source, openid, change);
+    }
+
+    /**
+     * 记录一次删除
+     */
+    public void onDelete(DiarySource source, String openid, String diaryId) {
+        JSONObject change = new JSONObject();
+        change.put("op", OP_DELETE);
+        change.put("diaryId", diaryId);
+        append(source, openid, change);
+    }
+
+    /**
+     * 追加一条reset记录，之前同步过的客户端都需要重新拉取完整列表；用于批量导入等不逐条记录变更的写入
+     */
+    public void requireResync(DiarySource source, String openid) throws IOException {
+        UserLog log = logOf(source, openid);
+        synchronized (log) {
+            writeReset(log, log.resetPending);
+        }
+    }
+
+    /**
+     * 读取序号大于 since 的变更
+     *
+     * @param since 客户端已同步到的序号
+     * @param limit 最多返回的变更条数
+     * @return 包含changes、latestSeq、hasMore、resync的数据；resync为true时客户端需要重新拉取完整列表，
+     * 之后从返回的latestSeq继续增量同步
+     */
+    public Map<String, Object> getChanges(DiarySource source, String openid, long since, int limit) throws IOException {
+        UserLog log = logOf(source, openid);
+        List<Map<String, Object>> changes = new ArrayList<>();
+        boolean hasMore = false;
+        long latestSeq;
+        boolean resync;
+        synchronized (log) {
+            latestSeq = log.lastSeq;
+            // 序号比服务端还新说明变更日志丢失过末尾，同样要求重新同步
+            resync = since < log.resetSeq || since > log.lastSeq;
+            if (!resync && since < log.lastSeq) {
+                // 从 since 之后第一条变更之前最近的索引位置开始读
+                Map.Entry<Long, Long> start = log.offsets.floorEntry(since + 1);
+                try (FileChannel channel = FileChannel.open(log.path, StandardOpenOption.READ);
+                     BufferedReader reader = new BufferedReader(new InputStreamReader(
+                             Channels.newInputStream(channel.position(start != null ? start.getValue() : 0)),
+                             StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        JSONObject change = parse(line);
+                        if (change == null || change.getLong("seq") <= since || OP_RESET.equals(change.getString("op"))) {
+                            continue;
+                        }
+                        if (changes.size() >= limit) {
+                            hasMore = true;
+                            break;
+                        }
+                        changes.add(change.toMap());
+                    }
+                }
+            }
+        }
+
+        Map<String, Object> data = new HashMap<>();
+        data.put("changes", changes);
+        data.put("latestSeq", hasMore ? (Object) changes.get(changes.size() - 1).get("seq") : latestSeq);
+        data.put("hasMore", hasMore);
+        data.put("resync", resync);
+        return data;
+    }
+
+    private void append(DiarySource source, String openid, JSONObject change) {
+        UserLog log;
+        try {
+            log = logOf(source, openid);
+        } catch (IOException e) {
+            logger.error("加载用户 {} 的变更日志失败", openid, e);
+            return;
+        }
+        synchronized (log) {
+            if (log.resetPending) {
+                try {
+                    writeReset(log, true);
+                } catch (IOException e) {
+                    logger.error("写入用户 {} 的reset记录失败，本次变更不记录", openid, e);
+                    return;
+                }
+            }
+
+            long seq = ++log.lastSeq;
+            change.put("seq", seq);
+            try {
+                writeLine(log, seq, change.toString());
+                log.entries++;
+            } catch (IOException e) {
+                // 序号已分配，客户端可能已经看到它，不能复用；写入更大序号的reset记录，让同步过的客户端重新拉取
+                logger.error("记录用户 {} 的日记变更失败", openid, e);
+                try {
+                    writeReset(log, true);
+                } catch (IOException ex) {
+                    logger.error("写入用户 {} 的reset记录失败，下次写入前重试", openid, ex);
+                }
+                return;
+            }
+
+            if (log.entries > maxEntries) {
+                try {
+                    compact(log);
+                } catch (IOException e) {
+                    logger.error("压缩变更日志失败: {}", log.path, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 追加一条reset记录，必须持有log的锁；写入失败时reset仍在内存中生效，并在下次写入前重试
+     *
+     * @param afterFailure 之前的写入失败过，可能在末尾留下半行
+     */
+    private void writeReset(UserLog log, boolean afterFailure) throws IOException {
+        long seq = ++log.lastSeq;
+        log.resetSeq = seq;
+        log.resetPending = true;
+        String line = resetRecord(seq).toString();
+        if (afterFailure) {
+            // 先换行把可能残留的半行隔开，空行读取时会被跳过
+            log.size = Files.size(log.path);
+            line = "\n" + line;
+        }
+        writeLine(log, seq, line);
+        log.resetPending = false;
+    }
+
+    /**
+     * 追加一行并记录偏移索引，必须持有log的锁
+     */
+    private static void writeLine(UserLog log, long seq, String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        long offset = log.size;
+        Files.write(log.path, bytes, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        log.size = offset + bytes.length;
+        log.index(seq, offset);
+    }
+
+    private UserLog logOf(DiarySource source, String openid) throws IOException {
+        String cacheKey = cacheKey(source, openid);
+        UserLog log = logs.get(cacheKey);
+        if (log != null) {
+            return log;
+        }
+
+        Path path = Paths.get(storagePath).resolve(CHANGES_DIR)
+                .resolve(source.name().toLowerCase()).resolve(openid + ".log");
+        UserLog loaded = new UserLog(path);
+        if (Files.exists(path)) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                long offset = 0;
+                while ((line = reader.readLine()) != null) {
+                    long lineOffset = offset;
+                    // 只写入过\n换行
+                    offset += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                    JSONObject change = parse(line);
+                    if (change == null) {
+                        continue;
+                    }
+                    long seq = change.getLong("seq");
+                    loaded.index(seq, lineOffset);
+                    if (OP_RESET.equals(change.getString("op"))) {
+                        loaded.resetSeq = seq;
+                    } else {
+                        loaded.entries++;
+                    }
+                    loaded.lastSeq = Math.max(loaded.lastSeq, seq);
+                }
+            }
+            loaded.size = Files.size(path);
+            // 崩溃留下的半行：下次写入前先写reset记录把它隔开
+            loaded.resetPending = loaded.size > 0 && !endsWithNewline(path);
+        } else {
+            // 变更日志之前的数据客户端无法增量获取，从序号1开始并要求首次同步拉取完整列表
+            Files.createDirectories(path.getParent());
+            loaded.lastSeq = 1;
+            loaded.resetSeq = 1;
+            byte[] reset = (resetRecord(1).toString() + "\n").getBytes(StandardCharsets.UTF_8);
+            Files.write(path, reset);
+            loaded.size = reset.length;
+            loaded.index(1, 0);
+        }
+
+        UserLog existing = logs.putIfAbsent(cacheKey, loaded);
+        return existing != null ? existing : loaded;
+    }
+
+    /**
+     * 只保留较新的一半变更，必须持有log的锁
+     */
+    private void compact(UserLog log) throws IOException {
+        List<String> kept = new ArrayList<>();
+        List<Long> keptSeqs = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(log.path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONObject change = parse(line);
+                if (change != null && !OP_RESET.equals(change.getString("op"))) {
+                    kept.add(line);
+                    keptSeqs.add(change.getLong("seq"));
+                }
+            }
+        }
+        int from = Math.max(kept.size() - maxEntries / 2, 0);
+        kept = kept.subList(from, kept.size());
+        keptSeqs = keptSeqs.subList(from, keptSeqs.size());
+        long resetSeq = kept.isEmpty() ? log.lastSeq : keptSeqs.get(0) - 1;
+        // 日志中间可能有 requireResync 写入的reset记录，不能回退
+        resetSeq = Math.max(resetSeq, log.resetSeq);
+
+        TreeMap<Long, Long> offsets = new TreeMap<>();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        offsets.put(resetSeq, 0L);
+        content.write((resetRecord(resetSeq).toString() + "\n").getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < kept.size(); i++) {
+            if (keptSeqs.get(i) - offsets.lastKey() >= INDEX_INTERVAL) {
+                offsets.put(keptSeqs.get(i), (long) content.size());
+            }
+            content.write((kept.get(i) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        Path temp = log.path.resolveSibling(log.path.getFileName() + ".tmp");
+        Files.write(temp, content.toByteArray());
+        Files.move(temp, log.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.resetSeq = resetSeq;
+        log.entries = kept.size();
+        log.size = content.size();
+        log.offsets.clear();
+        log.offsets.putAll(offsets);
+        logger.debug("已压缩变更日志: {}，保留 {} 条", log.path, kept.size());
+    }
+
+    private static boolean endsWithNewline(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            return last.get(0) == '\n';
+        }
+    }
+
+    private static JSONObject resetRecord(long seq) {
+        JSONObject reset = new JSONObject();
+        reset.put("seq", seq);
+        reset.put("op", OP_RESET);
+        return reset;
+    }
+
+    private static JSONObject parse(String line) {
+        if (line.isBlank()) {
+            return null;
+        }
+        try {
+            return new JSONObject(line);
+        } catch (JSONException e) {
+            // 崩溃时写了一半的末尾记录
+            return null;
+        }
+    }
+
+    private static String cacheKey(DiarySource source, String openid) {
+        return source + ":" + openid;
+    }
+
+    /**
+     * 单个用户的变更日志状态，由自身加锁保护
+     */
+    private static class UserLog {
+        private final Path path;
+        private long lastSeq;
+        private long resetSeq;
+        private int entries;
+        // 日志文件的字节数，即下一行的偏移
+        private long size;
+        // 有reset记录未能写入日志，下次写入前重试
+        private boolean resetPending;
+        // 序号到该行文件偏移的稀疏索引，序号随偏移递增
+        private final TreeMap<Long, Long> offsets = new TreeMap<>();
+
+        UserLog(Path path) {
+            this.path = path;
+        }
+
+        void index(long seq, long offset) {
+            if (offsets.isEmpty() || seq - offsets.lastKey() >= INDEX_INTERVAL) {
+                offsets.put(seq, offset);
+            }
+        }
+    }
+}
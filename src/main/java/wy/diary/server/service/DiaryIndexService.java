@@ -0,0 +1,217 @@
+package wy.diary.server.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import wy.diary.server.model.DiaryIndexEntry;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * 用户日记索引缓存
+ * <p>
+ * 按openid缓存该用户所有日记按日期降序排好的索引，列表分页直接从缓存中截取，不再读盘。
+ * 保存和删除日记时原地更新已缓存的索引；缓存总大小受 diary.index-cache.max-bytes 限制，
+ * 超出后按LRU淘汰。命中率等指标通过 /actuator/metrics 的 diary.index.cache.* 查看。
+ */
+@Service
+public class DiaryIndexService implements InitializingBean {
+    private static final Logger logger = LoggerFactory.getLogger(DiaryIndexService.class);
+
+    @Autowired
+    private DiaryJournalService diaryJournalService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 缓存占用内存上限（估算值），默认64MB
+    @Value("${diary.index-cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    // 日记文件总大小超过该值的用户不进入缓存，列表改为流式读取，默认8MB
+    @Value("${diary.index-cache.max-user-bytes:8388608}")
+    private long maxUserBytes;
+
+    // accessOrder=true，迭代顺序即LRU顺序；以下字段均由this加锁保护
+    private final LinkedHashMap<String, UserIndex> cache = new LinkedHashMap<>(16, 0.75f, true);
+    // 正在加载索引的用户及加载期间的写入代数，用于丢弃加载期间被并发修改的索引；加载结束即移除
+    private final Map<String, LoadState> loads = new HashMap<>();
+    private long totalBytes;
+
+    private Counter hitCounter;
+    private Counter missCounter;
+    private Counter evictionCounter;
+
+    @Override
+    public void afterPropertiesSet() {
+        hitCounter = Counter.builder("diary.index.cache.hits").register(meterRegistry);
+        missCounter = Counter.builder("diary.index.cache.misses").register(meterRegistry);
+        evictionCounter = Counter.builder("diary.index.cache.evictions").register(meterRegistry);
+        Gauge.builder("diary.index.cache.bytes", this, DiaryIndexService::cachedBytes).register(meterRegistry);
+        Gauge.builder("diary.index.cache.users", this, DiaryIndexService::cachedUsers).register(meterRegistry);
+        logger.info("日记索引缓存已启用，容量上限: {} 字节", maxBytes);
+    }
+
+    /**
+     * 获取用户按日期降序排列的日记索引，未命中时从存储加载
+     *
+     * @return 不可修改的索引列表；用户数据量超过 max-user-bytes 且未缓存时返回null，由调用方流式读取
+     */
+    public List<DiaryIndexEntry> getIndex(String openid) throws IOException {
+        LoadState state;
+        long generation;
+        synchronized (this) {
+            UserIndex cached = cache.get(openid);
+            if (cached != null) {
+                hitCounter.increment();
+                return cached.entries;
+            }
+            missCounter.increment();
+            state = loads.computeIfAbsent(openid, k -> new LoadState());
+            state.loaders++;
+            generation = state.generation;
+        }
+
+        List<DiaryIndexEntry> entries = null;
+        try {
+            if (diaryJournalService.userDataBytes(openid) > maxUserBytes) {
+                return null;
+            }
+            entries = loadIndex(openid);
+            return entries;
+        } finally {
+            synchronized (this) {
+                // 加载期间有写入则不缓存，下次请求重新加载
+                if (entries != null && state.generation == generation) {
+                    store(openid, new UserIndex(entries));
+                }
+                if (--state.loaders == 0) {
+                    loads.remove(openid);
+                }
+            }
+        }
+    }
+
+    /**
+     * 保存日记后更新缓存中的索引
+     */
+    public synchronized void onSave(String openid, String year, String key, JSONObject diary) {
+        bumpGeneration(openid);
+        UserIndex cached = cache.get(openid);
+        if (cached == null) {
+            return;
+        }
+        DiaryIndexEntry entry = DiaryIndexEntry.of(year, key, diary);
+        List<DiaryIndexEntry> entries = new ArrayList<>(cached.entries);
+        int pos = Collections.binarySearch(entries, entry, DiaryIndexEntry.NEWEST_FIRST);
+        if (pos >= 0) {
+            // 排序键含年份和key，找到即同一篇日记：写入后、更新缓存前完成的加载已包含它，替换而不是重复插入
+            entries.set(pos, entry);
+        } else {
+            entries.add(-pos - 1, entry);
+        }
+        store(openid, new UserIndex(Collections.unmodifiableList(entries)));
+    }
+
+    /**
+     * 删除日记后更新缓存中的索引
+     */
+    public synchronized void onDelete(String openid, String year, String key) {
+        bumpGeneration(openid);
+        UserIndex cached = cache.get(openid);
+        if (cached == null) {
+            return;
+        }
+        List<DiaryIndexEntry> entries = new ArrayList<>(cached.entries);
+        entries.removeIf(entry -> entry.getYear().equals(year) && entry.getKey().equals(key));
+        store(openid, new UserIndex(Collections.unmodifiableList(entries)));
+    }
+
+    /**
+     * 使用户的缓存失效
+     */
+    public synchronized void invalidate(String openid) {
+        bumpGeneration(openid);
+        UserIndex removed = cache.remove(openid);
+        if (removed != null) {
+            totalBytes -= removed.bytes;
+        }
+    }
+
+    private List<DiaryIndexEntry> loadIndex(String openid) throws IOException {
+        List<DiaryIndexEntry> entries = new ArrayList<>();
+        for (String year : diaryJournalService.listYears(openid)) {
+            JSONObject json = diaryJournalService.readYear(openid, year);
+            for (String key : json.keySet()) {
+                entries.add(DiaryIndexEntry.of(year, key, json.getJSONObject(key)));
+            }
+        }
+        entries.sort(DiaryIndexEntry.NEWEST_FIRST);
+        return Collections.unmodifiableList(entries);
+    }
+
+    private void store(String openid, UserIndex index) {
+        UserIndex previous = cache.put(openid, index);
+        if (previous != null) {
+            totalBytes -= previous.bytes;
+        }
+        totalBytes += index.bytes;
+
+        // 超出容量时从最久未访问的用户开始淘汰
+        Iterator<Map.Entry<String, UserIndex>> iterator = cache.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            UserIndex evicted = iterator.next().getValue();
+            iterator.remove();
+            totalBytes -= evicted.bytes;
+            evictionCounter.increment();
+        }
+    }
+
+    private void bumpGeneration(String openid) {
+        LoadState state = loads.get(openid);
+        if (state != null) {
+            state.generation++;
+        }
+    }
+
+    private synchronized double cachedBytes() {
+        return totalBytes;
+    }
+
+    private synchronized double cachedUsers() {
+        return cache.size();
+    }
+
+    /**
+     * 正在进行的索引加载
+     */
+    private static class LoadState {
+        private int loaders;
+        private long generation;
+    }
+
+    /**
+     * 单个用户的缓存索引，占用按条目估算（含editorContent）
+     */
+    private static class UserIndex {
+        private final List<DiaryIndexEntry> entries;
+        private final long bytes;
+
+        UserIndex(List<DiaryIndexEntry> entries) {
+            this.entries = entries;
+            long size = 64;
+            for (DiaryIndexEntry entry : entries) {
+                size += entry.estimateBytes() + 8;
+            }
+            this.bytes = size;
+        }
+    }
+}
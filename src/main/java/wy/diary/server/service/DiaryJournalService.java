@@ -0,0 +1,731 @@
+package wy.diary.server.service;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import wy.diary.server.util.DiaryArchiveFile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 日记追加写日志服务
+ * <p>
+ * 每个用户每年对应一个日志段 journal/{openid}-{year}.log，保存和删除只在日志末尾追加一行记录，
+ * 由单个写线程批量写入并对每个日志段只做一次fsync（组提交）。
+ * 日志超过阈值或定时任务触发时执行检查点：把日志合并进 {openid}-{year}.json 后清空日志，
+ * 因此年度JSON文件是日志的物化视图，读取时以"JSON + 日志回放"为准。
+ * <p>
+ * 已结束的年份可由 {@link DiaryArchiveService} 转换为压缩归档 {openid}-{year}.arc，
+ * 读取时透明解压；归档年份的检查点直接重写归档，不再生成JSON文件。
+ */
+@Service
+public class DiaryJournalService implements InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(DiaryJournalService.class);
+
+    private static final String JOURNAL_DIR = "journal";
+    private static final String OP_PUT = "put";
+    private static final String OP_DELETE = "del";
+    private static final String ARCHIVE_SUFFIX = ".arc";
+
+    @Value("${diary.storage.path:diary}")
+    private String storagePath;
+
+    // 日志段超过该字节数后触发检查点
+    @Value("${diary.journal.checkpoint-bytes:1048576}")
+    private long checkpointBytes;
+
+    // 一次组提交最多合并的写请求数
+    @Value("${diary.journal.group-commit-size:128}")
+    private int groupCommitSize;
+
+    // 写请求队列，所有写操作和检查点都由写线程串行执行
+    private final BlockingQueue<JournalTask> taskQueue = new LinkedBlockingQueue<>();
+
+    // 以下两个Map只在写线程中访问，检查点后移除对应的日志段，只保留最近有写入的
+    private final Map<String, FileChannel> openLogs = new HashMap<>();
+    private final Map<String, Set<String>> yearKeys = new HashMap<>();
+
+    // 检查点替换年度文件时与读操作互斥
+    private final ConcurrentMap<String, ReadWriteLock> fileLocks = new ConcurrentHashMap<>();
+
+    private volatile boolean running;
+    private Thread writerThread;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Files.createDirectories(journalDir());
+
+        running = true;
+        writerThread = new Thread(this::processTaskQueue, "diary-journal-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        // 启动时把遗留的日志合并进年度文件，重建物化视图
+        checkpointAll();
+        logger.info("日记日志服务已启动，日志目录: {}, 检查点阈值: {} 字节", journalDir(), checkpointBytes);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        running = false;
+        if (writerThread != null) {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        for (String fileId : new ArrayList<>(openLogs.keySet())) {
+            try {
+                checkpoint(fileId);
+            } catch (IOException e) {
+                logger.error("关闭时执行检查点失败: {}", fileId, e);
+            }
+        }
+        for (FileChannel channel : openLogs.values()) {
+            channel.close();
+        }
+        openLogs.clear();
+        logger.info("日记日志服务已关闭");
+    }
+
+    /**
+     * 追加一篇日记，key由写线程按 "logTime + 两位序号" 分配
+     *
+     * @return 分配到的日记key
+     */
+    public String appendPut(String openid, String year, String logTime, JSONObject diary) throws IOException {
+        JournalTask task = new JournalTask(TaskType.PUT, openid + "-" + year);
+        task.logTime = logTime;
+        task.diary = diary;
+        return submit(task);
+    }
+
+    /**
+     * 批量追加同一用户同一年的多篇日记
+     * <p>
+     * 所有记录一次性进入写队列，由写线程在同一批中分配key、写入日志并只做一次fsync
+     * （超过 diary.journal.group-commit-size 时分成多批）。
+     *
+     * @return 按输入顺序分配到的日记key，写入失败的日记对应位置为null
+     */
+    public List<String> appendPutAll(String openid, String year, List<JSONObject> diaries) throws IOException {
+        List<JournalTask> tasks = new ArrayList<>(diaries.size());
+        for (JSONObject diary : diaries) {
+            JournalTask task = new JournalTask(TaskType.PUT, openid + "-" + year);
+            task.logTime = diary.optString("logTime", "");
+            task.diary = diary;
+            tasks.add(task);
+        }
+        if (!running) {
+            throw new IOException("日记日志服务未运行");
+        }
+        taskQueue.addAll(tasks);
+
+        List<String> keys = new ArrayList<>(tasks.size());
+        for (JournalTask task : tasks) {
+            try {
+                keys.add(await(task));
+            } catch (IOException e) {
+                logger.error("批量写入日记失败: {}-{}", openid, year, e);
+                keys.add(null);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 追加一条删除记录；由写线程判断key是否仍存在，并发删除同一篇日记时只有一个成功
+     *
+     * @return 是否删除了日记；key已不存在时不写日志，返回false
+     */
+    public boolean appendDelete(String openid, String year, String key) throws IOException {
+        JournalTask task = new JournalTask(TaskType.DELETE, openid + "-" + year);
+        task.key = key;
+        return submit(task) != null;
+    }
+
+    /**
+     * 读取某年的日记视图（年度JSON + 日志回放）
+     */
+    public JSONObject readYear(String openid, String year) throws IOException {
+        return readYearView(openid + "-" + year);
+    }
+
+    /**
+     * 读取某年的一篇日记，归档年份只解压所在的数据块
+     *
+     * @return 不存在或已删除时返回null
+     */
+    public JSONObject readDiary(String openid, String year, String key) throws IOException {
+        String fileId = openid + "-" + year;
+        ReadWriteLock lock = lockFor(fileId);
+        lock.readLock().lock();
+        try {
+            Map<String, JSONObject> overlay = loadLogOverlay(fileId);
+            if (overlay.containsKey(key)) {
+                return overlay.get(key);
+            }
+            Path yearPath = yearFile(fileId);
+            if (Files.exists(yearPath)) {
+                return new JSONObject(new String(Files.readAllBytes(yearPath), StandardCharsets.UTF_8)).optJSONObject(key);
+            }
+            Path archivePath = archiveFile(fileId);
+            if (Files.exists(archivePath)) {
+                return DiaryArchiveFile.readEntry(archivePath, key);
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 在某年的读锁内执行读取，期间不会发生检查点替换年度文件，
+     * 供需要直接解析年度文件的调用方使用
+     */
+    public <T> T withReadLock(String openid, String year, YearReader<T> reader) throws IOException {
+        ReadWriteLock lock = lockFor(openid + "-" + year);
+        lock.readLock().lock();
+        try {
+            return reader.read();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 某年尚未合并进年度文件的日志修改，value为null表示已删除；需在 {@link #withReadLock} 内调用
+     */
+    public Map<String, JSONObject> readLogOverlay(String openid, String year) throws IOException {
+        return loadLogOverlay(openid + "-" + year);
+    }
+
+    /**
+     * 某年的年度JSON文件路径（文件可能不存在）
+     */
+    public Path yearFilePath(String openid, String year) {
+        return yearFile(openid + "-" + year);
+    }
+
+    /**
+     * 某年的归档文件路径（文件可能不存在）
+     */
+    public Path archiveFilePath(String openid, String year) {
+        return archiveFile(openid + "-" + year);
+    }
+
+    /**
+     * 用户所有年度文件和日志的总字节数，归档文件按解压后的大小计算
+     */
+    public long userDataBytes(String openid) throws IOException {
+        long total = 0;
+        for (String year : listYears(openid)) {
+            String fileId = openid + "-" + year;
+            if (Files.exists(yearFile(fileId))) {
+                total += Files.size(yearFile(fileId));
+            } else if (Files.exists(archiveFile(fileId))) {
+                total += DiaryArchiveFile.rawBytes(archiveFile(fileId));
+            }
+            if (Files.exists(logFile(fileId))) {
+                total += Files.size(logFile(fileId));
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 该用户某年是否有日记数据（年度文件、归档或日志）
+     */
+    public boolean hasYear(String openid, String year) {
+        String fileId = openid + "-" + year;
+        return Files.exists(yearFile(fileId)) || Files.exists(archiveFile(fileId)) || Files.exists(logFile(fileId));
+    }
+
+    /**
+     * 列出该用户所有有数据的年份，升序
+     */
+    public List<String> listYears(String openid) throws IOException {
+        Set<String> years = new TreeSet<>();
+        Path dirPath = Paths.get(storagePath);
+        if (Files.exists(dirPath)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath, openid + "-*.json")) {
+                for (Path path : stream) {
+                    years.add(yearOf(path.getFileName().toString(), openid, ".json"));
+                }
+            }
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath, openid + "-*" + ARCHIVE_SUFFIX)) {
+                for (Path path : stream) {
+                    years.add(yearOf(path.getFileName().toString(), openid, ARCHIVE_SUFFIX));
+                }
+            }
+        }
+        if (Files.exists(journalDir())) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(journalDir(), openid + "-*.log")) {
+                for (Path path : stream) {
+                    years.add(yearOf(path.getFileName().toString(), openid, ".log"));
+                }
+            }
+        }
+        return new ArrayList<>(years);
+    }
+
+    /**
+     * 列出所有有日记数据的用户
+     */
+    public Set<String> listUsers() throws IOException {
+        Set<String> openids = new TreeSet<>();
+        Path dirPath = Paths.get(storagePath);
+        if (Files.exists(dirPath)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath, "*-*.{json,arc}")) {
+                for (Path path : stream) {
+                    String name = path.getFileName().toString();
+                    openids.add(name.substring(0, name.lastIndexOf('-')));
+                }
+            }
+        }
+        if (Files.exists(journalDir())) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(journalDir(), "*-*.log")) {
+                for (Path path : stream) {
+                    String name = path.getFileName().toString();
+                    openids.add(name.substring(0, name.lastIndexOf('-')));
+                }
+            }
+        }
+        return openids;
+    }
+
+    /**
+     * 把某年的年度JSON文件转换为压缩归档，与检查点互斥；该年没有JSON文件时不做任何事
+     *
+     * @return 是否完成了转换
+     */
+    public boolean archiveYear(String openid, String year) throws IOException {
+        String fileId = openid + "-" + year;
+        ReadWriteLock lock = lockFor(fileId);
+        lock.writeLock().lock();
+        try {
+            Path yearPath = yearFile(fileId);
+            if (!Files.exists(yearPath)) {
+                return false;
+            }
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(yearPath), StandardCharsets.UTF_8));
+            // 先写归档再删除JSON；中途崩溃时两者并存，读取以JSON为准，下次归档重新转换
+            DiaryArchiveFile.write(archiveFile(fileId), json);
+            Files.delete(yearPath);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 定时把所有非空日志合并进年度文件
+     */
+    @Scheduled(fixedDelayString = "${diary.journal.checkpoint-interval:300000}")
+    public void checkpointAll() {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(journalDir(), "*.log")) {
+            for (Path path : stream) {
+                if (Files.size(path) == 0) {
+                    continue;
+                }
+                String name = path.getFileName().toString();
+                taskQueue.offer(new JournalTask(TaskType.CHECKPOINT, name.substring(0, name.length() - ".log".length())));
+            }
+        } catch (IOException e) {
+            logger.error("扫描日志目录失败", e);
+        }
+    }
+
+    private String submit(JournalTask task) throws IOException {
+        if (!running) {
+            throw new IOException("日记日志服务未运行");
+        }
+        taskQueue.offer(task);
+        return await(task);
+    }
+
+    private String await(JournalTask task) throws IOException {
+        try {
+            return task.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待日志写入被中断", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * 写线程主循环：每次取出队列中积压的所有请求作为一批提交
+     */
+    private void processTaskQueue() {
+        List<JournalTask> batch = new ArrayList<>();
+        while (running || !taskQueue.isEmpty()) {
+            try {
+                JournalTask first = taskQueue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                taskQueue.drainTo(batch, groupCommitSize - 1);
+                commitBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("日志写线程被中断", e);
+                break;
+            } catch (Exception e) {
+                logger.error("日志批量提交失败", e);
+                for (JournalTask task : batch) {
+                    task.future.completeExceptionally(e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commitBatch(List<JournalTask> batch) {
+        Map<String, List<JournalTask>> writtenByFile = new LinkedHashMap<>();
+        Set<String> checkpointFiles = new LinkedHashSet<>();
+
+        for (JournalTask task : batch) {
+            if (task.type == TaskType.CHECKPOINT) {
+                checkpointFiles.add(task.fileId);
+                continue;
+            }
+            try {
+                Set<String> keys = keysOf(task.fileId);
+                if (task.type == TaskType.DELETE && !keys.contains(task.key)) {
+                    // 已被删除（例如并发的另一个删除请求），不再写入
+                    task.future.complete(null);
+                    continue;
+                }
+                FileChannel channel = openLog(task.fileId);
+
+                JSONObject record = new JSONObject();
+                if (task.type == TaskType.PUT) {
+                    // 生成key: 日期+序号
+                    int seq = 1;
+                    String fullKey;
+                    do {
+                        fullKey = task.logTime + String.format("%02d", seq++);
+                    } while (keys.contains(fullKey));
+                    task.key = fullKey;
+                    record.put("op", OP_PUT);
+                    record.put("key", fullKey);
+                    record.put("diary", task.diary);
+                } else {
+                    record.put("op", OP_DELETE);
+                    record.put("key", task.key);
+                }
+
+                appendRecord(task.fileId, channel, (record.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+                if (task.type == TaskType.PUT) {
+                    keys.add(task.key);
+                } else {
+                    keys.remove(task.key);
+                }
+                writtenByFile.computeIfAbsent(task.fileId, k -> new ArrayList<>()).add(task);
+            } catch (Exception e) {
+                logger.error("写入日志失败: {}", task.fileId, e);
+                task.future.completeExceptionally(e);
+            }
+        }
+
+        // 组提交：每个日志段只fsync一次，然后统一通知等待中的请求
+        for (Map.Entry<String, List<JournalTask>> entry : writtenByFile.entrySet()) {
+            String fileId = entry.getKey();
+            try {
+                FileChannel channel = openLogs.get(fileId);
+                channel.force(false);
+                for (JournalTask task : entry.getValue()) {
+                    task.future.complete(task.key);
+                }
+                if (channel.size() >= checkpointBytes) {
+                    checkpointFiles.add(fileId);
+                }
+            } catch (IOException e) {
+                logger.error("日志fsync失败: {}", fileId, e);
+                for (JournalTask task : entry.getValue()) {
+                    task.future.completeExceptionally(e);
+                }
+            }
+        }
+
+        for (JournalTask task : batch) {
+            if (task.type != TaskType.CHECKPOINT) {
+                continue;
+            }
+            try {
+                checkpoint(task.fileId);
+                task.future.complete(null);
+            } catch (IOException e) {
+                logger.error("执行检查点失败: {}", task.fileId, e);
+                task.future.completeExceptionally(e);
+            }
+            checkpointFiles.remove(task.fileId);
+        }
+        for (String fileId : checkpointFiles) {
+            try {
+                checkpoint(fileId);
+            } catch (IOException e) {
+                logger.error("执行检查点失败: {}", fileId, e);
+            }
+        }
+    }
+
+    /**
+     * 检查点：把日志合并进年度JSON文件（先写临时文件再原子替换），然后清空日志。
+     * 替换后到清空前若进程崩溃，下次回放日志结果不变，因此无需额外标记。
+     */
+    private void checkpoint(String fileId) throws IOException {
+        Path logPath = logFile(fileId);
+        if (!Files.exists(logPath) || Files.size(logPath) == 0) {
+            return;
+        }
+
+        ReadWriteLock lock = lockFor(fileId);
+        lock.writeLock().lock();
+        try {
+            JSONObject view = loadView(fileId);
+            Path yearPath = yearFile(fileId);
+            if (!Files.exists(yearPath) && Files.exists(archiveFile(fileId))) {
+                // 归档年份保持压缩存储
+                DiaryArchiveFile.write(archiveFile(fileId), view);
+                truncateLog(fileId, logPath);
+                logger.debug("检查点完成(归档): {}, 共 {} 条日记", fileId, view.length());
+                return;
+            }
+            Path tempPath = yearPath.resolveSibling(yearPath.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tempPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(channel, view.toString().getBytes(StandardCharsets.UTF_8));
+                channel.force(true);
+            }
+            Files.move(tempPath, yearPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            truncateLog(fileId, logPath);
+            logger.debug("检查点完成: {}, 共 {} 条日记", fileId, view.length());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 清空日志，并释放该日志段的打开文件和key集合，下次写入时重新加载
+     */
+    private void truncateLog(String fileId, Path logPath) throws IOException {
+        FileChannel logChannel = openLogs.remove(fileId);
+        yearKeys.remove(fileId);
+        if (logChannel != null) {
+            try {
+                logChannel.truncate(0);
+                logChannel.force(true);
+            } finally {
+                logChannel.close();
+            }
+        } else {
+            Files.write(logPath, new byte[0], StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
+    private JSONObject loadView(String fileId) throws IOException {
+        Path yearPath = yearFile(fileId);
+        JSONObject view;
+        if (Files.exists(yearPath)) {
+            view = new JSONObject(new String(Files.readAllBytes(yearPath), StandardCharsets.UTF_8));
+        } else if (Files.exists(archiveFile(fileId))) {
+            view = DiaryArchiveFile.readAll(archiveFile(fileId));
+        } else {
+            view = new JSONObject();
+        }
+
+        for (Map.Entry<String, JSONObject> entry : loadLogOverlay(fileId).entrySet()) {
+            if (entry.getValue() != null) {
+                view.put(entry.getKey(), entry.getValue());
+            } else {
+                view.remove(entry.getKey());
+            }
+        }
+        return view;
+    }
+
+    /**
+     * 回放日志得到每个key的最终状态，value为null表示已删除
+     */
+    private Map<String, JSONObject> loadLogOverlay(String fileId) throws IOException {
+        Map<String, JSONObject> overlay = new LinkedHashMap<>();
+        Path logPath = logFile(fileId);
+        if (!Files.exists(logPath)) {
+            return overlay;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(logPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    JSONObject record = new JSONObject(line);
+                    String key = record.getString("key");
+                    if (OP_PUT.equals(record.getString("op"))) {
+                        overlay.put(key, record.getJSONObject("diary"));
+                    } else {
+                        overlay.put(key, null);
+                    }
+                } catch (JSONException e) {
+                    // 崩溃或写入失败留下的半条记录，该请求未被确认，直接跳过
+                    logger.warn("跳过损坏的日志记录: {}", fileId);
+                }
+            }
+        }
+        return overlay;
+    }
+
+    private Set<String> keysOf(String fileId) throws IOException {
+        Set<String> keys = yearKeys.get(fileId);
+        if (keys == null) {
+            keys = new HashSet<>(readYearView(fileId).keySet());
+            yearKeys.put(fileId, keys);
+        }
+        return keys;
+    }
+
+    private JSONObject readYearView(String fileId) throws IOException {
+        ReadWriteLock lock = lockFor(fileId);
+        lock.readLock().lock();
+        try {
+            return loadView(fileId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private FileChannel openLog(String fileId) throws IOException {
+        FileChannel channel = openLogs.get(fileId);
+        if (channel == null) {
+            Path logPath = logFile(fileId);
+            channel = FileChannel.open(logPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            try {
+                if (!endsWithNewline(logPath)) {
+                    // 末尾是写了一半的记录（崩溃或截断失败），先换行，避免与下一条记录拼成一行
+                    writeFully(channel, "\n".getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            openLogs.put(fileId, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * 追加一条记录；写入失败时把日志截断回写入前的长度，不留下半条记录。
+     * 截断也失败时关闭该日志段，下次打开时补换行，半条记录只会损坏它自己那一行。
+     */
+    private void appendRecord(String fileId, FileChannel channel, byte[] bytes) throws IOException {
+        long start = channel.size();
+        try {
+            writeFully(channel, bytes);
+        } catch (IOException e) {
+            try {
+                channel.truncate(start);
+            } catch (IOException truncateError) {
+                logger.error("截断写了一半的日志记录失败: {}", fileId, truncateError);
+                openLogs.remove(fileId);
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+    private static boolean endsWithNewline(Path logPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return true;
+            }
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, size - 1);
+            return last.get(0) == '\n';
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private ReadWriteLock lockFor(String fileId) {
+        return fileLocks.computeIfAbsent(fileId, k -> new ReentrantReadWriteLock());
+    }
+
+    private Path journalDir() {
+        return Paths.get(storagePath).resolve(JOURNAL_DIR);
+    }
+
+    private Path yearFile(String fileId) {
+        return Paths.get(storagePath).resolve(fileId + ".json");
+    }
+
+    private Path archiveFile(String fileId) {
+        return Paths.get(storagePath).resolve(fileId + ARCHIVE_SUFFIX);
+    }
+
+    private Path logFile(String fileId) {
+        return journalDir().resolve(fileId + ".log");
+    }
+
+    private static String yearOf(String fileName, String openid, String suffix) {
+        return fileName.substring(openid.length() + 1, fileName.length() - suffix.length());
+    }
+
+    /**
+     * 在读锁内执行的读取操作
+     */
+    @FunctionalInterface
+    public interface YearReader<T> {
+        T read() throws IOException;
+    }
+
+    private enum TaskType {
+        PUT, DELETE, CHECKPOINT
+    }
+
+    /**
+     * 日志写请求
+     */
+    private static class JournalTask {
+        private final TaskType type;
+        private final String fileId;
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+        private String logTime;
+        private JSONObject diary;
+        private String key;
+
+        JournalTask(TaskType type, String fileId) {
+            this.type = type;
+            this.fileId = fileId;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package wy.diary.server.service;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * 日记ID到存储位置（年份 + key）的二级索引
+ * <p>
+ * 每个用户一个索引文件 index/{openid}.idx，保存/删除时追加一行记录，加载时回放并在失效记录过多时压缩。
+ * 索引在用户第一次查找或写入时加载，缺少索引文件时从年度文件重建；内存中最多保留
+ * diary.location-index.max-users 个用户，超出后按LRU淘汰，淘汰后再次访问时从索引文件重新加载。
+ * 索引是可重建的派生数据，调用方发现索引缺失或过期时应退回全量查找。
+ */
+@Service
+public class DiaryLocationService implements InitializingBean {
+    private static final Logger logger = LoggerFactory.getLogger(DiaryLocationService.class);
+
+    private static final String INDEX_DIR = "index";
+    private static final String OP_PUT = "P";
+    private static final String OP_DELETE = "D";
+
+    @Autowired
+    private DiaryJournalService diaryJournalService;
+
+    @Value("${diary.storage.path:diary}")
+    private String storagePath;
+
+    // 内存中最多保留的用户索引数
+    @Value("${diary.location-index.max-users:10000}")
+    private int maxUsers;
+
+    // 已加载用户的索引，accessOrder=true 按LRU淘汰；Map本身由this加锁保护，value由自身加锁保护
+    private final LinkedHashMap<String, Map<String, DiaryLocation>> userIndexes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, DiaryLocation>> eldest) {
+            return size() > maxUsers;
+        }
+    };
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Files.createDirectories(indexDir());
+        logger.info("日记ID索引已就绪，内存中最多保留 {} 个用户的索引", maxUsers);
+    }
+
+    /**
+     * 查找日记所在的年份和key
+     *
+     * @return 索引中没有时返回null
+     */
+    public DiaryLocation find(String openid, String diaryId) throws IOException {
+        Map<String, DiaryLocation> index = indexOf(openid);
+        synchronized (index) {
+            return index.get(diaryId);
+        }
+    }
+
+    /**
+     * 保存日记后记录其位置
+     */
+    public void onSave(String openid, String diaryId, String year, String key) throws IOException {
+        if (diaryId == null || diaryId.isEmpty()) {
+            return;
+        }
+        Map<String, DiaryLocation> index = indexOf(openid);
+        synchronized (index) {
+            index.put(diaryId, new DiaryLocation(year, key));
+            appendLine(openid, OP_PUT + "\t" + diaryId + "\t" + year + "\t" + key);
+        }
+    }
+
+    /**
+     * 删除日记后移除其位置
+     */
+    public void onDelete(String openid, String diaryId) throws IOException {
+        Map<String, DiaryLocation> index = indexOf(openid);
+        synchronized (index) {
+            if (index.remove(diaryId) != null) {
+                appendLine(openid, OP_DELETE + "\t" + diaryId);
+            }
+        }
+    }
+
+    /**
+     * 从年度文件重建用户的索引
+     */
+    public void rebuild(String openid) throws IOException {
+        Map<String, DiaryLocation> rebuilt = new HashMap<>();
+        for (String year : diaryJournalService.listYears(openid)) {
+            JSONObject json = diaryJournalService.readYear(openid, year);
+            for (String key : json.keySet()) {
+                String diaryId = json.getJSONObject(key).optString("diaryId", "");
+                if (!diaryId.isEmpty()) {
+                    rebuilt.put(diaryId, new DiaryLocation(year, key));
+                }
+            }
+        }
+        Map<String, DiaryLocation> index;
+        synchronized (this) {
+            index = userIndexes.computeIfAbsent(openid, k -> new HashMap<>());
+        }
+        synchronized (index) {
+            index.clear();
+            index.putAll(rebuilt);
+            writeSnapshot(openid, index);
+        }
+        logger.debug("已重建用户 {} 的日记ID索引，共 {} 条", openid, rebuilt.size());
+    }
+
+    private Map<String, DiaryLocation> indexOf(String openid) throws IOException {
+        synchronized (this) {
+            Map<String, DiaryLocation> index = userIndexes.get(openid);
+            if (index != null) {
+                return index;
+            }
+        }
+        if (!Files.exists(indexFile(openid))) {
+            rebuild(openid);
+            return indexOf(openid);
+        }
+
+        Map<String, DiaryLocation> loaded = new HashMap<>();
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(indexFile(openid), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (OP_PUT.equals(parts[0]) && parts.length == 4) {
+                    loaded.put(parts[1], new DiaryLocation(parts[2], parts[3]));
+                } else if (OP_DELETE.equals(parts[0]) && parts.length == 2) {
+                    loaded.remove(parts[1]);
+                } else {
+                    logger.warn("跳过无效的索引记录: {}", openid);
+                }
+                lines++;
+            }
+        }
+
+        synchronized (this) {
+            Map<String, DiaryLocation> existing = userIndexes.putIfAbsent(openid, loaded);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        // 失效记录过多时压缩索引文件
+        if (lines > 2 * loaded.size() + 16) {
+            synchronized (loaded) {
+                writeSnapshot(openid, loaded);
+            }
+        }
+        return loaded;
+    }
+
+    private void appendLine(String openid, String line) throws IOException {
+        Files.write(indexFile(openid), (line + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void writeSnapshot(String openid, Map<String, DiaryLocation> index) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, DiaryLocation> entry : index.entrySet()) {
+            content.append(OP_PUT).append('\t').append(entry.getKey())
+                    .append('\t').append(entry.getValue().getYear())
+                    .append('\t').append(entry.getValue().getKey()).append('\n');
+        }
+        Path target = indexFile(openid);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temp, content.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path indexDir() {
+        return Paths.get(storagePath).resolve(INDEX_DIR);
+    }
+
+    private Path indexFile(String openid) {
+        return indexDir().resolve(openid + ".idx");
+    }
+
+    /**
+     * 日记在文件存储中的位置
+     */
+    public static class DiaryLocation {
+        private final String year;
+        private final String key;
+
+        public DiaryLocation(String year, String key) {
+            this.year = year;
+            this.key = key;
+        }
+
+        public String getYear() {
+            return year;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package wy.diary.server.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import wy.diary.server.model.ApiResponse;
+import wy.diary.server.model.CachedPage;
+import wy.diary.server.model.DiarySource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 日记列表响应缓存
+ * <p>
+ * 每个用户维护一个版本号，保存/删除日记后递增。列表响应按 (来源, openid, 版本号, 分页参数)
+ * 缓存序列化并gzip压缩后的字节，客户端轮询时命中缓存既不读存储也不做JSON序列化，
+ * 带 If-None-Match 的请求直接返回304。ETag由版本号、用户和分页参数（含视图）的散列组成，
+ * 不同页、不同视图的响应ETag不同。版本号只保存在内存中，ETag中带上启动时间，重启后旧的ETag全部失效。
+ */
+@Service
+public class DiaryPageCacheService implements InitializingBean {
+    private static final Logger logger = LoggerFactory.getLogger(DiaryPageCacheService.class);
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 缓存的压缩响应总字节数上限，默认16MB
+    @Value("${diary.page-cache.max-bytes:16777216}")
+    private long maxBytes;
+
+    private final String bootId = Long.toString(System.currentTimeMillis(), 36);
+
+    private final ConcurrentMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    // accessOrder=true，迭代顺序即LRU顺序；cache和totalBytes由this加锁保护
+    private final LinkedHashMap<String, CachedPage> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    // 预先构建的响应序列化器
+    private ObjectWriter responseWriter;
+
+    private Counter hitCounter;
+    private Counter missCounter;
+
+    @Override
+    public void afterPropertiesSet() {
+        responseWriter = objectMapper.writerFor(ApiResponse.class);
+        hitCounter = Counter.builder("diary.page.cache.hits").register(meterRegistry);
+        missCounter = Counter.builder("diary.page.cache.misses").register(meterRegistry);
+        Gauge.builder("diary.page.cache.bytes", this, DiaryPageCacheService::cachedBytes).register(meterRegistry);
+        logger.info("日记列表响应缓存已启用，容量上限: {} 字节", maxBytes);
+    }
+
+    /**
+     * 获取列表响应，未命中时调用loader生成并缓存
+     *
+     * @param pageKey 分页参数，同一版本下相同参数的响应相同
+     * @param loader 生成完整响应的方法
+     */
+    public CachedPage getPage(DiarySource source, String openid, String pageKey, PageLoader loader) throws Exception {
+        // 先取版本号再读存储，缓存内容不会比版本号旧
+        long version = versionOf(source, openid).get();
+        String cacheKey = source + ":" + openid + ":" + version + ":" + pageKey;
+        synchronized (this) {
+            CachedPage cached = cache.get(cacheKey);
+            if (cached != null) {
+                hitCounter.increment();
+                return cached;
+            }
+        }
+        missCounter.increment();
+
+        CachedPage page = new CachedPage(etagOf(source, openid, version, pageKey), serialize(loader.load()));
+        synchronized (this) {
+            store(cacheKey, page);
+        }
+        return page;
+    }
+
+    /**
+     * 用户的日记发生变化，递增版本号，之前缓存的响应不再命中，由LRU淘汰
+     */
+    public void bumpVersion(DiarySource source, String openid) {
+        versionOf(source, openid).incrementAndGet();
+    }
+
+    private AtomicLong versionOf(DiarySource source, String openid) {
+        return versions.computeIfAbsent(source + ":" + openid, k -> new AtomicLong());
+    }
+
+    private String etagOf(DiarySource source, String openid, long version, String pageKey) {
+        // 不同用户在同一个URL上的版本号可能相同，同一用户不同页、不同视图的版本号相同，ETag中带上两者的散列区分
+        return "\"" + source.name().charAt(0) + bootId + "-" + version + "-" + Integer.toHexString(openid.hashCode())
+                + "-" + Integer.toHexString(pageKey.hashCode()) + "\"";
+    }
+
+    private void store(String cacheKey, CachedPage page) {
+        CachedPage previous = cache.put(cacheKey, page);
+        if (previous != null) {
+            totalBytes -= previous.size();
+        }
+        totalBytes += page.size();
+
+        Iterator<Map.Entry<String, CachedPage>> iterator = cache.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            totalBytes -= iterator.next().getValue().size();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 序列化并压缩响应，JSON直接写入压缩流，不生成未压缩的中间字节数组
+     */
+    private byte[] serialize(ApiResponse response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            responseWriter.writeValue(gzip, response);
+        }
+        return out.toByteArray();
+    }
+
+    private synchronized double cachedBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * 生成列表响应
+     */
+    @FunctionalInterface
+    public interface PageLoader {
+        ApiResponse load() throws Exception;
+    }
+}
@@ -0,0 +1,259 @@
+package wy.diary.server.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import wy.diary.server.dao.DiaryQueryDao;
+import wy.diary.server.dto.response.CursorPageResult;
+import wy.diary.server.dto.response.DiaryRecord;
+import wy.diary.server.dto.response.PageResult;
+import wy.diary.server.entity.Diary;
+import wy.diary.server.util.DiaryDateRange;
+import wy.diary.server.util.DiaryPreview;
+import wy.diary.server.util.DiaryView;
+import wy.diary.server.util.PageCursor;
+
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 基于数据库的日记查询服务，提供游标分页等只读查询
+ */
+@Service
+public class DiaryQueryService {
+    private static final Logger logger = LoggerFactory.getLogger(DiaryQueryService.class);
+
+    @Autowired
+    private DiaryQueryDao diaryQueryDao;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    // 用户日记总数缓存，保存/删除日记时失效
+    private final ConcurrentMap<String, Integer> totalCounts = new ConcurrentHashMap<>();
+
+    /**
+     * 游标分页获取日记列表
+     *
+     * @param openId 用户OpenID
+     * @param cursor 上一页返回的nextCursor，为空时从最新的日记开始
+     * @param pageSize 每页记录数
+     * @param withTotal 是否返回总记录数
+     * @param view 返回的字段，不需要完整内容时只查询摘要列
+     * @return 包含records、nextCursor等信息的分页数据
+     */
+    public CursorPageResult getDiariesByCursor(String openId, String cursor, int pageSize, boolean withTotal,
+                                               DiaryView view) {
+        String logTime = null;
+        Long id = null;
+        if (cursor != null && !cursor.isEmpty()) {
+            PageCursor after = PageCursor.decode(cursor);
+            logTime = after.getLogTime();
+            try {
+                id = Long.parseLong(after.getKey());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("无效的分页游标", e);
+            }
+        }
+
+        if (!view.isFull()) {
+            return getSummariesByCursor(openId, logTime, id, pageSize, withTotal, view);
+        }
+
+        // 多查一条用于判断是否还有下一页
+        List<Diary> diaries = diaryQueryDao.getDiariesAfter(openId, logTime, id, pageSize + 1);
+        boolean hasNext = diaries.size() > pageSize;
+        if (hasNext) {
+            diaries = diaries.subList(0, pageSize);
+        }
+
+        List<Object> records = new ArrayList<>(diaries.size());
+        for (Diary diary : diaries) {
+            // 完整视图直接返回不可变记录，不经过Map
+            records.add(view.isDefault() ? toDiaryRecord(diary) : applyView(toDiaryMap(diary), view));
+        }
+
+        String nextCursor = null;
+        if (hasNext && !diaries.isEmpty()) {
+            Diary last = diaries.get(diaries.size() - 1);
+            nextCursor = new PageCursor(last.getLogTime(), String.valueOf(last.getId()), null).encode();
+        }
+
+        Integer totalCount = withTotal ? getTotalCount(openId) : null;
+        return CursorPageResult.of(records, pageSize, nextCursor, totalCount);
+    }
+
+    /**
+     * 页码分页获取日记摘要，用于不需要完整内容的视图
+     *
+     * @return 与页码分页列表相同结构的分页数据
+     */
+    public PageResult getSummaryPage(String openId, int pageIndex, int pageSize, DiaryView view) {
+        List<Map<String, Object>> records = new ArrayList<>(pageSize);
+        int offset = Math.max(pageIndex - 1, 0) * pageSize;
+        for (Map<String, Object> row : diaryQueryDao.getDiarySummaryPage(openId, offset, pageSize)) {
+            records.add(view.project(toSummaryMap(row)));
+        }
+
+        return PageResult.of(records, pageIndex, pageSize, getTotalCount(openId));
+    }
+
+    /**
+     * 按视图转换完整的日记记录，完整视图原样返回
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> applyView(Map<String, Object> record, DiaryView view) {
+        if (view.isDefault()) {
+            return record;
+        }
+        Map<String, Object> diaryMap = new HashMap<>(record);
+        Object content = record.get("editorContent");
+        diaryMap.put("preview", DiaryPreview.of(content != null ? String.valueOf(content) : null));
+        Object imageUrls = record.get("imageUrls");
+        diaryMap.put("imageCount", imageUrls instanceof Collection ? ((Collection<Object>) imageUrls).size() : 0);
+        return view.project(diaryMap);
+    }
+
+    /**
+     * 获取记录时间在日期范围内的日记，最新的在前
+     *
+     * @return 包含records和totalCount的数据
+     */
+    public Map<String, Object> getDiariesInRange(String openId, DiaryDateRange range) {
+        List<Map<String, Object>> records = new ArrayList<>();
+        for (Diary diary : diaryQueryDao.getDiariesInRange(openId, range.getFrom(), range.getToExclusive())) {
+            records.add(toDiaryMap(diary));
+        }
+
+        Map<String, Object> data = new HashMap<>();
+        data.put("records", records);
+        data.put("totalCount", records.size());
+        return data;
+    }
+
+    /**
+     * 按天统计某个月的日记数，没有日记的日期不返回
+     *
+     * @param month 月份，格式 yyyy-MM
+     * @return 包含month、days（日期到日记数）和totalCount的数据
+     */
+    public Map<String, Object> getMonthCalendar(String openId, String month) {
+        DiaryDateRange range = DiaryDateRange.ofMonth(month);
+        Map<String, Integer> days = new TreeMap<>();
+        int totalCount = 0;
+        for (Map<String, Object> row : diaryQueryDao.countDiariesByDay(openId, range.getFrom(), range.getToExclusive())) {
+            int count = ((Number) row.get("count")).intValue();
+            days.put(String.valueOf(row.get("day")), count);
+            totalCount += count;
+        }
+
+        Map<String, Object> data = new HashMap<>();
+        data.put("month", month);
+        data.put("days", days);
+        data.put("totalCount", totalCount);
+        return data;
+    }
+
+    /**
+     * 按日记ID获取用户的日记
+     *
+     * @return 不存在时返回null
+     */
+    public Diary getDiaryByDiaryId(String openId, String diaryId) {
+        return diaryQueryDao.getDiaryByDiaryId(openId, diaryId);
+    }
+
+    /**
+     * 获取用户日记总数，优先使用缓存
+     */
+    public int getTotalCount(String openId) {
+        return totalCounts.computeIfAbsent(openId, diaryQueryDao::countDiaries);
+    }
+
+    /**
+     * 用户日记发生变化后清除缓存的总数
+     */
+    public void evictTotalCount(String openId) {
+        totalCounts.remove(openId);
+    }
+
+    /**
+     * 将数据库记录转换为列表接口返回的日记记录
+     */
+    public Map<String, Object> toDiaryMap(Diary diary) {
+        return toDiaryRecord(diary).toMap();
+    }
+
+    /**
+     * 将数据库记录转换为不可变的日记记录，空字段输出为空字符串
+     */
+    public DiaryRecord toDiaryRecord(Diary diary) {
+        return new DiaryRecord(null, diary.getDiaryId(), orEmpty(diary.getEditorContent()), orEmpty(diary.getCreateTime()),
+                orEmpty(diary.getLogTime()), orEmpty(diary.getLogWeek()), orEmpty(diary.getLogLunar()),
+                orEmpty(diary.getAddress()), parseImageFileNames(diary.getImageUrls()));
+    }
+
+    private CursorPageResult getSummariesByCursor(String openId, String logTime, Long id, int pageSize,
+                                                  boolean withTotal, DiaryView view) {
+        List<Map<String, Object>> rows = diaryQueryDao.getDiarySummariesAfter(openId, logTime, id, pageSize + 1);
+        boolean hasNext = rows.size() > pageSize;
+        if (hasNext) {
+            rows = rows.subList(0, pageSize);
+        }
+
+        List<Map<String, Object>> records = new ArrayList<>();
+        for (Map<String, Object> row : rows) {
+            records.add(view.project(toSummaryMap(row)));
+        }
+
+        String nextCursor = null;
+        if (hasNext && !rows.isEmpty()) {
+            Map<String, Object> last = rows.get(rows.size() - 1);
+            nextCursor = new PageCursor(String.valueOf(last.get("logTime")), String.valueOf(last.get("id")), null).encode();
+        }
+
+        Integer totalCount = withTotal ? getTotalCount(openId) : null;
+        return CursorPageResult.of(records, pageSize, nextCursor, totalCount);
+    }
+
+    /**
+     * 将摘要查询的一行转换为摘要记录，preview为内容开头时在这里去掉标签并截断
+     */
+    private Map<String, Object> toSummaryMap(Map<String, Object> row) {
+        Map<String, Object> diaryMap = new HashMap<>();
+        diaryMap.put("diaryId", row.get("diaryId"));
+        diaryMap.put("preview", DiaryPreview.of((String) row.get("preview")));
+        diaryMap.put("imageCount", parseImageFileNames((String) row.get("imageUrls")).size());
+        diaryMap.put("createTime", orEmpty(row.get("createTime")));
+        diaryMap.put("logTime", orEmpty(row.get("logTime")));
+        diaryMap.put("logWeek", orEmpty(row.get("logWeek")));
+        diaryMap.put("logLunar", orEmpty(row.get("logLunar")));
+        diaryMap.put("address", orEmpty(row.get("address")));
+        return diaryMap;
+    }
+
+    private static String orEmpty(Object value) {
+        return value != null ? String.valueOf(value) : "";
+    }
+
+    /**
+     * 解析图片URL JSON字符串，只返回文件名
+     */
+    private List<String> parseImageFileNames(String imageUrlsJson) {
+        List<String> fileNames = new ArrayList<>();
+        if (imageUrlsJson == null || imageUrlsJson.trim().isEmpty()) {
+            return fileNames;
+        }
+        try {
+            for (Object url : objectMapper.readValue(imageUrlsJson, List.class)) {
+                fileNames.add(Paths.get(String.valueOf(url)).getFileName().toString());
+            }
+        } catch (Exception e) {
+            logger.error("解析图片URL失败: {}", imageUrlsJson, e);
+        }
+        return fileNames;
+    }
+}
@@ -0,0 +1,254 @@
+package wy.diary.server.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import wy.diary.server.dto.response.DiaryRecord;
+import wy.diary.server.entity.Diary;
+import wy.diary.server.model.DiarySource;
+import wy.diary.server.util.DiaryView;
+
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 影子读：文件存储的列表和删除接口处理完成后，在后台线程对数据库执行等价的操作，
+ * 记录两边的延迟分布并统计结果不一致的次数，用于评估切换到数据库存储
+ * <p>
+ * 由 diary.shadow.enable 开启。影子操作由单个后台线程按提交顺序执行，删除之后的列表对比不会读到删除前的数据；
+ * 积压超过 diary.shadow.queue-size 时丢弃新的影子操作，不影响接口本身。
+ * 列表只对比完整视图的页码分页和游标分页的第一页（两种存储的游标不通用），
+ * 文件存储的延迟只在列表缓存未命中、实际读取存储时记录。
+ * <p>
+ * 指标：diary.shadow.latency{op,source} 延迟分布，diary.shadow.comparisons{op} 对比次数，
+ * diary.shadow.mismatches{op} 不一致次数，diary.shadow.errors{op} 数据库操作失败次数，diary.shadow.dropped 丢弃次数。
+ * <p>
+ * 删除会真实作用于数据库，开启前数据库中应已导入文件存储的日记（见 JsonToDatabaseMigrator）。
+ * 只删除文件存储中已删除、且在数据库中属于同一用户的日记；文件存储中没有而数据库中有的日记只记为不一致，不删除。
+ */
+@Service
+public class DiaryShadowReadService implements InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(DiaryShadowReadService.class);
+
+    private static final String OP_LIST = "list";
+    private static final String OP_DELETE = "delete";
+
+    // 对比的字段，其余字段两种存储的格式不完全相同
+    private static final List<String> COMPARED_FIELDS = List.of("editorContent", "logTime", "imageUrls");
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private DiaryDatabaseService diaryDatabaseService;
+
+    @Autowired
+    private DiaryQueryService diaryQueryService;
+
+    @Autowired
+    private DiaryPageCacheService diaryPageCacheService;
+
+    @Autowired
+    private DiaryStatsService diaryStatsService;
+
+    @Autowired
+    private DiaryChangeService diaryChangeService;
+
+    @Value("${diary.shadow.enable:false}")
+    private boolean enabled;
+
+    // 积压的影子操作数上限
+    @Value("${diary.shadow.queue-size:1000}")
+    private int queueSize;
+
+    private ThreadPoolExecutor executor;
+    private Counter droppedCounter;
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) {
+            return;
+        }
+        droppedCounter = Counter.builder("diary.shadow.dropped").register(meterRegistry);
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "diary-shadow-read");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, pool) -> droppedCounter.increment());
+        logger.info("影子读已开启，文件存储的列表和删除将同时在数据库上执行");
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 对比一页列表
+     *
+     * @param pageIndex 页码，游标分页的第一页传null
+     * @param fileRecords 文件存储返回的记录（完整视图）
+     * @param fileTotalCount 文件存储的总记录数，未统计时为null
+     * @param fileNanos 文件存储读取该页的耗时
+     */
+    public void shadowList(String openid, Integer pageIndex, int pageSize, List<?> fileRecords,
+                           Integer fileTotalCount, long fileNanos) {
+        if (!enabled) {
+            return;
+        }
+        timer(OP_LIST, DiarySource.FILE).record(fileNanos, TimeUnit.NANOSECONDS);
+        executor.execute(() -> {
+            List<?> dbRecords;
+            Integer dbTotalCount = null;
+            long start = System.nanoTime();
+            try {
+                if (pageIndex != null) {
+                    Map<String, Object> pageData = diaryDatabaseService.getDiariesByOpenId(openid, pageIndex, pageSize);
+                    dbRecords = (List<?>) pageData.get("records");
+                    Object totalCount = pageData.get("totalCount");
+                    dbTotalCount = totalCount instanceof Number ? ((Number) totalCount).intValue() : null;
+                } else {
+                    dbRecords = diaryQueryService.getDiariesByCursor(openid, null, pageSize, false, DiaryView.FULL).records();
+                }
+            } catch (Exception e) {
+                error(OP_LIST, openid, e);
+                return;
+            }
+            timer(OP_LIST, DiarySource.DATABASE).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+            String difference = compareRecords(fileRecords, dbRecords);
+            if (difference == null && fileTotalCount != null && dbTotalCount != null && !fileTotalCount.equals(dbTotalCount)) {
+                difference = "总数不同: 文件 " + fileTotalCount + "，数据库 " + dbTotalCount;
+            }
+            compared(OP_LIST, openid, difference);
+        });
+    }
+
+    /**
+     * 文件存储删除成功时在数据库上删除该用户的同一篇日记，并对比两边是否都存在该日记
+     *
+     * @param fileDeleted 文件存储中是否找到并删除了该日记
+     * @param fileNanos 文件存储删除的耗时
+     */
+    public void shadowDelete(String openid, String diaryId, boolean fileDeleted, long fileNanos) {
+        if (!enabled) {
+            return;
+        }
+        timer(OP_DELETE, DiarySource.FILE).record(fileNanos, TimeUnit.NANOSECONDS);
+        executor.execute(() -> {
+            Diary dbDiary;
+            boolean dbDeleted = false;
+            long start = System.nanoTime();
+            try (DiaryStatsService.PendingWrite ignored = diaryStatsService.beginWrite(DiarySource.DATABASE, openid)) {
+                // 按用户查找，数据库的删除接口不校验归属
+                dbDiary = diaryQueryService.getDiaryByDiaryId(openid, diaryId);
+                if (dbDiary != null && fileDeleted) {
+                    dbDeleted = diaryDatabaseService.deleteDiary(diaryId);
+                }
+                if (dbDeleted) {
+                    // 与数据库删除接口相同的缓存失效和统计更新
+                    diaryQueryService.evictTotalCount(openid);
+                    diaryPageCacheService.bumpVersion(DiarySource.DATABASE, openid);
+                    diaryStatsService.onDelete(DiarySource.DATABASE, openid, dbDiary.getLogTime(), null,
+                            DiaryStatsService.countImages(dbDiary.getImageUrls()));
+                    diaryChangeService.onDelete(DiarySource.DATABASE, openid, diaryId);
+                }
+            } catch (Exception e) {
+                error(OP_DELETE, openid, e);
+                return;
+            }
+            timer(OP_DELETE, DiarySource.DATABASE).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+            boolean dbFound = dbDiary != null;
+            String difference = null;
+            if (fileDeleted != dbFound) {
+                difference = "日记 " + diaryId + " 删除结果不同: 文件 " + fileDeleted + "，数据库 " + dbFound;
+            } else if (fileDeleted && !dbDeleted) {
+                difference = "日记 " + diaryId + " 在数据库中未能删除";
+            }
+            compared(OP_DELETE, openid, difference);
+        });
+    }
+
+    /**
+     * 按日记ID对比两页记录，不比较顺序（记录时间相同的日记两种存储的排序不同）
+     *
+     * @return 不一致的描述，一致时返回null
+     */
+    private String compareRecords(List<?> fileRecords, List<?> dbRecords) {
+        Map<Object, Map<String, Object>> fileById = indexById(fileRecords);
+        Map<Object, Map<String, Object>> dbById = indexById(dbRecords);
+        if (!fileById.keySet().equals(dbById.keySet())) {
+            return "日记ID不同: 文件 " + fileById.keySet() + "，数据库 " + dbById.keySet();
+        }
+        for (Map.Entry<Object, Map<String, Object>> entry : fileById.entrySet()) {
+            Map<String, Object> dbRecord = dbById.get(entry.getKey());
+            for (String field : COMPARED_FIELDS) {
+                if (!Objects.equals(normalize(entry.getValue().get(field)), normalize(dbRecord.get(field)))) {
+                    return "日记 " + entry.getKey() + " 的字段 " + field + " 不同";
+                }
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Object, Map<String, Object>> indexById(List<?> records) {
+        Map<Object, Map<String, Object>> byId = new HashMap<>();
+        if (records == null) {
+            return byId;
+        }
+        for (Object record : records) {
+            Map<String, Object> map = record instanceof DiaryRecord
+                    ? ((DiaryRecord) record).toMap()
+                    : (Map<String, Object>) record;
+            byId.put(map.get("diaryId"), map);
+        }
+        return byId;
+    }
+
+    private static Object normalize(Object value) {
+        // 空值与空字符串视为相同
+        return value == null ? "" : value;
+    }
+
+    private void compared(String op, String openid, String difference) {
+        Counter.builder("diary.shadow.comparisons").tag("op", op).register(meterRegistry).increment();
+        if (difference != null) {
+            Counter.builder("diary.shadow.mismatches").tag("op", op).register(meterRegistry).increment();
+            logger.warn("影子读结果不一致，操作: {}，用户: {}，{}", op, openid, difference);
+        }
+    }
+
+    private void error(String op, String openid, Exception e) {
+        Counter.builder("diary.shadow.errors").tag("op", op).register(meterRegistry).increment();
+        logger.error("影子读数据库操作失败，操作: {}，用户: {}", op, openid, e);
+    }
+
+    private Timer timer(String op, DiarySource source) {
+        return Timer.builder("diary.shadow.latency")
+                .tag("op", op)
+                .tag("source", source.name().toLowerCase())
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,424 @@
+package wy.diary.server.service;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import wy.diary.server.dao.DiaryQueryDao;
+import wy.diary.server.entity.Diary;
+import wy.diary.server.model.DiaryIndexEntry;
+import wy.diary.server.model.DiarySource;
+import wy.diary.server.store.DiaryStore;
+import wy.diary.server.util.DiaryDateRange;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 用户写作统计：按年/月的日记数、连续写作天数、图片总数
+ * <p>
+ * 统计在保存和删除日记时增量更新，并写入 {diary.storage.path}/stats/{来源}/{openid}.json，
+ * 查询时直接读取内存中的结果，不再扫描全部日记。文件存储和数据库存储的数据相互独立，分开统计。
+ * 统计文件缺失时从对应的存储全量重建一次，重建只读取记录时间和图片，不加载日记内容。
+ * <p>
+ * 写入日记的一方用 {@link #beginWrite} 包住存储写入和 onSave/onDelete。重建期间有写入开始、
+ * 或开始重建时有写入尚未完成时，无法确定重建结果是否已包含这些写入，结果只返回给本次查询，
+ * 不缓存也不写文件；期间的增量更新在没有统计时不做，下次查询重新重建。同一用户的重建和增量更新互斥。
+ * <p>
+ * 早期不带年份的 "M月d日" 用日记所在年度文件的年份补全；仍无法识别日期的日记计入 undatedCount，
+ * 不计入按天、月、年的统计和连续天数。
+ */
+@Service
+public class DiaryStatsService {
+    private static final Logger logger = LoggerFactory.getLogger(DiaryStatsService.class);
+
+    private static final String STATS_DIR = "stats";
+    // 统计文件格式版本，旧版本的文件丢弃后重建
+    private static final int STATS_VERSION = 2;
+
+    @Autowired
+    private DiaryStore diaryStore;
+
+    @Autowired
+    private DiaryQueryDao diaryQueryDao;
+
+    @Value("${diary.storage.path:diary}")
+    private String storagePath;
+
+    private final ConcurrentMap<String, UserStats> loaded = new ConcurrentHashMap<>();
+    // 每个用户的写入状态，其监视器串行化该用户的重建和增量更新
+    private final ConcurrentMap<String, WriteState> writeStates = new ConcurrentHashMap<>();
+
+    /**
+     * 获取用户的写作统计
+     *
+     * @return 包含totalCount、totalImages、totalDays、undatedCount、longestStreak、currentStreak、years、months的数据
+     */
+    public Map<String, Object> getStats(DiarySource source, String openid) throws IOException {
+        UserStats stats = loadOrRebuild(source, openid);
+        synchronized (stats) {
+            return stats.toMap(LocalDate.now());
+        }
+    }
+
+    /**
+     * 开始写入用户的日记，存储写入和之后的 onSave/onDelete 都应在返回值关闭之前完成
+     *
+     * @return 写入结束（无论成功与否）时关闭
+     */
+    public PendingWrite beginWrite(DiarySource source, String openid) {
+        WriteState state = writeState(cacheKey(source, openid));
+        state.generation.incrementAndGet();
+        state.inFlight.incrementAndGet();
+        return new PendingWrite(state);
+    }
+
+    /**
+     * 保存日记后更新统计
+     *
+     * @param logTime 日记的记录时间
+     * @param year 日记所在年度文件的年份，用于补全 "M月d日"；数据库存储没有年度文件，传null
+     * @param imageCount 日记的图片数
+     */
+    public void onSave(DiarySource source, String openid, String logTime, String year, int imageCount) {
+        update(source, openid, logTime, year, imageCount, 1);
+    }
+
+    /**
+     * 删除日记后更新统计
+     */
+    public void onDelete(DiarySource source, String openid, String logTime, String year, int imageCount) {
+        update(source, openid, logTime, year, imageCount, -1);
+    }
+
+    /**
+     * 丢弃用户的统计，下次查询时从存储重建；用于批量导入等不逐条更新统计的写入
+     */
+    public void invalidate(DiarySource source, String openid) throws IOException {
+        String cacheKey = cacheKey(source, openid);
+        synchronized (writeState(cacheKey)) {
+            loaded.remove(cacheKey);
+            Files.deleteIfExists(statsFile(source, openid));
+        }
+    }
+
+    /**
+     * 数据库中日记的图片数，imageUrls为JSON数组字符串
+     */
+    public static int countImages(String imageUrlsJson) {
+        if (imageUrlsJson == null || imageUrlsJson.trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            return new JSONArray(imageUrlsJson).length();
+        } catch (JSONException e) {
+            return 0;
+        }
+    }
+
+    private void update(DiarySource source, String openid, String logTime, String year, int imageCount, int delta) {
+        String cacheKey = cacheKey(source, openid);
+        synchronized (writeState(cacheKey)) {
+            try {
+                UserStats stats = loaded.get(cacheKey);
+                if (stats == null) {
+                    // 没有统计文件时不做增量，下次查询时从存储重建，重建结果已包含本次修改；
+                    // 包含本次修改的重建不会写文件（写入尚未结束），因此文件存在时它一定不包含本次修改
+                    if (!Files.exists(statsFile(source, openid))) {
+                        return;
+                    }
+                    stats = loadOrRebuild(source, openid);
+                }
+                synchronized (stats) {
+                    stats.apply(logTime, year, imageCount, delta);
+                    save(source, openid, stats);
+                }
+            } catch (Exception e) {
+                // 统计是派生数据，更新失败时删除统计文件，下次查询时重建
+                logger.error("更新用户 {} 的写作统计失败", openid, e);
+                loaded.remove(cacheKey);
+                try {
+                    Files.deleteIfExists(statsFile(source, openid));
+                } catch (IOException ex) {
+                    logger.error("删除统计文件失败: {}", openid, ex);
+                }
+            }
+        }
+    }
+
+    private UserStats loadOrRebuild(DiarySource source, String openid) throws IOException {
+        String cacheKey = cacheKey(source, openid);
+        UserStats stats = loaded.get(cacheKey);
+        if (stats != null) {
+            return stats;
+        }
+
+        WriteState state = writeState(cacheKey);
+        synchronized (state) {
+            stats = loaded.get(cacheKey);
+            if (stats != null) {
+                return stats;
+            }
+            stats = loadFile(source, openid);
+            if (stats == null) {
+                long generation = state.generation.get();
+                boolean quiet = state.inFlight.get() == 0;
+                stats = rebuild(source, openid);
+                if (!quiet || state.generation.get() != generation) {
+                    logger.debug("重建用户 {} 的统计期间有日记写入，本次结果不缓存({})", openid, source);
+                    return stats;
+                }
+                save(source, openid, stats);
+            }
+            loaded.put(cacheKey, stats);
+            return stats;
+        }
+    }
+
+    private UserStats loadFile(DiarySource source, String openid) throws IOException {
+        UserStats stats = null;
+        Path file = statsFile(source, openid);
+        if (Files.exists(file)) {
+            try {
+                JSONObject json = new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+                if (json.optInt("version") == STATS_VERSION) {
+                    stats = UserStats.fromJson(json);
+                } else {
+                    logger.info("统计文件版本已过期，重新统计: {}", file);
+                }
+            } catch (JSONException | DateTimeParseException e) {
+                logger.warn("统计文件已损坏，重新统计: {}", file);
+            }
+        }
+        return stats;
+    }
+
+    private UserStats rebuild(DiarySource source, String openid) throws IOException {
+        long start = System.currentTimeMillis();
+        UserStats stats = new UserStats();
+        if (source == DiarySource.FILE) {
+            for (DiaryIndexEntry entry : diaryStore.metadata(openid)) {
+                stats.apply(entry.getLogTime(), entry.getYear(), entry.getImageUrls().size(), 1);
+            }
+        } else {
+            for (Diary diary : diaryQueryDao.getDiaryStatRows(openid)) {
+                stats.apply(diary.getLogTime(), null, countImages(diary.getImageUrls()), 1);
+            }
+        }
+        logger.info("已重建用户 {} 的写作统计({})，共 {} 篇日记，耗时 {} ms",
+                openid, source, stats.totalCount, System.currentTimeMillis() - start);
+        if (stats.undatedCount > 0) {
+            logger.warn("用户 {} 有 {} 篇日记的记录时间无法识别，未计入按日期的统计({})",
+                    openid, stats.undatedCount, source);
+        }
+        return stats;
+    }
+
+    private void save(DiarySource source, String openid, UserStats stats) throws IOException {
+        Path target = statsFile(source, openid);
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temp, stats.toJson().toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path statsFile(DiarySource source, String openid) {
+        return Paths.get(storagePath).resolve(STATS_DIR)
+                .resolve(source.name().toLowerCase()).resolve(openid + ".json");
+    }
+
+    private static String cacheKey(DiarySource source, String openid) {
+        return source + ":" + openid;
+    }
+
+    private WriteState writeState(String cacheKey) {
+        return writeStates.computeIfAbsent(cacheKey, k -> new WriteState());
+    }
+
+    /**
+     * 用户正在进行的写入数和写入代数，用于判断重建结果是否可能与并发写入交错
+     */
+    private static class WriteState {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong generation = new AtomicLong();
+    }
+
+    /**
+     * 一次进行中的日记写入，关闭时结束
+     */
+    public static final class PendingWrite implements AutoCloseable {
+        private final WriteState state;
+        private boolean closed;
+
+        private PendingWrite(WriteState state) {
+            this.state = state;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                state.inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 单个用户的统计，由自身加锁保护
+     * <p>
+     * 按天的日记数是持久化的原始数据，年、月计数和连续天数都由它派生并增量维护：
+     * 连续写作的日期段保存在 runs(起始日→结束日) 中，各段长度的计数保存在 runLengths 中，
+     * 最长连续天数即 runLengths 的最大key。
+     */
+    private static class UserStats {
+        private int totalCount;
+        private int imageCount;
+        // 记录时间无法识别为日期的日记数
+        private int undatedCount;
+        private final TreeMap<String, Integer> days = new TreeMap<>();
+        private final TreeMap<String, Integer> months = new TreeMap<>();
+        private final TreeMap<String, Integer> years = new TreeMap<>();
+        private final TreeMap<LocalDate, LocalDate> runs = new TreeMap<>();
+        private final TreeMap<Long, Integer> runLengths = new TreeMap<>();
+
+        static UserStats fromJson(JSONObject json) {
+            UserStats stats = new UserStats();
+            stats.totalCount = json.getInt("totalCount");
+            stats.imageCount = json.getInt("imageCount");
+            stats.undatedCount = json.optInt("undatedCount");
+            JSONObject days = json.getJSONObject("days");
+            for (String day : days.keySet()) {
+                stats.addDay(day, days.getInt(day));
+            }
+            return stats;
+        }
+
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("version", STATS_VERSION);
+            json.put("totalCount", totalCount);
+            json.put("imageCount", imageCount);
+            json.put("undatedCount", undatedCount);
+            json.put("days", new JSONObject(days));
+            return json;
+        }
+
+        void apply(String logTime, String year, int images, int delta) {
+            totalCount = Math.max(totalCount + delta, 0);
+            imageCount = Math.max(imageCount + delta * images, 0);
+            String day = DiaryDateRange.dayOf(logTime, year);
+            if (day != null) {
+                addDay(day, delta);
+            } else {
+                undatedCount = Math.max(undatedCount + delta, 0);
+            }
+        }
+
+        /**
+         * @throws DateTimeParseException day不是yyyy-MM-dd，只会出现在损坏的统计文件中
+         */
+        private void addDay(String day, int delta) {
+            LocalDate date = LocalDate.parse(day);
+            int before = days.getOrDefault(day, 0);
+            int after = Math.max(before + delta, 0);
+            if (after == before) {
+                return;
+            }
+            if (after == 0) {
+                days.remove(day);
+            } else {
+                days.put(day, after);
+            }
+            int change = after - before;
+            adjust(months, day.substring(0, 7), change);
+            adjust(years, day.substring(0, 4), change);
+
+            if (before == 0) {
+                addToRuns(date);
+            } else if (after == 0) {
+                removeFromRuns(date);
+            }
+        }
+
+        private void addToRuns(LocalDate date) {
+            LocalDate start = date;
+            LocalDate end = date;
+            Map.Entry<LocalDate, LocalDate> previous = runs.floorEntry(date.minusDays(1));
+            if (previous != null && previous.getValue().equals(date.minusDays(1))) {
+                start = previous.getKey();
+                removeRun(previous.getKey(), previous.getValue());
+            }
+            LocalDate nextEnd = runs.get(date.plusDays(1));
+            if (nextEnd != null) {
+                end = nextEnd;
+                removeRun(date.plusDays(1), nextEnd);
+            }
+            addRun(start, end);
+        }
+
+        private void removeFromRuns(LocalDate date) {
+            Map.Entry<LocalDate, LocalDate> run = runs.floorEntry(date);
+            if (run == null || run.getValue().isBefore(date)) {
+                return;
+            }
+            removeRun(run.getKey(), run.getValue());
+            if (run.getKey().isBefore(date)) {
+                addRun(run.getKey(), date.minusDays(1));
+            }
+            if (run.getValue().isAfter(date)) {
+                addRun(date.plusDays(1), run.getValue());
+            }
+        }
+
+        private void addRun(LocalDate start, LocalDate end) {
+            runs.put(start, end);
+            runLengths.merge(ChronoUnit.DAYS.between(start, end) + 1, 1, Integer::sum);
+        }
+
+        private void removeRun(LocalDate start, LocalDate end) {
+            runs.remove(start);
+            runLengths.computeIfPresent(ChronoUnit.DAYS.between(start, end) + 1,
+                    (length, count) -> count > 1 ? count - 1 : null);
+        }
+
+        private static void adjust(Map<String, Integer> counts, String key, int change) {
+            counts.compute(key, (k, count) -> {
+                int value = (count == null ? 0 : count) + change;
+                return value > 0 ? value : null;
+            });
+        }
+
+        Map<String, Object> toMap(LocalDate today) {
+            // 当前连续天数：截止到今天或昨天的连续写作段
+            long currentStreak = 0;
+            Map.Entry<LocalDate, LocalDate> latest = runs.floorEntry(today);
+            if (latest != null && !latest.getValue().isBefore(today.minusDays(1))) {
+                currentStreak = ChronoUnit.DAYS.between(latest.getKey(), latest.getValue()) + 1;
+            }
+
+            Map<String, Object> data = new HashMap<>();
+            data.put("totalCount", totalCount);
+            data.put("totalImages", imageCount);
+            data.put("totalDays", days.size());
+            data.put("undatedCount", undatedCount);
+            data.put("longestStreak", runLengths.isEmpty() ? 0 : runLengths.lastKey());
+            data.put("currentStreak", currentStreak);
+            data.put("years", new LinkedHashMap<>(years));
+            data.put("months", new LinkedHashMap<>(months));
+            return data;
+        }
+    }
+}
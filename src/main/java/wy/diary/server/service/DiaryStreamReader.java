@@ -0,0 +1,307 @@
+package wy.diary.server.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import wy.diary.server.model.DiaryIndexEntry;
+import wy.diary.server.model.DiaryPage;
+import wy.diary.server.util.DiaryArchiveFile;
+import wy.diary.server.util.DiaryDateRange;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * 日记年度文件的流式读取
+ * <p>
+ * 用于数据量超出索引缓存的用户：用Jackson拉取式解析器逐条扫描年度文件，
+ * 只在有界堆中保留请求页需要的前K条日记；editorContent在扫描时只记录文件偏移，
+ * 最后只为当前页的日记回读，因此内存占用取决于页大小而不是日记总数。
+ */
+@Service
+public class DiaryStreamReader {
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    @Autowired
+    private DiaryJournalService diaryJournalService;
+
+    /**
+     * 读取按日期降序排列的某一页日记
+     *
+     * @param pageIndex 页码，从1开始
+     * @param pageSize 每页记录数
+     */
+    public DiaryPage readPage(String openid, int pageIndex, int pageSize) throws IOException {
+        int startIndex = Math.max(pageIndex - 1, 0) * pageSize;
+        int limit = (int) Math.min((long) startIndex + Math.max(pageSize, 0), Integer.MAX_VALUE);
+        ScanResult result = scan(openid, entry -> true, limit);
+
+        List<DiaryIndexEntry> records = new ArrayList<>();
+        for (int i = startIndex; i < result.top.size(); i++) {
+            records.add(loadContent(openid, result.top.get(i), result.stamps.get(result.top.get(i).entry.getYear())));
+        }
+        return new DiaryPage(records, result.totalCount);
+    }
+
+    /**
+     * 读取排在 after 之后的至多 limit 篇日记，用于游标分页
+     *
+     * @param after 上一页最后一条日记的排序键，为null时从最新的日记开始
+     */
+    public DiaryPage readAfter(String openid, DiaryIndexEntry after, int limit) throws IOException {
+        Predicate<DiaryIndexEntry> filter = after == null
+                ? entry -> true
+                : entry -> DiaryIndexEntry.NEWEST_FIRST.compare(entry, after) > 0;
+        ScanResult result = scan(openid, filter, Math.max(limit, 0));
+
+        List<DiaryIndexEntry> records = new ArrayList<>();
+        for (Candidate candidate : result.top) {
+            records.add(loadContent(openid, candidate, result.stamps.get(candidate.entry.getYear())));
+        }
+        return new DiaryPage(records, result.totalCount);
+    }
+
+    /**
+     * 读取记录时间在日期范围内的日记，按所在日期降序
+     *
+     * @param range 日期范围，为null时读取所有日记
+     */
+    public List<DiaryIndexEntry> readRange(String openid, DiaryDateRange range) throws IOException {
+        Predicate<DiaryIndexEntry> filter = range == null
+                ? entry -> true
+                : entry -> range.contains(entry.getLogTime(), entry.getYear());
+        ScanResult result = scan(openid, filter, Integer.MAX_VALUE);
+
+        List<DiaryIndexEntry> records = new ArrayList<>();
+        for (Candidate candidate : result.top) {
+            records.add(loadContent(openid, candidate, result.stamps.get(candidate.entry.getYear())));
+        }
+        records.sort(DiaryIndexEntry.NEWEST_DAY_FIRST);
+        return records;
+    }
+
+    /**
+     * 读取所有日记的元数据，不回读editorContent，每个年度文件只扫描一遍
+     */
+    public List<DiaryIndexEntry> readMetadata(String openid) throws IOException {
+        ScanResult result = scan(openid, entry -> true, Integer.MAX_VALUE);
+
+        List<DiaryIndexEntry> records = new ArrayList<>(result.top.size());
+        for (Candidate candidate : result.top) {
+            records.add(candidate.entry);
+        }
+        return records;
+    }
+
+    private ScanResult scan(String openid, Predicate<DiaryIndexEntry> filter, int limit) throws IOException {
+        // 堆顶是当前保留的最旧一条，新条目比它新时替换它
+        PriorityQueue<Candidate> heap = new PriorityQueue<>(Math.min(limit, 1024) + 1,
+                (c1, c2) -> DiaryIndexEntry.NEWEST_FIRST.compare(c2.entry, c1.entry));
+        ScanResult result = new ScanResult();
+
+        for (String year : diaryJournalService.listYears(openid)) {
+            result.totalCount += diaryJournalService.withReadLock(openid, year,
+                    () -> scanYear(openid, year, heap, limit, filter, result.stamps));
+        }
+
+        result.top = new ArrayList<>(heap);
+        result.top.sort((c1, c2) -> DiaryIndexEntry.NEWEST_FIRST.compare(c1.entry, c2.entry));
+        return result;
+    }
+
+    /**
+     * 扫描一个年度文件及其未合并的日志，返回该年的日记数
+     */
+    private int scanYear(String openid, String year, PriorityQueue<Candidate> heap, int limit,
+                         Predicate<DiaryIndexEntry> filter, Map<String, FileStamp> stamps) throws IOException {
+        int count = 0;
+        Map<String, JSONObject> overlay = diaryJournalService.readLogOverlay(openid, year);
+
+        Path yearFile = diaryJournalService.yearFilePath(openid, year);
+        if (Files.exists(yearFile)) {
+            stamps.put(year, FileStamp.of(yearFile));
+            try (JsonParser parser = jsonFactory.createParser(yearFile.toFile())) {
+                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String key = parser.getCurrentName();
+                        parser.nextToken();
+                        // 日志中有更新的版本或已删除，以日志为准
+                        if (overlay.containsKey(key) || parser.currentToken() != JsonToken.START_OBJECT) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        offer(heap, limit, filter, parseDiary(parser, year, key));
+                        count++;
+                    }
+                }
+            }
+        } else if (Files.exists(diaryJournalService.archiveFilePath(openid, year))) {
+            // 归档年份整体解压，日记内容直接保留在条目中
+            JSONObject archived = DiaryArchiveFile.readAll(diaryJournalService.archiveFilePath(openid, year));
+            for (String key : archived.keySet()) {
+                if (!overlay.containsKey(key)) {
+                    offer(heap, limit, filter, new Candidate(DiaryIndexEntry.of(year, key, archived.getJSONObject(key)), -1));
+                    count++;
+                }
+            }
+        }
+
+        for (Map.Entry<String, JSONObject> entry : overlay.entrySet()) {
+            if (entry.getValue() != null) {
+                offer(heap, limit, filter, new Candidate(DiaryIndexEntry.of(year, entry.getKey(), entry.getValue()), -1));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 解析一篇日记，editorContent只记录其在文件中的字节偏移
+     */
+    private Candidate parseDiary(JsonParser parser, String year, String key) throws IOException {
+        Map<String, String> fields = new HashMap<>();
+        List<String> imageUrls = new ArrayList<>();
+        long contentOffset = -1;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("editorContent".equals(field)) {
+                if (token == JsonToken.VALUE_STRING) {
+                    contentOffset = parser.getTokenLocation().getByteOffset();
+                }
+            } else if ("imageUrls".equals(field) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    imageUrls.add(parser.getValueAsString(""));
+                }
+            } else if (token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+                fields.put(field, parser.getValueAsString(""));
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        DiaryIndexEntry entry = DiaryIndexEntry.of(year, key,
+                fields.getOrDefault("diaryId", ""),
+                null,
+                fields.get("preview"),
+                fields.getOrDefault("createTime", ""),
+                fields.getOrDefault("logTime", ""),
+                fields.getOrDefault("logWeek", ""),
+                fields.getOrDefault("logLunar", ""),
+                fields.getOrDefault("address", ""),
+                imageUrls);
+        return new Candidate(entry, contentOffset);
+    }
+
+    private static void offer(PriorityQueue<Candidate> heap, int limit, Predicate<DiaryIndexEntry> filter,
+                              Candidate candidate) {
+        if (limit == 0 || !filter.test(candidate.entry)) {
+            return;
+        }
+        if (heap.size() < limit) {
+            heap.offer(candidate);
+        } else if (DiaryIndexEntry.NEWEST_FIRST.compare(candidate.entry, heap.peek().entry) < 0) {
+            heap.poll();
+            heap.offer(candidate);
+        }
+    }
+
+    /**
+     * 回读当前页日记的editorContent；扫描后年度文件若已被检查点替换，则按key重新读取
+     */
+    private DiaryIndexEntry loadContent(String openid, Candidate candidate, FileStamp stamp) throws IOException {
+        DiaryIndexEntry entry = candidate.entry;
+        if (entry.getEditorContent() != null) {
+            return entry;
+        }
+        if (candidate.contentOffset < 0) {
+            return entry.withEditorContent("");
+        }
+
+        String content = diaryJournalService.withReadLock(openid, entry.getYear(), () -> {
+            Path yearFile = diaryJournalService.yearFilePath(openid, entry.getYear());
+            if (stamp == null || !stamp.equals(FileStamp.of(yearFile))) {
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(yearFile, StandardOpenOption.READ);
+                 JsonParser parser = jsonFactory.createParser(
+                         Channels.newInputStream(channel.position(candidate.contentOffset)))) {
+                return parser.nextToken() == JsonToken.VALUE_STRING ? parser.getText() : "";
+            }
+        });
+        if (content == null) {
+            JSONObject diary = diaryJournalService.readYear(openid, entry.getYear()).optJSONObject(entry.getKey());
+            content = diary != null ? diary.optString("editorContent", "") : "";
+        }
+        return entry.withEditorContent(content);
+    }
+
+    /**
+     * 一次扫描的结果
+     */
+    private static class ScanResult {
+        private final Map<String, FileStamp> stamps = new HashMap<>();
+        private List<Candidate> top;
+        private int totalCount;
+    }
+
+    /**
+     * 扫描时保留的候选日记
+     */
+    private static class Candidate {
+        private final DiaryIndexEntry entry;
+        private final long contentOffset;
+
+        Candidate(DiaryIndexEntry entry, long contentOffset) {
+            this.entry = entry;
+            this.contentOffset = contentOffset;
+        }
+    }
+
+    /**
+     * 年度文件的大小和修改时间，用于判断回读时文件是否已被替换
+     */
+    private static class FileStamp {
+        private final long size;
+        private final long modifiedTime;
+
+        private FileStamp(long size, long modifiedTime) {
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+        }
+
+        static FileStamp of(Path path) throws IOException {
+            if (!Files.exists(path)) {
+                return new FileStamp(-1, -1);
+            }
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new FileStamp(attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileStamp)) {
+                return false;
+            }
+            FileStamp other = (FileStamp) o;
+            return size == other.size && modifiedTime == other.modifiedTime;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, modifiedTime);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package wy.diary.server.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.stream.Stream;
+
+/**
+ * 图片内容寻址存储：相同内容的图片在磁盘上只存一份
+ * <p>
+ * 上传时边写临时文件边计算SHA-256，内容存为 {image.storage.path}/.blobs/{前两位}/{哈希}{扩展名}，
+ * 原来的 {openid}/{年份}/{时间}_{日记ID}.扩展名 文件改为指向该内容的硬链接，查看、Range和缩略图都不受影响。
+ * 引用计数即文件系统的链接数（减去 .blobs 下的一个），由文件系统随创建和删除链接原子维护；
+ * 删除图片时移除引用，最后一个引用被删除时同时删除内容文件。
+ * <p>
+ * 文件系统不支持unix属性（无法读取链接数）或 image.blob.enable=false 时退回每次上传保存一份。
+ * 启用前已存在的图片仍是独立文件，删除方式不变。
+ */
+@Service
+public class ImageBlobService implements InitializingBean {
+    private static final Logger logger = LoggerFactory.getLogger(ImageBlobService.class);
+
+    private static final String BLOB_DIR = ".blobs";
+    private static final String TEMP_DIR = "tmp";
+
+    // 按哈希分段加锁，保证同一内容的链接创建与内容文件删除互斥
+    private static final int LOCK_STRIPES = 64;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${image.storage.path}")
+    private String storagePath;
+
+    @Value("${image.blob.enable:true}")
+    private boolean enabled;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private Counter storedCounter;
+    private Counter deduplicatedCounter;
+    private Counter savedBytesCounter;
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        if (enabled && !FileSystems.getDefault().supportedFileAttributeViews().contains("unix")) {
+            logger.warn("文件系统不支持读取链接数，图片去重已关闭");
+            enabled = false;
+        }
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        storedCounter = Counter.builder("diary.images.blobs.stored").register(meterRegistry);
+        deduplicatedCounter = Counter.builder("diary.images.blobs.deduplicated").register(meterRegistry);
+        savedBytesCounter = Counter.builder("diary.images.blobs.saved.bytes").register(meterRegistry);
+
+        // 清理上次退出时未完成上传的临时文件
+        Path tempDir = blobRoot().resolve(TEMP_DIR);
+        if (Files.isDirectory(tempDir)) {
+            try (Stream<Path> files = Files.list(tempDir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * 内容存储目录，备份时跳过
+     */
+    public Path blobRoot() {
+        return Paths.get(storagePath).resolve(BLOB_DIR);
+    }
+
+    /**
+     * 保存上传的图片，相同内容已存在时只创建引用
+     *
+     * @param reference 图片文件路径，不能已存在
+     * @return 是否与已有图片内容相同
+     */
+    public boolean store(InputStream inputStream, Path reference) throws IOException {
+        Path temp = createTempFile();
+        try {
+            MessageDigest digest = sha256();
+            try (DigestInputStream digestStream = new DigestInputStream(inputStream, digest)) {
+                Files.copy(digestStream, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return commit(temp, HexFormat.of().formatHex(digest.digest()), reference);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * 创建上传用的临时文件，与图片在同一文件系统上，提交时只需移动或链接
+     */
+    public Path createTempFile() throws IOException {
+        Path tempDir = blobRoot().resolve(TEMP_DIR);
+        Files.createDirectories(tempDir);
+        return Files.createTempFile(tempDir, "upload-", ".tmp");
+    }
+
+    /**
+     * 把已写完的临时文件保存为图片，相同内容已存在时只创建引用；完成后临时文件不再存在
+     *
+     * @param temp {@link #createTempFile()} 创建的临时文件
+     * @param hash 临时文件内容的SHA-256（十六进制）
+     * @param reference 图片文件路径，不能已存在
+     * @return 是否与已有图片内容相同
+     */
+    public boolean commit(Path temp, String hash, Path reference) throws IOException {
+        if (!enabled) {
+            Files.move(temp, reference);
+            return false;
+        }
+        Path blob = blobFile(hash, reference);
+        Files.createDirectories(blob.getParent());
+
+        synchronized (lockFor(hash)) {
+            boolean duplicate = Files.exists(blob);
+            if (!duplicate) {
+                Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+            }
+            try {
+                Files.createLink(reference, blob);
+            } catch (FileAlreadyExistsException e) {
+                // 图片已存在时刚移入的内容文件没有任何引用，删除后再报错
+                if (!duplicate) {
+                    Files.deleteIfExists(blob);
+                }
+                throw e;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // 不能创建硬链接（例如跨文件系统）时保存独立的一份
+                logger.warn("无法创建图片链接，保存为独立文件: {}", reference, e);
+                if (duplicate) {
+                    Files.move(temp, reference);
+                } else {
+                    Files.move(blob, reference);
+                }
+                return false;
+            }
+            if (duplicate) {
+                Files.deleteIfExists(temp);
+                deduplicatedCounter.increment();
+                savedBytesCounter.increment(Files.size(blob));
+            } else {
+                storedCounter.increment();
+            }
+            return duplicate;
+        }
+    }
+
+    /**
+     * 删除图片引用，是最后一个引用时同时删除内容文件
+     *
+     * @return 图片是否存在
+     */
+    public boolean release(Path reference) throws IOException {
+        if (!Files.exists(reference)) {
+            return false;
+        }
+        if (!enabled || linkCount(reference) < 2) {
+            // 独立文件
+            return Files.deleteIfExists(reference);
+        }
+
+        MessageDigest digest = sha256();
+        try (InputStream inputStream = new DigestInputStream(Files.newInputStream(reference), digest)) {
+            inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+        String hash = HexFormat.of().formatHex(digest.digest());
+        Path blob = blobFile(hash, reference);
+        synchronized (lockFor(hash)) {
+            boolean linked = Files.exists(blob) && Files.isSameFile(reference, blob);
+            boolean deleted = Files.deleteIfExists(reference);
+            if (linked && linkCount(blob) == 1) {
+                Files.deleteIfExists(blob);
+                logger.debug("图片内容已无引用，删除: {}", blob);
+            }
+            return deleted;
+        }
+    }
+
+    private Path blobFile(String hash, Path reference) {
+        String name = reference.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String extension = dot >= 0 ? name.substring(dot).toLowerCase() : "";
+        return blobRoot().resolve(hash.substring(0, 2)).resolve(hash + extension);
+    }
+
+    private Object lockFor(String hash) {
+        return locks[Math.floorMod(hash.hashCode(), LOCK_STRIPES)];
+    }
+
+    private static int linkCount(Path file) throws IOException {
+        return (Integer) Files.getAttribute(file, "unix:nlink");
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package wy.diary.server.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import wy.diary.server.model.CachedImage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 热点图片缓存：最近常看的图片内容保存在堆外内存（direct ByteBuffer）中，命中时不访问磁盘
+ * <p>
+ * 由 image.cache.enable 开启，缓存总字节数不超过 image.cache.max-bytes，
+ * 超过 image.cache.max-entry-bytes 的图片不缓存。淘汰按LRU，准入按TinyLFU：
+ * 用计数草图（每个计数4位，定期减半）统计每张图片最近的访问频率，缓存已满时，
+ * 只有访问频率高于LRU末尾图片的新图片才会放入并淘汰后者，只看一次的图片不会挤掉热点图片。
+ * <p>
+ * 图片文件名带上传时间，内容不变，缓存不检查文件修改时间；删除图片和缩略图时调用 {@link #invalidate}。
+ * 堆外内存在缓存项被淘汰并回收后释放，部署时 -XX:MaxDirectMemorySize 应大于 image.cache.max-bytes。
+ * <p>
+ * 指标：diary.images.cache.hits / misses / rejected（未准入）/ evictions，
+ * diary.images.cache.bytes 缓存字节数，diary.images.cache.hit.ratio 命中率。
+ */
+@Service
+public class ImageCacheService implements InitializingBean {
+    private static final Logger logger = LoggerFactory.getLogger(ImageCacheService.class);
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${image.cache.enable:false}")
+    private boolean enabled;
+
+    // 缓存的图片总字节数上限，默认64MB
+    @Value("${image.cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    // 单张图片的字节数上限，更大的图片不缓存，默认2MB
+    @Value("${image.cache.max-entry-bytes:2097152}")
+    private long maxEntryBytes;
+
+    // accessOrder=true，迭代顺序即LRU顺序；cache、totalBytes、sketch和generation由this加锁保护
+    private final LinkedHashMap<String, CachedImage> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private FrequencySketch sketch;
+    // 每次失效递增，读取期间发生过失效的图片不放入缓存
+    private long generation;
+
+    private Counter hitCounter;
+    private Counter missCounter;
+    private Counter rejectedCounter;
+    private Counter evictionCounter;
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) {
+            return;
+        }
+        // 按平均每张图片64KB估算缓存的图片数，计数草图的计数器数为其若干倍
+        sketch = new FrequencySketch((int) Math.min(1 << 22, Math.max(1024, maxBytes / 65536 * 8)));
+        hitCounter = Counter.builder("diary.images.cache.hits").register(meterRegistry);
+        missCounter = Counter.builder("diary.images.cache.misses").register(meterRegistry);
+        rejectedCounter = Counter.builder("diary.images.cache.rejected").register(meterRegistry);
+        evictionCounter = Counter.builder("diary.images.cache.evictions").register(meterRegistry);
+        Gauge.builder("diary.images.cache.bytes", this, ImageCacheService::cachedBytes).register(meterRegistry);
+        Gauge.builder("diary.images.cache.hit.ratio", this, ImageCacheService::hitRatio).register(meterRegistry);
+        logger.info("热点图片缓存已启用，容量上限: {} 字节，单张上限: {} 字节", maxBytes, maxEntryBytes);
+    }
+
+    /**
+     * 获取图片内容，未命中时按准入策略决定是否读入缓存
+     *
+     * @param file 图片文件，已确认存在
+     * @return 缓存的图片；未开启、图片过大或未准入时返回null，由调用方从文件发送
+     */
+    public CachedImage get(Path file) throws IOException {
+        if (!enabled) {
+            return null;
+        }
+        String key = file.toAbsolutePath().normalize().toString();
+        long startGeneration;
+        synchronized (this) {
+            sketch.increment(key);
+            CachedImage cached = cache.get(key);
+            if (cached != null) {
+                hitCounter.increment();
+                return cached;
+            }
+            startGeneration = generation;
+        }
+        missCounter.increment();
+
+        long size = Files.size(file);
+        if (size == 0 || size > maxEntryBytes || !admit(key, size)) {
+            rejectedCounter.increment();
+            return null;
+        }
+
+        CachedImage image = read(file, (int) size);
+        if (image == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (generation != startGeneration) {
+                // 读取期间有图片被删除，可能就是这张
+                return image;
+            }
+            store(key, image);
+        }
+        return image;
+    }
+
+    /**
+     * 图片或缩略图被删除，移出缓存
+     */
+    public void invalidate(Path file) {
+        if (!enabled) {
+            return;
+        }
+        String key = file.toAbsolutePath().normalize().toString();
+        synchronized (this) {
+            generation++;
+            CachedImage removed = cache.remove(key);
+            if (removed != null) {
+                totalBytes -= removed.size();
+            }
+        }
+    }
+
+    /**
+     * 缓存有空间时直接准入，否则要求访问频率高于LRU末尾的图片
+     */
+    private synchronized boolean admit(String key, long size) {
+        if (totalBytes + size <= maxBytes) {
+            return true;
+        }
+        if (cache.isEmpty()) {
+            return size <= maxBytes;
+        }
+        String victim = cache.keySet().iterator().next();
+        return sketch.frequency(key) > sketch.frequency(victim);
+    }
+
+    private static CachedImage read(Path file, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    // 文件在读取时变短，不缓存
+                    return null;
+                }
+            }
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            buffer.flip();
+            return new CachedImage(buffer, lastModified);
+        }
+    }
+
+    private void store(String key, CachedImage image) {
+        CachedImage previous = cache.put(key, image);
+        if (previous != null) {
+            totalBytes -= previous.size();
+        }
+        totalBytes += image.size();
+
+        Iterator<Map.Entry<String, CachedImage>> iterator = cache.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, CachedImage> eldest = iterator.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            totalBytes -= eldest.getValue().size();
+            iterator.remove();
+            evictionCounter.increment();
+        }
+    }
+
+    private synchronized double cachedBytes() {
+        return totalBytes;
+    }
+
+    private double hitRatio() {
+        double hits = hitCounter.count();
+        double total = hits + missCounter.count();
+        return total == 0 ? 0 : hits / total;
+    }
+
+    /**
+     * 4位计数的Count-Min草图：每个key对应4个计数器，频率取其最小值；
+     * 累计增加次数达到计数器数的10倍时所有计数减半，使频率反映最近的访问
+     */
+    private static final class FrequencySketch {
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        // 每个long存16个4位计数器
+        private final long[] table;
+        private final int counterMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int counters) {
+            int size = Integer.highestOneBit(Math.max(16, counters) - 1) << 1;
+            table = new long[size / 16];
+            counterMask = size - 1;
+            sampleSize = size * 10;
+        }
+
+        int frequency(String key) {
+            int frequency = 15;
+            for (int seed : SEEDS) {
+                frequency = Math.min(frequency, get(index(key, seed)));
+            }
+            return frequency;
+        }
+
+        void increment(String key) {
+            boolean added = false;
+            for (int seed : SEEDS) {
+                int index = index(key, seed);
+                if (get(index) < 15) {
+                    table[index >>> 4] += 1L << ((index & 15) << 2);
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int get(int index) {
+            return (int) (table[index >>> 4] >>> ((index & 15) << 2)) & 15;
+        }
+
+        private int index(String key, int seed) {
+            int hash = key.hashCode() * seed;
+            hash ^= hash >>> 16;
+            return hash & counterMask;
+        }
+    }
+}
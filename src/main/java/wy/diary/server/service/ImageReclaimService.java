@@ -0,0 +1,320 @@
+package wy.diary.server.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 图片回收队列：删除日记时只登记要删除的图片，由后台线程批量删除文件
+ * <p>
+ * 登记记录先追加到 {diary.storage.path}/reclaim/queue.log 并落盘，删除请求随即返回。
+ * 后台线程每次取出积压的一批记录删除文件，完成后把已处理到的日志偏移写入 queue.offset；
+ * 重启时从该偏移继续，因此未处理的图片不会因进程退出而遗留。
+ * 一批删除完成后到偏移写入前崩溃的记录会被重放一次，图片已不存在时直接跳过。
+ * 追加失败时截回追加前的长度；写了一半的记录在重启时跳过，不影响之后的记录。
+ */
+@Service
+public class ImageReclaimService implements InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(ImageReclaimService.class);
+
+    private static final String RECLAIM_DIR = "reclaim";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ImageVariantService imageVariantService;
+
+    @Autowired
+    private ImageBlobService imageBlobService;
+
+    @Autowired
+    private ImageCacheService imageCacheService;
+
+    @Value("${diary.storage.path:diary}")
+    private String storagePath;
+
+    // 一批最多删除的登记记录数
+    @Value("${image.reclaim.batch-size:64}")
+    private int batchSize;
+
+    // 待处理的登记记录，end为记录在日志中的结束偏移
+    private final BlockingQueue<ReclaimTask> taskQueue = new LinkedBlockingQueue<>();
+
+    // 追加登记记录与清空日志互斥
+    private final Object logMonitor = new Object();
+    private FileChannel logChannel;
+    // 日志末尾有截不掉的半条记录，下一条记录先写换行
+    private boolean logTorn;
+
+    private final AtomicLong pendingImages = new AtomicLong();
+    private final AtomicLong reclaimedImages = new AtomicLong();
+    private final AtomicLong missingImages = new AtomicLong();
+    private final AtomicLong failedImages = new AtomicLong();
+
+    private volatile boolean running;
+    private Thread workerThread;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Files.createDirectories(reclaimDir());
+        logChannel = FileChannel.open(logFile(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int recovered = recover();
+
+        Gauge.builder("diary.images.reclaim.pending", pendingImages, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("diary.images.reclaim.reclaimed", reclaimedImages, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("diary.images.reclaim.failed", failedImages, AtomicLong::get).register(meterRegistry);
+
+        running = true;
+        workerThread = new Thread(this::processTaskQueue, "image-reclaim-worker");
+        workerThread.setDaemon(true);
+        workerThread.start();
+        logger.info("图片回收队列已启动，恢复未处理的登记记录 {} 条，待删除图片 {} 张", recovered, pendingImages.get());
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        running = false;
+        if (workerThread != null) {
+            workerThread.interrupt();
+            workerThread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        synchronized (logMonitor) {
+            logChannel.close();
+        }
+        logger.info("图片回收队列已关闭，剩余待删除图片 {} 张", pendingImages.get());
+    }
+
+    /**
+     * 登记一篇日记要删除的图片，登记记录落盘后返回
+     *
+     * @param imageUrls 日记中保存的图片完整路径
+     */
+    public void enqueue(String openid, List<String> imageUrls) throws IOException {
+        if (imageUrls.isEmpty()) {
+            return;
+        }
+        JSONObject record = new JSONObject();
+        record.put("openid", openid);
+        record.put("paths", new JSONArray(imageUrls));
+        String line = record.toString() + "\n";
+
+        synchronized (logMonitor) {
+            long start = logChannel.size();
+            ByteBuffer buffer = ByteBuffer.wrap(((logTorn ? "\n" : "") + line).getBytes(StandardCharsets.UTF_8));
+            long end = start + buffer.remaining();
+            try {
+                while (buffer.hasRemaining()) {
+                    logChannel.write(buffer, start + buffer.position());
+                }
+                logChannel.force(false);
+            } catch (IOException e) {
+                // 截掉写了一半的记录，之后的记录仍从新的一行开始
+                try {
+                    logChannel.truncate(start);
+                } catch (IOException ex) {
+                    logger.error("截断图片回收日志失败", ex);
+                    logTorn = true;
+                }
+                throw e;
+            }
+            logTorn = false;
+            pendingImages.addAndGet(imageUrls.size());
+            taskQueue.offer(new ReclaimTask(openid, imageUrls, end));
+        }
+    }
+
+    /**
+     * 回收进度
+     *
+     * @return 包含pendingImages、reclaimedImages、missingImages、failedImages的数据
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("pendingImages", pendingImages.get());
+        status.put("reclaimedImages", reclaimedImages.get());
+        status.put("missingImages", missingImages.get());
+        status.put("failedImages", failedImages.get());
+        return status;
+    }
+
+    /**
+     * 后台线程主循环：每次取出积压的一批登记记录删除图片，然后提交处理进度
+     */
+    private void processTaskQueue() {
+        List<ReclaimTask> batch = new ArrayList<>();
+        while (running) {
+            try {
+                ReclaimTask first = taskQueue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                taskQueue.drainTo(batch, batchSize - 1);
+
+                int reclaimed = 0;
+                for (ReclaimTask task : batch) {
+                    reclaimed += reclaim(task);
+                }
+                commit(batch.get(batch.size() - 1).end);
+                logger.info("已回收 {} 篇日记的图片 {} 张，剩余待删除 {} 张", batch.size(), reclaimed, pendingImages.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                // 进度未提交，重启后从上次的偏移重放
+                logger.error("提交图片回收进度失败", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private int reclaim(ReclaimTask task) {
+        int reclaimed = 0;
+        for (String imagePath : task.paths) {
+            try {
+                imageVariantService.deleteVariants(Paths.get(imagePath));
+                imageCacheService.invalidate(Paths.get(imagePath));
+                if (imageBlobService.release(Paths.get(imagePath))) {
+                    reclaimedImages.incrementAndGet();
+                    reclaimed++;
+                } else {
+                    missingImages.incrementAndGet();
+                    logger.warn("日记图片不存在，无法删除: {}", imagePath);
+                }
+            } catch (Exception e) {
+                failedImages.incrementAndGet();
+                logger.error("删除日记图片失败: {}, 用户: {}", imagePath, task.openid, e);
+            } finally {
+                pendingImages.decrementAndGet();
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * 记录已处理到的日志偏移；队列已空时清空日志，避免日志无限增长
+     */
+    private void commit(long end) throws IOException {
+        synchronized (logMonitor) {
+            if (taskQueue.isEmpty() && logChannel.size() == end) {
+                logChannel.truncate(0);
+                logChannel.force(true);
+                writeOffset(0);
+            } else {
+                writeOffset(end);
+            }
+        }
+    }
+
+    /**
+     * 从上次提交的偏移开始读取未处理的登记记录
+     */
+    private int recover() throws IOException {
+        long offset = 0;
+        Path offsetFile = offsetFile();
+        if (Files.exists(offsetFile)) {
+            try {
+                offset = Long.parseLong(Files.readString(offsetFile, StandardCharsets.UTF_8).trim());
+            } catch (NumberFormatException e) {
+                logger.warn("回收进度文件已损坏，从头重放: {}", offsetFile);
+            }
+        }
+        if (offset > logChannel.size()) {
+            offset = 0;
+        }
+
+        int recovered = 0;
+        try (RandomAccessFile file = new RandomAccessFile(logFile().toFile(), "r")) {
+            file.seek(offset);
+            String line;
+            while ((line = file.readLine()) != null) {
+                long end = file.getFilePointer();
+                // readLine按ISO-8859-1解码，还原为原始字节后再按UTF-8解析
+                String text = new String(line.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+                if (text.isBlank()) {
+                    continue;
+                }
+                try {
+                    JSONObject record = new JSONObject(text);
+                    List<String> paths = new ArrayList<>();
+                    for (Object path : record.getJSONArray("paths")) {
+                        paths.add(String.valueOf(path));
+                    }
+                    pendingImages.addAndGet(paths.size());
+                    taskQueue.offer(new ReclaimTask(record.optString("openid"), paths, end));
+                    recovered++;
+                } catch (JSONException e) {
+                    // 写了一半的记录，对应的删除请求未返回成功
+                    logger.warn("跳过损坏的图片回收记录: {}", text);
+                }
+            }
+        }
+        logTorn = !endsWithNewline();
+        return recovered;
+    }
+
+    private boolean endsWithNewline() throws IOException {
+        if (logChannel.size() == 0) {
+            return true;
+        }
+        ByteBuffer last = ByteBuffer.allocate(1);
+        logChannel.read(last, logChannel.size() - 1);
+        return last.get(0) == '\n';
+    }
+
+    private void writeOffset(long offset) throws IOException {
+        Path temp = reclaimDir().resolve("queue.offset.tmp");
+        Files.write(temp, String.valueOf(offset).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, offsetFile(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path reclaimDir() {
+        return Paths.get(storagePath).resolve(RECLAIM_DIR);
+    }
+
+    private Path logFile() {
+        return reclaimDir().resolve("queue.log");
+    }
+
+    private Path offsetFile() {
+        return reclaimDir().resolve("queue.offset");
+    }
+
+    /**
+     * 一篇日记的图片回收登记
+     */
+    private static class ReclaimTask {
+        private final String openid;
+        private final List<String> paths;
+        private final long end;
+
+        ReclaimTask(String openid, List<String> paths, long end) {
+            this.openid = openid;
+            this.paths = paths;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package wy.diary.server.service;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+
+/**
+ * 分片续传上传：客户端先登记上传（init），再按偏移上传各个分片（可并行、可重传），全部到齐后提交（complete）
+ * <p>
+ * 每个上传在 {image.storage.path}/.blobs/uploads/ 下有三个文件：{uploadId}.json 上传信息，
+ * {uploadId}.data 按偏移用 FileChannel 定位写入的文件内容，{uploadId}.chunks 已收到的分片序号（每个4字节，追加写）。
+ * 分片写完并落盘后才记录序号，因此服务重启后也能按 {@link #getStatus} 返回的缺失分片继续上传。
+ * 重传已收到的分片前先追加取反的序号，把该分片记为未收到，重传中断时不会把写了一半的分片当作已收到；
+ * 有分片正在写入时不能提交，提交开始后不再接受分片。
+ * 文件只在处理请求时打开，未完成的上传不占用文件句柄；每个用户未完成的上传数不超过 image.upload.max-sessions-per-user。
+ * 超过 image.upload.expire-hours 未完成的上传被定时清理。
+ */
+@Service
+public class ImageUploadService implements InitializingBean {
+    private static final Logger logger = LoggerFactory.getLogger(ImageUploadService.class);
+
+    private static final String UPLOAD_DIR = "uploads";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    @Autowired
+    private ImageBlobService imageBlobService;
+
+    // 分片大小，客户端按该大小切分文件
+    @Value("${image.upload.chunk-size:1MB}")
+    private DataSize chunkSize;
+
+    @Value("${spring.servlet.multipart.max-file-size:50MB}")
+    private DataSize maxFileSize;
+
+    @Value("${image.upload.expire-hours:24}")
+    private int expireHours;
+
+    @Value("${image.upload.max-sessions-per-user:8}")
+    private int maxSessionsPerUser;
+
+    private final ConcurrentMap<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        Path dir = uploadDir();
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(".json")) {
+                    continue;
+                }
+                String uploadId = name.substring(0, name.length() - ".json".length());
+                try {
+                    sessions.put(uploadId, UploadSession.load(dir, uploadId));
+                } catch (Exception e) {
+                    logger.error("加载未完成的上传失败，删除: {}", uploadId, e);
+                    deleteFiles(dir, uploadId);
+                }
+            }
+        }
+        if (!sessions.isEmpty()) {
+            logger.info("加载未完成的分片上传 {} 个", sessions.size());
+        }
+    }
+
+    /**
+     * 登记一个分片上传
+     *
+     * @param sha256 文件的SHA-256，可为null；提供时提交前校验
+     * @return 上传信息，含 uploadId、chunkSize、chunkCount
+     * @throws IllegalArgumentException 文件大小不正确或该用户未完成的上传过多
+     */
+    public Map<String, Object> init(String openid, String diaryId, String fileName, long size, String sha256) throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("文件大小不正确");
+        }
+        if (size > maxFileSize.toBytes()) {
+            throw new IllegalArgumentException("上传的文件超过大小限制: " + maxFileSize.toMegabytes() + "MB");
+        }
+        String uploadId = UUID.randomUUID().toString();
+        JSONObject meta = new JSONObject();
+        meta.put("openid", openid);
+        meta.put("diaryId", diaryId);
+        meta.put("fileName", fileName);
+        meta.put("size", size);
+        meta.put("chunkSize", chunkSize.toBytes());
+        meta.put("createTime", System.currentTimeMillis());
+        if (sha256 != null && !sha256.isEmpty()) {
+            meta.put("sha256", sha256.toLowerCase());
+        }
+        // 计数和登记互斥，并发登记时也不会超过上限
+        UploadSession session;
+        synchronized (sessions) {
+            long active = sessions.values().stream().filter(s -> s.meta.getString("openid").equals(openid)).count();
+            if (active >= maxSessionsPerUser) {
+                throw new IllegalArgumentException("未完成的上传过多，请先完成或取消之前的上传");
+            }
+            session = UploadSession.create(uploadDir(), uploadId, meta);
+            sessions.put(uploadId, session);
+        }
+        logger.info("用户 {} 开始分片上传 {}，大小 {} 字节，{} 个分片", openid, uploadId, size, session.chunkCount);
+        return session.toStatus();
+    }
+
+    /**
+     * 写入一个分片，同一分片重复上传时覆盖
+     *
+     * @param offset 分片在文件中的偏移，必须是分片大小的整数倍
+     * @return 上传状态
+     * @throws IllegalArgumentException 上传不存在、偏移或分片长度不正确
+     */
+    public Map<String, Object> writeChunk(String openid, String uploadId, long offset, InputStream content) throws IOException {
+        UploadSession session = getSession(openid, uploadId);
+        if (offset < 0 || offset >= session.size || offset % session.chunkSize != 0) {
+            throw new IllegalArgumentException("分片偏移不正确: " + offset);
+        }
+        int index = (int) (offset / session.chunkSize);
+        long expected = Math.min(session.chunkSize, session.size - offset);
+
+        session.beginWrite(index);
+        try {
+            // 不同分片写入不同位置，FileChannel的定位写可以并发执行
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            long written = 0;
+            try (FileChannel data = FileChannel.open(session.dataFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                int read;
+                while ((read = content.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), expected - written + 1))) >= 0) {
+                    if (written + read > expected) {
+                        throw new IllegalArgumentException("分片长度超过 " + expected + " 字节");
+                    }
+                    buffer.clear().limit(read);
+                    while (buffer.hasRemaining()) {
+                        written += data.write(buffer, offset + written);
+                    }
+                }
+                if (written != expected) {
+                    throw new IllegalArgumentException("分片长度不完整: " + written + "/" + expected);
+                }
+                data.force(false);
+            }
+            session.markReceived(index);
+        } finally {
+            session.endWrite();
+        }
+        return session.toStatus();
+    }
+
+    /**
+     * 上传状态，含已收到的分片序号，用于续传
+     */
+    public Map<String, Object> getStatus(String openid, String uploadId) {
+        return getSession(openid, uploadId).toStatus();
+    }
+
+    /**
+     * 分片全部到齐后开始提交，计算文件的SHA-256并校验
+     * <p>
+     * 上传在调用方保存图片后由 {@link #finish} 删除；保存失败时调用 {@link #release}，上传保留，可以重新提交。
+     *
+     * @return 已完成的上传；调用方把 {@link CompletedUpload#file()} 保存为图片
+     * @throws IllegalArgumentException 上传不存在、分片未到齐或正在写入、正在提交或校验失败（此时上传已被删除）
+     */
+    public CompletedUpload complete(String openid, String uploadId) throws IOException {
+        UploadSession session = getSession(openid, uploadId);
+        synchronized (session) {
+            int missing = session.received.nextClearBit(0);
+            if (missing < session.chunkCount) {
+                throw new IllegalArgumentException("分片未上传完成，缺少分片: " + missing);
+            }
+            if (session.completing) {
+                throw new IllegalArgumentException("上传正在提交");
+            }
+            // 同一分片的另一次重传可能仍在写入
+            if (session.writers > 0) {
+                throw new IllegalArgumentException("分片正在上传，请稍后提交");
+            }
+            session.completing = true;
+        }
+
+        String hash;
+        try {
+            MessageDigest digest = ImageBlobService.sha256();
+            try (InputStream inputStream = new DigestInputStream(Files.newInputStream(session.dataFile), digest)) {
+                inputStream.transferTo(OutputStream.nullOutputStream());
+            }
+            hash = HexFormat.of().formatHex(digest.digest());
+        } catch (IOException | RuntimeException e) {
+            release(openid, uploadId);
+            throw e;
+        }
+        String expected = session.meta.optString("sha256", null);
+        if (expected != null && !expected.equals(hash)) {
+            finish(openid, uploadId);
+            throw new IllegalArgumentException("文件校验失败，请重新上传");
+        }
+        return new CompletedUpload(session.dataFile, hash, session.meta.getString("diaryId"), session.meta.getString("fileName"));
+    }
+
+    /**
+     * 图片已保存，删除上传
+     */
+    public void finish(String openid, String uploadId) {
+        UploadSession session = sessions.get(uploadId);
+        if (session == null || !session.meta.getString("openid").equals(openid) || !sessions.remove(uploadId, session)) {
+            return;
+        }
+        try {
+            deleteFiles(uploadDir(), uploadId);
+        } catch (IOException e) {
+            logger.warn("删除已完成的上传文件失败: {}", uploadId, e);
+        }
+    }
+
+    /**
+     * 保存图片失败，结束提交；文件内容仍在时上传保留，可以重新提交，否则删除上传
+     */
+    public void release(String openid, String uploadId) {
+        UploadSession session = sessions.get(uploadId);
+        if (session == null || !session.meta.getString("openid").equals(openid)) {
+            return;
+        }
+        if (!Files.exists(session.dataFile)) {
+            finish(openid, uploadId);
+            return;
+        }
+        synchronized (session) {
+            session.completing = false;
+        }
+    }
+
+    /**
+     * 放弃上传，删除已收到的分片
+     */
+    public void abort(String openid, String uploadId) throws IOException {
+        UploadSession session = getSession(openid, uploadId);
+        if (session.isCompleting()) {
+            throw new IllegalArgumentException("上传正在提交");
+        }
+        if (sessions.remove(uploadId, session)) {
+            deleteFiles(uploadDir(), uploadId);
+        }
+    }
+
+    /**
+     * 定时清理超时未完成的上传
+     */
+    @Scheduled(fixedDelayString = "${image.upload.cleanup-interval:3600000}")
+    public void cleanExpired() {
+        long deadline = System.currentTimeMillis() - expireHours * 3600_000L;
+        for (Map.Entry<String, UploadSession> entry : sessions.entrySet()) {
+            UploadSession session = entry.getValue();
+            if (session.meta.getLong("createTime") < deadline && !session.isCompleting()
+                    && sessions.remove(entry.getKey(), session)) {
+                try {
+                    deleteFiles(uploadDir(), entry.getKey());
+                    logger.info("已清理超时未完成的上传: {}", entry.getKey());
+                } catch (IOException e) {
+                    logger.error("清理超时的上传失败: {}", entry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    private UploadSession getSession(String openid, String uploadId) {
+        UploadSession session = sessions.get(uploadId);
+        if (session == null || !session.meta.getString("openid").equals(openid)) {
+            throw new IllegalArgumentException("上传不存在或已完成");
+        }
+        return session;
+    }
+
+    private Path uploadDir() {
+        return imageBlobService.blobRoot().resolve(UPLOAD_DIR);
+    }
+
+    private static void deleteFiles(Path dir, String uploadId) throws IOException {
+        Files.deleteIfExists(dir.resolve(uploadId + ".data"));
+        Files.deleteIfExists(dir.resolve(uploadId + ".chunks"));
+        Files.deleteIfExists(dir.resolve(uploadId + ".json"));
+    }
+
+    /**
+     * 分片全部到齐并通过校验的上传
+     *
+     * @param file 文件内容，与图片目录在同一文件系统上
+     * @param sha256 文件的SHA-256（十六进制）
+     */
+    public record CompletedUpload(Path file, String sha256, String diaryId, String fileName) {
+    }
+
+    private static final class UploadSession {
+        final String uploadId;
+        final JSONObject meta;
+        final long size;
+        final long chunkSize;
+        final int chunkCount;
+        final Path dataFile;
+        final Path chunkFile;
+        // 已收到的分片、正在写入的分片数和是否正在提交，由this保护
+        final BitSet received = new BitSet();
+        int writers;
+        boolean completing;
+
+        private UploadSession(Path dir, String uploadId, JSONObject meta) throws IOException {
+            this.uploadId = uploadId;
+            this.meta = meta;
+            this.size = meta.getLong("size");
+            this.chunkSize = meta.getLong("chunkSize");
+            this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+            this.dataFile = dir.resolve(uploadId + ".data");
+            this.chunkFile = dir.resolve(uploadId + ".chunks");
+        }
+
+        static UploadSession create(Path dir, String uploadId, JSONObject meta) throws IOException {
+            Path temp = dir.resolve(uploadId + ".json.tmp");
+            Files.writeString(temp, meta.toString(), StandardCharsets.UTF_8);
+            Files.move(temp, dir.resolve(uploadId + ".json"), StandardCopyOption.ATOMIC_MOVE);
+            return new UploadSession(dir, uploadId, meta);
+        }
+
+        static UploadSession load(Path dir, String uploadId) throws IOException {
+            JSONObject meta = new JSONObject(Files.readString(dir.resolve(uploadId + ".json"), StandardCharsets.UTF_8));
+            // 末尾不完整的记录（写入时崩溃）忽略，该分片重新上传
+            UploadSession session = new UploadSession(dir, uploadId, meta);
+            Path chunks = session.chunkFile;
+            ByteBuffer log = ByteBuffer.wrap(Files.exists(chunks) ? Files.readAllBytes(chunks) : new byte[0]);
+            if (log.remaining() % 4 != 0) {
+                // 截掉不完整的记录，之后追加的记录仍按4字节对齐
+                try (FileChannel chunkLog = FileChannel.open(chunks, StandardOpenOption.WRITE)) {
+                    chunkLog.truncate(log.remaining() - log.remaining() % 4);
+                }
+            }
+            while (log.remaining() >= 4) {
+                int record = log.getInt();
+                // 取反的序号表示该分片开始重传，之前收到的内容作废
+                int index = record >= 0 ? record : ~record;
+                if (index < session.chunkCount) {
+                    session.received.set(index, record >= 0);
+                }
+            }
+            return session;
+        }
+
+        /**
+         * 开始写入分片；分片已收到时先记为未收到
+         */
+        synchronized void beginWrite(int index) throws IOException {
+            if (completing) {
+                throw new IllegalArgumentException("上传正在提交");
+            }
+            if (received.get(index)) {
+                appendRecord(~index);
+                received.clear(index);
+            }
+            writers++;
+        }
+
+        synchronized void endWrite() {
+            writers--;
+        }
+
+        synchronized void markReceived(int index) throws IOException {
+            if (received.get(index)) {
+                return;
+            }
+            appendRecord(index);
+            received.set(index);
+        }
+
+        private void appendRecord(int value) throws IOException {
+            ByteBuffer record = ByteBuffer.allocate(4).putInt(value).flip();
+            try (FileChannel chunkLog = FileChannel.open(chunkFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (record.hasRemaining()) {
+                    chunkLog.write(record);
+                }
+                chunkLog.force(false);
+            }
+        }
+
+        synchronized boolean isCompleting() {
+            return completing;
+        }
+
+        synchronized Map<String, Object> toStatus() {
+            Map<String, Object> status = new HashMap<>();
+            status.put("uploadId", uploadId);
+            status.put("size", size);
+            status.put("chunkSize", chunkSize);
+            status.put("chunkCount", chunkCount);
+            List<Integer> receivedChunks = new ArrayList<>(received.cardinality());
+            received.stream().forEach(receivedChunks::add);
+            status.put("receivedChunks", receivedChunks);
+            status.put("complete", received.cardinality() == chunkCount);
+            return status;
+        }
+    }
+}
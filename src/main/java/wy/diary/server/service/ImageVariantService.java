@@ -0,0 +1,355 @@
+package wy.diary.server.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 图片缩略图：按宽度生成原图的缩小版本，缓存在 image.variant.path 下，列表页只需下载几KB的缩略图
+ * <p>
+ * 缩略图路径为 {image.variant.path}/{宽度}/{openid}/{年份}/{文件名}，宽度只允许 image.variant.widths 中的值，
+ * 请求的宽度向上取到最近的一档，避免任意宽度撑大缓存。上传后在后台线程预先生成所有宽度；
+ * 查看时缺少的缩略图当场生成，同一张缩略图同时只生成一次，其余请求等待同一个结果。
+ * 只处理JPEG和PNG，原图不比请求的宽度大、格式不支持或生成失败时返回原图。
+ * 原图不比某一档宽度大时在缩略图位置写一个空的 {文件名}.original 标记，之后查看直接返回原图，不再解码原图。
+ */
+@Service
+public class ImageVariantService implements InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(ImageVariantService.class);
+
+    private static final float JPEG_QUALITY = 0.8f;
+
+    // 原图不需要该宽度缩略图的标记文件后缀
+    private static final String ORIGINAL_MARKER = ".original";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ImageCacheService imageCacheService;
+
+    @Value("${image.storage.path}")
+    private String storagePath;
+
+    @Value("${image.variant.path:diary-server/image-variants/}")
+    private String variantPath;
+
+    // 允许的缩略图宽度，升序
+    @Value("${image.variant.widths:160,480,1080}")
+    private int[] widths;
+
+    @Value("${image.variant.threads:2}")
+    private int threads;
+
+    // 等待生成的缩略图数上限，超出后上传后的预生成被丢弃，查看时再生成
+    @Value("${image.variant.queue-size:256}")
+    private int queueSize;
+
+    // 查看时等待缩略图生成的最长时间（毫秒），超时返回原图
+    @Value("${image.variant.wait-millis:10000}")
+    private long waitMillis;
+
+    // 正在生成的缩略图，key为缩略图路径
+    private final ConcurrentMap<Path, CompletableFuture<Path>> inflight = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor executor;
+    private Counter generatedCounter;
+    private Counter failedCounter;
+
+    @Override
+    public void afterPropertiesSet() {
+        Arrays.sort(widths);
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueSize),
+                new ThreadFactory() {
+                    private int count;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "image-variant-" + count++);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        generatedCounter = Counter.builder("diary.images.variants.generated").register(meterRegistry);
+        failedCounter = Counter.builder("diary.images.variants.failed").register(meterRegistry);
+        Gauge.builder("diary.images.variants.inflight", inflight, Map::size).register(meterRegistry);
+        logger.info("图片缩略图服务已启动，宽度: {}，缓存目录: {}", Arrays.toString(widths), variantPath);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 按请求的宽度取最近的一档
+     *
+     * @param width 请求的宽度，大于最大一档时返回最大一档
+     */
+    public int resolveWidth(int width) {
+        for (int allowed : widths) {
+            if (allowed >= width) {
+                return allowed;
+            }
+        }
+        return widths[widths.length - 1];
+    }
+
+    /**
+     * 按名称取宽度：small、medium、large分别对应第一档、中间一档和最后一档
+     *
+     * @return 名称无效时返回-1
+     */
+    public int widthOf(String size) {
+        switch (size.toLowerCase()) {
+            case "small":
+                return widths[0];
+            case "medium":
+                return widths[widths.length / 2];
+            case "large":
+                return widths[widths.length - 1];
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * 获取原图在该宽度下的缩略图，缺少时生成并等待
+     *
+     * @param original 原图路径，位于 image.storage.path 下
+     * @param width 已按 {@link #resolveWidth} 取整的宽度
+     * @return 缩略图路径；不需要或无法生成缩略图时返回原图路径
+     */
+    public Path getVariant(Path original, int width) {
+        Path variant = variantFile(original, width);
+        if (variant == null) {
+            return original;
+        }
+        if (Files.exists(variant)) {
+            return variant;
+        }
+        if (Files.exists(originalMarker(variant))) {
+            return original;
+        }
+        try {
+            return submit(original, variant, width).get(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return original;
+        } catch (RejectedExecutionException | ExecutionException | TimeoutException e) {
+            logger.warn("获取缩略图失败，返回原图: {}, 宽度: {}", original, width, e);
+            return original;
+        }
+    }
+
+    /**
+     * 上传后在后台生成所有宽度的缩略图，队列已满时跳过
+     */
+    public void generateAsync(Path original) {
+        for (int width : widths) {
+            Path variant = variantFile(original, width);
+            if (variant == null || Files.exists(variant) || Files.exists(originalMarker(variant))) {
+                continue;
+            }
+            try {
+                submit(original, variant, width);
+            } catch (RejectedExecutionException e) {
+                logger.debug("缩略图队列已满，跳过预生成: {}", original);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 删除原图的所有缩略图
+     */
+    public void deleteVariants(Path original) {
+        for (int width : widths) {
+            Path variant = variantFile(original, width);
+            if (variant == null) {
+                return;
+            }
+            imageCacheService.invalidate(variant);
+            try {
+                Files.deleteIfExists(variant);
+                Files.deleteIfExists(originalMarker(variant));
+            } catch (IOException e) {
+                logger.error("删除缩略图失败: {}", variant, e);
+            }
+        }
+    }
+
+    /**
+     * 同一张缩略图只提交一次生成任务，生成结束后从inflight中移除
+     */
+    private CompletableFuture<Path> submit(Path original, Path variant, int width) {
+        CompletableFuture<Path> created = new CompletableFuture<>();
+        CompletableFuture<Path> existing = inflight.putIfAbsent(variant, created);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    created.complete(generate(original, variant, width));
+                } catch (Throwable e) {
+                    failedCounter.increment();
+                    created.completeExceptionally(e);
+                } finally {
+                    inflight.remove(variant, created);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inflight.remove(variant, created);
+            throw e;
+        }
+        return created;
+    }
+
+    /**
+     * 解码时按目标宽度隔行采样，大图不会整张解码进内存
+     *
+     * @return 缩略图路径；原图宽度不超过目标宽度时返回原图路径
+     */
+    private Path generate(Path original, Path variant, int width) throws IOException {
+        if (Files.exists(variant)) {
+            return variant;
+        }
+        BufferedImage source;
+        try (ImageInputStream input = ImageIO.createImageInputStream(original.toFile())) {
+            if (input == null) {
+                throw new IOException("无法读取图片: " + original);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("不支持的图片格式: " + original);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int sourceWidth = reader.getWidth(0);
+                if (sourceWidth <= width) {
+                    markOriginal(original, sourceWidth);
+                    return original;
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                // 采样后至少保留目标宽度的两倍，再平滑缩小
+                int subsampling = Math.max(1, sourceWidth / (width * 2));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                source = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        int height = Math.max(1, (int) Math.round((double) source.getHeight() * width / source.getWidth()));
+        boolean png = isPng(original);
+        BufferedImage scaled = new BufferedImage(width, height, png ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        Files.createDirectories(variant.getParent());
+        Path temp = variant.resolveSibling(variant.getFileName() + ".tmp");
+        try {
+            write(scaled, png ? "png" : "jpeg", temp);
+            Files.move(temp, variant, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        generatedCounter.increment();
+        logger.debug("已生成缩略图: {}", variant);
+        return variant;
+    }
+
+    /**
+     * 为不比原图宽的各档宽度写入标记，之后不再为这些宽度解码原图
+     */
+    private void markOriginal(Path original, int sourceWidth) {
+        for (int width : widths) {
+            if (width < sourceWidth) {
+                continue;
+            }
+            Path marker = originalMarker(variantFile(original, width));
+            try {
+                Files.createDirectories(marker.getParent());
+                Files.createFile(marker);
+            } catch (FileAlreadyExistsException e) {
+                // 其他宽度的生成任务已写入
+            } catch (IOException e) {
+                logger.warn("写入原图标记失败: {}", marker, e);
+            }
+        }
+    }
+
+    private static Path originalMarker(Path variant) {
+        return variant.resolveSibling(variant.getFileName() + ORIGINAL_MARKER);
+    }
+
+    private static void write(BufferedImage image, String format, Path target) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(target.toFile())) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if ("jpeg".equals(format)) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * 缩略图路径，原图不在图片目录下或格式不支持时返回null
+     */
+    private Path variantFile(Path original, int width) {
+        Path root = Paths.get(storagePath).toAbsolutePath().normalize();
+        Path file = original.toAbsolutePath().normalize();
+        if (!file.startsWith(root) || !(isPng(file) || isJpeg(file))) {
+            return null;
+        }
+        return Paths.get(variantPath).resolve(String.valueOf(width)).resolve(root.relativize(file));
+    }
+
+    private static boolean isPng(Path file) {
+        return file.getFileName().toString().toLowerCase().endsWith(".png");
+    }
+
+    private static boolean isJpeg(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        return name.endsWith(".jpg") || name.endsWith(".jpeg");
+    }
+}
@@ -0,0 +1,281 @@
+package wy.diary.server.service;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import wy.diary.server.dao.DiaryQueryDao;
+import wy.diary.server.entity.Diary;
+import wy.diary.server.model.DiarySource;
+import wy.diary.server.store.DiaryStore;
+import wy.diary.server.util.DiaryDateRange;
+import wy.diary.server.util.DiaryPreview;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把文件存储中的日记批量导入数据库：json存储为 diary.storage.path 下的年度文件、归档和未合并的日志，
+ * segment存储为段文件中的全部日记，都通过 {@link DiaryStore#readYears} 读取
+ * <p>
+ * 在 diary.migration.to-database=true 时随应用启动执行一次。用户按fork-join拆分到
+ * diary.migration.parallelism 个线程并行解析，每个用户的日记按 diary.migration.batch-size 条
+ * 一组，每组在一个事务中用一条多行INSERT写入并补写内容预览。
+ * <p>
+ * 完成的用户记录在 {diary.storage.path}/migration/database.done，中断后重新执行会跳过这些用户；
+ * 中断时正在导入的用户按日记ID跳过已写入的部分，因此可以重复执行。原JSON文件不做修改。
+ */
+@Component
+@ConditionalOnProperty(name = "diary.migration.to-database", havingValue = "true")
+public class JsonToDatabaseMigrator implements ApplicationRunner {
+    private static final Logger logger = LoggerFactory.getLogger(JsonToDatabaseMigrator.class);
+
+    private static final String MIGRATION_DIR = "migration";
+
+    // 进度日志的最小间隔
+    private static final long REPORT_INTERVAL_MILLIS = 5000;
+
+    @Autowired
+    private DiaryStore diaryStore;
+
+    @Autowired
+    private DiaryQueryDao diaryQueryDao;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private DiaryQueryService diaryQueryService;
+
+    @Autowired
+    private DiaryPageCacheService diaryPageCacheService;
+
+    @Autowired
+    private DiaryStatsService diaryStatsService;
+
+    @Autowired
+    private DiaryChangeService diaryChangeService;
+
+    @Value("${diary.storage.path:diary}")
+    private String storagePath;
+
+    // 并行导入的线程数，同时占用的数据库连接数不超过该值
+    @Value("${diary.migration.parallelism:4}")
+    private int parallelism;
+
+    // 一条INSERT语句写入的日记数
+    @Value("${diary.migration.batch-size:500}")
+    private int batchSize;
+
+    private final AtomicInteger migratedUsers = new AtomicInteger();
+    private final AtomicInteger failedUsers = new AtomicInteger();
+    private final AtomicLong insertedDiaries = new AtomicLong();
+    private final AtomicLong skippedDiaries = new AtomicLong();
+    private final AtomicLong lastReport = new AtomicLong();
+    private long startTime;
+    private int totalUsers;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        Set<String> done = loadCheckpoint();
+        List<String> pending = new ArrayList<>();
+        for (String openid : diaryStore.listUsers()) {
+            if (!done.contains(openid)) {
+                pending.add(openid);
+            }
+        }
+        totalUsers = pending.size();
+
+        logger.info("开始将JSON日记导入数据库，待迁移用户 {} 个，已完成用户 {} 个，并行线程数 {}",
+                totalUsers, done.size(), parallelism);
+        startTime = System.currentTimeMillis();
+        lastReport.set(startTime);
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new MigrateUsersTask(pending));
+        } finally {
+            pool.shutdown();
+        }
+
+        long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+        logger.info("JSON日记导入数据库完成，用户 {} 个，失败用户 {} 个，新增 {} 篇日记，跳过已存在的 {} 篇，耗时 {} ms，平均 {} 篇/秒",
+                migratedUsers.get(), failedUsers.get(), insertedDiaries.get(), skippedDiaries.get(), elapsed,
+                insertedDiaries.get() * 1000 / elapsed);
+        if (failedUsers.get() > 0) {
+            logger.warn("有 {} 个用户迁移失败，修复后重新执行会只迁移这些用户", failedUsers.get());
+        }
+    }
+
+    /**
+     * 按用户二分的fork-join任务，拆到单个用户后导入
+     */
+    private class MigrateUsersTask extends RecursiveAction {
+        private final List<String> openids;
+
+        MigrateUsersTask(List<String> openids) {
+            this.openids = openids;
+        }
+
+        @Override
+        protected void compute() {
+            if (openids.size() > 1) {
+                int mid = openids.size() / 2;
+                invokeAll(new MigrateUsersTask(openids.subList(0, mid)),
+                        new MigrateUsersTask(openids.subList(mid, openids.size())));
+                return;
+            }
+            for (String openid : openids) {
+                try {
+                    migrateUser(openid);
+                    markDone(openid);
+                    migratedUsers.incrementAndGet();
+                } catch (Exception e) {
+                    failedUsers.incrementAndGet();
+                    logger.error("迁移用户 {} 的日记失败", openid, e);
+                }
+                reportProgress();
+            }
+        }
+    }
+
+    private void migrateUser(String openid) throws IOException {
+        int inserted = 0;
+        for (Map.Entry<String, JSONObject> yearEntry : diaryStore.readYears(openid).entrySet()) {
+            String year = yearEntry.getKey();
+            JSONObject yearDiaries = yearEntry.getValue();
+            List<Diary> batch = new ArrayList<>(batchSize);
+            for (String key : yearDiaries.keySet()) {
+                batch.add(toDiary(openid, year, key, yearDiaries.getJSONObject(key)));
+                if (batch.size() >= batchSize) {
+                    inserted += insertBatch(openid, batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                inserted += insertBatch(openid, batch);
+            }
+        }
+
+        if (inserted > 0) {
+            // 导入没有逐条更新缓存、统计和变更序列，整体失效
+            diaryQueryService.evictTotalCount(openid);
+            diaryPageCacheService.bumpVersion(DiarySource.DATABASE, openid);
+            diaryStatsService.invalidate(DiarySource.DATABASE, openid);
+            diaryChangeService.requireResync(DiarySource.DATABASE, openid);
+        }
+    }
+
+    /**
+     * 在一个事务中写入一组日记，已存在的日记ID跳过
+     *
+     * @return 新插入的日记数
+     */
+    private int insertBatch(String openid, List<Diary> batch) {
+        Integer inserted = transactionTemplate.execute(status -> {
+            List<String> diaryIds = new ArrayList<>(batch.size());
+            for (Diary diary : batch) {
+                diaryIds.add(diary.getDiaryId());
+            }
+            Set<String> existing = new HashSet<>(diaryQueryDao.getExistingDiaryIds(openid, diaryIds));
+            List<Diary> toInsert = new ArrayList<>(batch.size());
+            Map<String, String> previews = new LinkedHashMap<>();
+            for (Diary diary : batch) {
+                if (!existing.contains(diary.getDiaryId()) && !previews.containsKey(diary.getDiaryId())) {
+                    toInsert.add(diary);
+                    previews.put(diary.getDiaryId(), DiaryPreview.of(diary.getEditorContent()));
+                }
+            }
+            if (toInsert.isEmpty()) {
+                return 0;
+            }
+            diaryQueryDao.insertDiaries(toInsert);
+            diaryQueryDao.updatePreviews(openid, previews);
+            return toInsert.size();
+        });
+        int count = inserted != null ? inserted : 0;
+        insertedDiaries.addAndGet(count);
+        skippedDiaries.addAndGet(batch.size() - count);
+        return count;
+    }
+
+    private Diary toDiary(String openid, String year, String key, JSONObject json) {
+        Diary diary = new Diary();
+        String diaryId = json.optString("diaryId", "");
+        if (diaryId.isEmpty()) {
+            // 早期没有日记ID的日记按 (用户, 年份, key) 生成固定的ID，重复执行时能识别为已导入
+            diaryId = UUID.nameUUIDFromBytes((openid + "-" + year + "-" + key).getBytes(StandardCharsets.UTF_8)).toString();
+        }
+        diary.setDiaryId(diaryId);
+        diary.setOpenId(openid);
+        diary.setEditorContent(json.optString("editorContent", ""));
+        diary.setCreateTime(json.optString("createTime", ""));
+        diary.setLogTime(normalizeLogTime(json.optString("logTime", ""), year));
+        diary.setLogWeek(json.optString("logWeek", ""));
+        diary.setLogLunar(json.optString("logLunar", ""));
+        diary.setAddress(json.optString("address", ""));
+        JSONArray imageUrls = json.optJSONArray("imageUrls");
+        diary.setImageUrls(imageUrls != null ? imageUrls.toString() : null);
+        return diary;
+    }
+
+    /**
+     * 早期的 "M月d日" 用年度文件的年份补全为 yyyy-MM-dd，数据库按 log_time 排序和范围查询时才能与其他日记一致
+     */
+    private static String normalizeLogTime(String logTime, String year) {
+        if (DiaryDateRange.isIsoDay(logTime)) {
+            return logTime;
+        }
+        String day = DiaryDateRange.dayOf(logTime, year);
+        return day != null ? day : logTime;
+    }
+
+    private void reportProgress() {
+        long now = System.currentTimeMillis();
+        long last = lastReport.get();
+        if (now - last < REPORT_INTERVAL_MILLIS || !lastReport.compareAndSet(last, now)) {
+            return;
+        }
+        long elapsed = Math.max(now - startTime, 1);
+        logger.info("迁移进度: 用户 {}/{}，失败 {}，新增 {} 篇日记，{} 篇/秒",
+                migratedUsers.get() + failedUsers.get(), totalUsers, failedUsers.get(),
+                insertedDiaries.get(), insertedDiaries.get() * 1000 / elapsed);
+    }
+
+    private Set<String> loadCheckpoint() throws IOException {
+        Path file = checkpointFile();
+        Set<String> done = new HashSet<>();
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) {
+                    done.add(line.trim());
+                }
+            }
+        }
+        return done;
+    }
+
+    private synchronized void markDone(String openid) throws IOException {
+        Path file = checkpointFile();
+        Files.createDirectories(file.getParent());
+        Files.write(file, (openid + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path checkpointFile() {
+        return Paths.get(storagePath).resolve(MIGRATION_DIR).resolve("database.done");
+    }
+}
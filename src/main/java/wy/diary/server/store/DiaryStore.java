@@ -0,0 +1,91 @@
+package wy.diary.server.store;
+
+import org.json.JSONObject;
+import wy.diary.server.model.DiaryIndexEntry;
+import wy.diary.server.model.DiaryPage;
+import wy.diary.server.util.DiaryDateRange;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 文件日记存储引擎
+ * <p>
+ * DiaryController 通过该接口读写日记，具体实现由 diary.store.engine 选择：
+ * json（默认）为每用户每年一个JSON文件加追加写日志，segment 为LSM结构的段文件存储。
+ * 分页和游标方法按 {@link DiaryIndexEntry#NEWEST_FIRST} 排序返回。
+ */
+public interface DiaryStore {
+
+    /**
+     * 保存一篇日记
+     *
+     * @param year 日记归属的年份（保存时的年份）
+     * @param diary 日记JSON
+     * @return 分配给日记的key（日期+序号）
+     */
+    String save(String openid, String year, JSONObject diary) throws IOException;
+
+    /**
+     * 批量保存同一用户同一年的多篇日记，一次写入并一次落盘
+     *
+     * @return 按输入顺序分配到的key，写入失败的日记对应位置为null
+     */
+    List<String> saveAll(String openid, String year, List<JSONObject> diaries) throws IOException;
+
+    /**
+     * 按日记ID获取日记
+     *
+     * @return 不存在时返回null
+     */
+    DiaryIndexEntry get(String openid, String diaryId) throws IOException;
+
+    /**
+     * 按日记ID删除日记
+     *
+     * @param yearHint 客户端提供的日记年份，可为null
+     * @return 被删除的日记；不存在时返回null
+     */
+    DiaryIndexEntry delete(String openid, String diaryId, String yearHint) throws IOException;
+
+    /**
+     * 页码分页读取日记
+     *
+     * @param pageIndex 页码，从1开始
+     * @param pageSize 每页记录数
+     */
+    DiaryPage page(String openid, int pageIndex, int pageSize) throws IOException;
+
+    /**
+     * 读取排在 after 之后的至多 limit 篇日记，用于游标分页
+     *
+     * @param after 上一页最后一条日记的排序键，为null时从最新的日记开始
+     */
+    DiaryPage scan(String openid, DiaryIndexEntry after, int limit) throws IOException;
+
+    /**
+     * 读取记录时间在日期范围内的日记，按所在日期降序（{@link DiaryIndexEntry#NEWEST_DAY_FIRST}）；
+     * 带时间的 logTime 按所在日期判断，早期不带年份的 "M月d日" 按日记所在年份补全后判断
+     *
+     * @param range 日期范围，为null时返回所有日记
+     */
+    List<DiaryIndexEntry> range(String openid, DiaryDateRange range) throws IOException;
+
+    /**
+     * 读取所有日记的元数据（记录时间、图片等），不加载editorContent，顺序不定；用于统计重建等全量扫描
+     */
+    List<DiaryIndexEntry> metadata(String openid) throws IOException;
+
+    /**
+     * 有日记的所有用户
+     */
+    Set<String> listUsers() throws IOException;
+
+    /**
+     * 按年份读取用户的所有日记，每年一个与年度文件格式相同的JSON（key为日记的key，保留日记的全部字段）；
+     * 用于备份和导入数据库等全量导出
+     */
+    Map<String, JSONObject> readYears(String openid) throws IOException;
+}
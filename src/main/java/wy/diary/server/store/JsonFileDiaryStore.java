@@ -0,0 +1,228 @@
+package wy.diary.server.store;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import wy.diary.server.model.DiaryIndexEntry;
+import wy.diary.server.model.DiaryPage;
+import wy.diary.server.service.DiaryIndexService;
+import wy.diary.server.service.DiaryJournalService;
+import wy.diary.server.service.DiaryLocationService;
+import wy.diary.server.service.DiaryStreamReader;
+import wy.diary.server.util.DiaryDateRange;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 默认存储引擎：每用户每年一个 {openid}-{year}.json 文件，写入走追加写日志，
+ * 列表优先使用内存索引缓存，数据量大的用户改为流式扫描
+ */
+@Component
+@ConditionalOnProperty(name = "diary.store.engine", havingValue = "json", matchIfMissing = true)
+public class JsonFileDiaryStore implements DiaryStore {
+    private static final Logger logger = LoggerFactory.getLogger(JsonFileDiaryStore.class);
+
+    @Autowired
+    private DiaryJournalService diaryJournalService;
+
+    @Autowired
+    private DiaryIndexService diaryIndexService;
+
+    @Autowired
+    private DiaryLocationService diaryLocationService;
+
+    @Autowired
+    private DiaryStreamReader diaryStreamReader;
+
+    @Override
+    public String save(String openid, String year, JSONObject diary) throws IOException {
+        // 追加到日志，key(日期+序号)由日志写线程分配
+        String key = diaryJournalService.appendPut(openid, year, diary.optString("logTime", ""), diary);
+        diaryIndexService.onSave(openid, year, key, diary);
+        diaryLocationService.onSave(openid, diary.optString("diaryId", ""), year, key);
+        return key;
+    }
+
+    @Override
+    public List<String> saveAll(String openid, String year, List<JSONObject> diaries) throws IOException {
+        List<String> keys = diaryJournalService.appendPutAll(openid, year, diaries);
+        for (int i = 0; i < diaries.size(); i++) {
+            String key = keys.get(i);
+            if (key == null) {
+                continue;
+            }
+            JSONObject diary = diaries.get(i);
+            diaryIndexService.onSave(openid, year, key, diary);
+            diaryLocationService.onSave(openid, diary.optString("diaryId", ""), year, key);
+        }
+        return keys;
+    }
+
+    @Override
+    public DiaryIndexEntry get(String openid, String diaryId) throws IOException {
+        return find(openid, diaryId, null);
+    }
+
+    @Override
+    public DiaryIndexEntry delete(String openid, String diaryId, String yearHint) throws IOException {
+        DiaryIndexEntry entry = find(openid, diaryId, yearHint);
+        if (entry == null) {
+            return null;
+        }
+
+        // 追加删除记录，并发删除时只有先到写线程的一个返回日记，调用方只为它更新统计、变更和图片回收
+        if (!diaryJournalService.appendDelete(openid, entry.getYear(), entry.getKey())) {
+            return null;
+        }
+        diaryIndexService.onDelete(openid, entry.getYear(), entry.getKey());
+        diaryLocationService.onDelete(openid, diaryId);
+        return entry;
+    }
+
+    @Override
+    public DiaryPage page(String openid, int pageIndex, int pageSize) throws IOException {
+        List<DiaryIndexEntry> allDiaries = diaryIndexService.getIndex(openid);
+        if (allDiaries == null) {
+            // 数据量大的用户不缓存，流式扫描年度文件只保留当前页
+            return diaryStreamReader.readPage(openid, pageIndex, pageSize);
+        }
+
+        int totalCount = allDiaries.size();
+        int startIndex = Math.max((pageIndex - 1) * pageSize, 0);
+        int endIndex = Math.min(startIndex + pageSize, totalCount);
+        List<DiaryIndexEntry> records = startIndex < endIndex
+                ? allDiaries.subList(startIndex, endIndex)
+                : Collections.emptyList();
+        return new DiaryPage(records, totalCount);
+    }
+
+    @Override
+    public DiaryPage scan(String openid, DiaryIndexEntry after, int limit) throws IOException {
+        List<DiaryIndexEntry> allDiaries = diaryIndexService.getIndex(openid);
+        if (allDiaries == null) {
+            return diaryStreamReader.readAfter(openid, after, limit);
+        }
+
+        int startIndex = after == null ? 0 : positionAfter(allDiaries, after);
+        int endIndex = (int) Math.min((long) startIndex + limit, allDiaries.size());
+        return new DiaryPage(allDiaries.subList(startIndex, endIndex), allDiaries.size());
+    }
+
+    @Override
+    public List<DiaryIndexEntry> range(String openid, DiaryDateRange range) throws IOException {
+        List<DiaryIndexEntry> allDiaries = diaryIndexService.getIndex(openid);
+        if (allDiaries == null) {
+            return diaryStreamReader.readRange(openid, range);
+        }
+        if (range == null) {
+            List<DiaryIndexEntry> records = new ArrayList<>(allDiaries);
+            records.sort(DiaryIndexEntry.NEWEST_DAY_FIRST);
+            return records;
+        }
+
+        // yyyy-MM-dd 格式的日记在列表中连续且按日期降序：定位到结束日期的下一天之后，再向后取到起始日期为止
+        List<DiaryIndexEntry> records = new ArrayList<>();
+        int startIndex = positionAfter(allDiaries, DiaryIndexEntry.probeAfter(range.getToExclusive()));
+        for (int i = startIndex; i < allDiaries.size(); i++) {
+            DiaryIndexEntry entry = allDiaries.get(i);
+            if (!DiaryDateRange.isIsoDay(entry.getLogTime()) || entry.getLogTime().compareTo(range.getFrom()) < 0) {
+                break;
+            }
+            records.add(entry);
+        }
+        // 早期 "M月d日" 等其他格式按字符串排在上述区间的两侧，从列表两端逐条判断
+        int head = 0;
+        for (; head < allDiaries.size() && !DiaryDateRange.isIsoDay(allDiaries.get(head).getLogTime()); head++) {
+            addIfContained(records, range, allDiaries.get(head));
+        }
+        for (int i = allDiaries.size() - 1; i >= head && !DiaryDateRange.isIsoDay(allDiaries.get(i).getLogTime()); i--) {
+            addIfContained(records, range, allDiaries.get(i));
+        }
+        records.sort(DiaryIndexEntry.NEWEST_DAY_FIRST);
+        return records;
+    }
+
+    @Override
+    public List<DiaryIndexEntry> metadata(String openid) throws IOException {
+        List<DiaryIndexEntry> allDiaries = diaryIndexService.getIndex(openid);
+        if (allDiaries == null) {
+            return diaryStreamReader.readMetadata(openid);
+        }
+        return allDiaries;
+    }
+
+    @Override
+    public Set<String> listUsers() throws IOException {
+        return diaryJournalService.listUsers();
+    }
+
+    @Override
+    public Map<String, JSONObject> readYears(String openid) throws IOException {
+        // 已归档的年份和未合并的日志由readYear透明处理
+        Map<String, JSONObject> years = new TreeMap<>();
+        for (String year : diaryJournalService.listYears(openid)) {
+            years.put(year, diaryJournalService.readYear(openid, year));
+        }
+        return years;
+    }
+
+    private static void addIfContained(List<DiaryIndexEntry> records, DiaryDateRange range, DiaryIndexEntry entry) {
+        if (range.contains(entry.getLogTime(), entry.getYear())) {
+            records.add(entry);
+        }
+    }
+
+    /**
+     * 排序列表中第一条排在 after 之后的位置
+     */
+    private static int positionAfter(List<DiaryIndexEntry> sorted, DiaryIndexEntry after) {
+        int pos = Collections.binarySearch(sorted, after, DiaryIndexEntry.NEWEST_FIRST);
+        return pos >= 0 ? pos + 1 : -pos - 1;
+    }
+
+    /**
+     * 查找日记：优先通过日记ID索引直接定位年份和key，只需读取一个年度文件；索引未命中时遍历年度文件
+     */
+    private DiaryIndexEntry find(String openid, String diaryId, String yearHint) throws IOException {
+        boolean hasHint = yearHint != null && !yearHint.isEmpty();
+
+        DiaryLocationService.DiaryLocation location = diaryLocationService.find(openid, diaryId);
+        if (location != null && (!hasHint || yearHint.equals(location.getYear()))) {
+            JSONObject diary = diaryJournalService.readDiary(openid, location.getYear(), location.getKey());
+            if (diary != null && diaryId.equals(diary.optString("diaryId", ""))) {
+                return DiaryIndexEntry.of(location.getYear(), location.getKey(), diary);
+            }
+            logger.warn("日记ID索引已过期，改为遍历年度文件查找: {}", diaryId);
+        }
+
+        List<String> years = new ArrayList<>();
+        if (hasHint) {
+            // 如果提供了创建年份，直接定位到对应年份的文件
+            if (diaryJournalService.hasYear(openid, yearHint)) {
+                years.add(yearHint);
+            }
+        } else {
+            years.addAll(diaryJournalService.listYears(openid));
+        }
+
+        for (String year : years) {
+            JSONObject json = diaryJournalService.readYear(openid, year);
+            for (String key : json.keySet()) {
+                JSONObject diary = json.getJSONObject(key);
+                if (diaryId.equals(diary.optString("diaryId", ""))) {
+                    return DiaryIndexEntry.of(year, key, diary);
+                }
+            }
+        }
+        return null;
+    }
+}
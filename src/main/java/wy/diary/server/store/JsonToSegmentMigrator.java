@@ -0,0 +1,109 @@
+package wy.diary.server.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import wy.diary.server.service.DiaryJournalService;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 把 diary.storage.path 下的年度JSON文件（含已归档年份）导入段文件存储
+ * <p>
+ * 在 diary.store.engine=segment 且 diary.store.segment.migrate-from-json=true 时随应用启动执行一次。
+ * 导入保留原有的key，已存在的日记跳过；原JSON文件不做修改，迁移完成后关闭该开关即可。
+ * <p>
+ * 完成的用户记录在 {diary.storage.path}/migration/segment.done（落盘后才算完成），重新执行时跳过这些用户，
+ * 迁移后删除或修改过的日记不会被旧的JSON内容恢复。
+ */
+@Component
+@ConditionalOnProperty(name = "diary.store.segment.migrate-from-json", havingValue = "true")
+public class JsonToSegmentMigrator implements ApplicationRunner {
+    private static final Logger logger = LoggerFactory.getLogger(JsonToSegmentMigrator.class);
+
+    private static final String MIGRATION_DIR = "migration";
+
+    @Value("${diary.storage.path:diary}")
+    private String storagePath;
+
+    @Autowired
+    private DiaryJournalService diaryJournalService;
+
+    // 只有 diary.store.engine=segment 时存在
+    @Autowired(required = false)
+    private SegmentDiaryStore segmentDiaryStore;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (segmentDiaryStore == null) {
+            logger.warn("未启用段文件存储(diary.store.engine=segment)，跳过JSON日记迁移");
+            return;
+        }
+
+        Set<String> done = loadCheckpoint();
+        Set<String> openids = new HashSet<>(diaryJournalService.listUsers());
+        openids.removeAll(done);
+
+        logger.info("开始将JSON日记文件迁移到段文件存储，待迁移用户 {} 个，已完成用户 {} 个", openids.size(), done.size());
+        long start = System.currentTimeMillis();
+        int imported = 0;
+        int failed = 0;
+        for (String openid : openids) {
+            try {
+                for (String year : diaryJournalService.listYears(openid)) {
+                    imported += segmentDiaryStore.importYear(openid, year, diaryJournalService.readYear(openid, year));
+                }
+                markDone(openid);
+            } catch (IOException e) {
+                failed++;
+                logger.error("迁移用户 {} 的日记失败", openid, e);
+            }
+        }
+        logger.info("JSON日记迁移完成，导入 {} 篇日记，失败用户 {} 个，耗时 {} ms",
+                imported, failed, System.currentTimeMillis() - start);
+    }
+
+    private Set<String> loadCheckpoint() throws IOException {
+        Path file = checkpointFile();
+        Set<String> done = new HashSet<>();
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) {
+                    done.add(line.trim());
+                }
+            }
+        }
+        return done;
+    }
+
+    private void markDone(String openid) throws IOException {
+        Path file = checkpointFile();
+        Files.createDirectories(file.getParent());
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer line = ByteBuffer.wrap(("\n" + openid + "\n").getBytes(StandardCharsets.UTF_8));
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            channel.force(false);
+        }
+    }
+
+    private Path checkpointFile() {
+        return Paths.get(storagePath).resolve(MIGRATION_DIR).resolve("segment.done");
+    }
+}
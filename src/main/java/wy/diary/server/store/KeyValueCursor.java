@@ -0,0 +1,15 @@
+package wy.diary.server.store;
+
+/**
+ * 按key有序遍历键值对的游标，value为null表示删除标记
+ */
+interface KeyValueCursor {
+
+    boolean valid();
+
+    String key();
+
+    byte[] value();
+
+    void advance();
+}
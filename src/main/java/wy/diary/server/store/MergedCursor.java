@@ -0,0 +1,66 @@
+package wy.diary.server.store;
+
+import java.util.List;
+
+/**
+ * 多路归并游标：把同方向的多个有序游标合并成一个，同一个key只保留最新来源的值
+ */
+final class MergedCursor implements KeyValueCursor {
+
+    // 按从新到旧排列，key相同时取靠前的来源
+    private final List<KeyValueCursor> sources;
+    private final boolean descending;
+    private KeyValueCursor current;
+
+    /**
+     * @param sources 从新到旧排列的来源游标
+     * @param descending 来源游标是否按key降序
+     */
+    MergedCursor(List<KeyValueCursor> sources, boolean descending) {
+        this.sources = sources;
+        this.descending = descending;
+        selectCurrent();
+    }
+
+    @Override
+    public boolean valid() {
+        return current != null;
+    }
+
+    @Override
+    public String key() {
+        return current.key();
+    }
+
+    @Override
+    public byte[] value() {
+        return current.value();
+    }
+
+    @Override
+    public void advance() {
+        String key = current.key();
+        for (KeyValueCursor source : sources) {
+            if (source.valid() && source.key().equals(key)) {
+                source.advance();
+            }
+        }
+        selectCurrent();
+    }
+
+    private void selectCurrent() {
+        current = null;
+        String best = null;
+        for (KeyValueCursor source : sources) {
+            if (!source.valid()) {
+                continue;
+            }
+            String key = source.key();
+            int cmp = best == null ? -1 : (descending ? best.compareTo(key) : key.compareTo(best));
+            if (cmp < 0) {
+                best = key;
+                current = source;
+            }
+        }
+    }
+}
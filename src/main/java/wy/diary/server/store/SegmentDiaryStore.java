@@ -0,0 +1,750 @@
+package wy.diary.server.store;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import wy.diary.server.model.DiaryIndexEntry;
+import wy.diary.server.model.DiaryPage;
+import wy.diary.server.util.DiaryDateRange;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LSM结构的日记存储引擎（diary.store.engine=segment）
+ * <p>
+ * 写入先追加到预写日志(wal.log)并落盘，再写入内存中的有序表(memtable)；memtable超过
+ * diary.store.segment.memtable-bytes 后整体写成一个不可变的有序段文件，段文件通过内存映射读取。
+ * 段文件数达到 diary.store.segment.compaction-threshold 后由后台任务全量合并，合并时丢弃删除标记。
+ * MANIFEST 记录当前有效的段文件（从旧到新），先落盘再原子替换并同步目录，之后才清空预写日志或删除被合并的段，
+ * 因此MANIFEST之外的段文件只可能是未完成的刷盘或合并留下的、内容已包含在日志或其他段中的文件，
+ * 启动时移到 orphaned/ 目录保留而不删除；MANIFEST缺失或为空而目录中有段文件时拒绝启动。
+ * <p>
+ * key设计（\u0001 分隔）：
+ * <ul>
+ *     <li>D openid logTime key year → 日记JSON，按key降序遍历即 {@link DiaryIndexEntry#NEWEST_FIRST} 顺序</li>
+ *     <li>I openid diaryId → 日记的D key，用于按ID查找和删除</li>
+ * </ul>
+ */
+@Component
+@ConditionalOnProperty(name = "diary.store.engine", havingValue = "segment")
+public class SegmentDiaryStore implements DiaryStore, InitializingBean, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentDiaryStore.class);
+
+    private static final char SEPARATOR = '\u0001';
+    private static final String DIARY_PREFIX = "D" + SEPARATOR;
+    private static final String ID_PREFIX = "I" + SEPARATOR;
+    private static final String MANIFEST = "MANIFEST";
+    private static final String WAL = "wal.log";
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".sst";
+    private static final String ORPHANED_DIR = "orphaned";
+
+    // memtable中的删除标记，按引用比较
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${diary.store.segment.path:diary-server/segments/}")
+    private String segmentPath;
+
+    // memtable超过该字节数(估算值)后写成段文件，默认4MB
+    @Value("${diary.store.segment.memtable-bytes:4194304}")
+    private long memtableMaxBytes;
+
+    // 段文件数达到该值后触发全量合并
+    @Value("${diary.store.segment.compaction-threshold:4}")
+    private int compactionThreshold;
+
+    // 保护memtable和段列表的切换：读取持有读锁，刷盘和合并替换时持有写锁
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // 串行化所有写入（预写日志、memtable、刷盘）
+    private final Object writeMonitor = new Object();
+    // 同一时间只进行一次合并
+    private final Object compactionMonitor = new Object();
+
+    private volatile ConcurrentNavigableMap<String, byte[]> memtable = new ConcurrentSkipListMap<>();
+    private volatile long memtableBytes;
+    // 从旧到新，替换时整体换成新列表
+    private volatile List<SegmentFile> segments = Collections.emptyList();
+    private final AtomicLong nextSegmentId = new AtomicLong(1);
+    private FileChannel walChannel;
+    // 写入失败且未能截断，日志末尾留有半条记录，下次写入前先换行；由writeMonitor保护
+    private boolean walTorn;
+
+    // 用户日记数缓存，由writeMonitor保护更新
+    private final ConcurrentMap<String, Integer> counts = new ConcurrentHashMap<>();
+
+    private Counter compactionCounter;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Path dir = Paths.get(segmentPath);
+        Files.createDirectories(dir);
+
+        // 按MANIFEST打开段文件，清理临时文件，未登记的段移到orphaned目录
+        List<String> names = new ArrayList<>();
+        Path manifest = dir.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) {
+                    names.add(line.trim());
+                }
+            }
+        }
+        List<Path> unlisted = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    logger.warn("删除未完成的临时文件: {}", name);
+                    Files.delete(path);
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) && !names.contains(name)) {
+                    unlisted.add(path);
+                }
+            }
+        }
+        if (names.isEmpty() && !unlisted.isEmpty()) {
+            // MANIFEST只会在有段文件之后写入，缺失或为空说明它已损坏，不能据此判断哪些段有效
+            throw new IllegalStateException("段文件存储的MANIFEST缺失或为空，但目录中有 " + unlisted.size()
+                    + " 个段文件，拒绝启动以免丢失数据，请检查目录: " + dir.toAbsolutePath());
+        }
+        List<SegmentFile> opened = new ArrayList<>();
+        for (String name : names) {
+            opened.add(SegmentFile.open(dir.resolve(name)));
+            nextSegmentId.set(Math.max(nextSegmentId.get(), segmentId(name) + 1));
+        }
+        for (Path path : unlisted) {
+            // 段编号不再复用，避免新段与保留的文件同名
+            String name = path.getFileName().toString();
+            nextSegmentId.set(Math.max(nextSegmentId.get(), segmentId(name) + 1));
+            Path orphaned = Files.createDirectories(dir.resolve(ORPHANED_DIR)).resolve(name);
+            Files.move(path, orphaned, StandardCopyOption.REPLACE_EXISTING);
+            logger.warn("未登记在MANIFEST中的段文件（未完成的刷盘或合并）已移到: {}", orphaned);
+        }
+        segments = Collections.unmodifiableList(opened);
+
+        // 回放预写日志，恢复上次未刷盘的写入
+        Path wal = dir.resolve(WAL);
+        int replayed = 0;
+        if (Files.exists(wal)) {
+            try (BufferedReader reader = Files.newBufferedReader(wal, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    try {
+                        applyBatch(new JSONArray(line));
+                        replayed++;
+                    } catch (JSONException e) {
+                        // 崩溃或写入失败留下的半条记录，该批写入未被确认，跳过；之后的记录照常回放
+                        logger.warn("跳过预写日志中损坏的记录");
+                    }
+                }
+            }
+        }
+        walChannel = FileChannel.open(wal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        // 末尾是写了一半的记录时先换行，避免与下一批记录拼成一行
+        walTorn = walChannel.size() > 0 && !endsWithNewline(wal);
+
+        compactionCounter = Counter.builder("diary.store.segment.compactions").register(meterRegistry);
+        Gauge.builder("diary.store.segment.files", this, store -> store.segments.size()).register(meterRegistry);
+        Gauge.builder("diary.store.segment.memtable.bytes", this, store -> store.memtableBytes).register(meterRegistry);
+        logger.info("段文件存储已启动，目录: {}, 段文件数: {}, 回放日志: {} 批", dir, segments.size(), replayed);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        synchronized (writeMonitor) {
+            if (!memtable.isEmpty()) {
+                flush();
+            }
+            walChannel.close();
+        }
+        logger.info("段文件存储已关闭");
+    }
+
+    @Override
+    public String save(String openid, String year, JSONObject diary) throws IOException {
+        String logTime = diary.optString("logTime", "");
+        String diaryId = diary.optString("diaryId", "");
+        synchronized (writeMonitor) {
+            // 生成key: 日期+序号，与年度文件的规则一致
+            int seq = 1;
+            String key;
+            do {
+                key = logTime + String.format("%02d", seq++);
+            } while (lookup(diaryKey(openid, logTime, key, year)) != null);
+
+            String diaryKey = diaryKey(openid, logTime, key, year);
+            Map<String, byte[]> batch = new LinkedHashMap<>();
+            batch.put(diaryKey, diary.toString().getBytes(StandardCharsets.UTF_8));
+            if (!diaryId.isEmpty()) {
+                batch.put(idKey(openid, diaryId), diaryKey.getBytes(StandardCharsets.UTF_8));
+            }
+            write(batch);
+            counts.computeIfPresent(openid, (k, count) -> count + 1);
+            return key;
+        }
+    }
+
+    @Override
+    public List<String> saveAll(String openid, String year, List<JSONObject> diaries) throws IOException {
+        synchronized (writeMonitor) {
+            // 同一批内分配的key还不在memtable中，单独记录以免序号冲突
+            Set<String> assigned = new HashSet<>();
+            List<String> keys = new ArrayList<>(diaries.size());
+            Map<String, byte[]> batch = new LinkedHashMap<>();
+            for (JSONObject diary : diaries) {
+                String logTime = diary.optString("logTime", "");
+                String diaryId = diary.optString("diaryId", "");
+                int seq = 1;
+                String key;
+                String diaryKey;
+                do {
+                    key = logTime + String.format("%02d", seq++);
+                    diaryKey = diaryKey(openid, logTime, key, year);
+                } while (assigned.contains(diaryKey) || lookup(diaryKey) != null);
+                assigned.add(diaryKey);
+
+                batch.put(diaryKey, diary.toString().getBytes(StandardCharsets.UTF_8));
+                if (!diaryId.isEmpty()) {
+                    batch.put(idKey(openid, diaryId), diaryKey.getBytes(StandardCharsets.UTF_8));
+                }
+                keys.add(key);
+            }
+            write(batch);
+            counts.computeIfPresent(openid, (k, count) -> count + diaries.size());
+            return keys;
+        }
+    }
+
+    @Override
+    public DiaryIndexEntry get(String openid, String diaryId) throws IOException {
+        lock.readLock().lock();
+        try {
+            byte[] diaryKey = lookup(idKey(openid, diaryId));
+            if (diaryKey == null) {
+                return null;
+            }
+            String key = new String(diaryKey, StandardCharsets.UTF_8);
+            byte[] value = lookup(key);
+            return value == null ? null : toEntry(key, value);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public DiaryIndexEntry delete(String openid, String diaryId, String yearHint) throws IOException {
+        synchronized (writeMonitor) {
+            DiaryIndexEntry entry = get(openid, diaryId);
+            if (entry == null || (yearHint != null && !yearHint.isEmpty() && !yearHint.equals(entry.getYear()))) {
+                return null;
+            }
+            Map<String, byte[]> batch = new LinkedHashMap<>();
+            batch.put(diaryKey(openid, entry.getLogTime(), entry.getKey(), entry.getYear()), TOMBSTONE);
+            batch.put(idKey(openid, diaryId), TOMBSTONE);
+            write(batch);
+            counts.computeIfPresent(openid, (k, count) -> count - 1);
+            return entry;
+        }
+    }
+
+    @Override
+    public DiaryPage page(String openid, int pageIndex, int pageSize) throws IOException {
+        int skip = Math.max(pageIndex - 1, 0) * Math.max(pageSize, 0);
+        List<DiaryIndexEntry> records = new ArrayList<>();
+        String prefix = userPrefix(openid);
+        lock.readLock().lock();
+        try {
+            KeyValueCursor cursor = descending(prefix + Character.MAX_VALUE);
+            for (; cursor.valid() && cursor.key().startsWith(prefix) && records.size() < pageSize; cursor.advance()) {
+                if (cursor.value() == null) {
+                    continue;
+                }
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                records.add(toEntry(cursor.key(), cursor.value()));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new DiaryPage(records, count(openid));
+    }
+
+    @Override
+    public DiaryPage scan(String openid, DiaryIndexEntry after, int limit) throws IOException {
+        String prefix = userPrefix(openid);
+        String upper = after == null
+                ? prefix + Character.MAX_VALUE
+                : diaryKey(openid, after.getLogTime(), after.getKey(), after.getYear());
+        List<DiaryIndexEntry> records = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            KeyValueCursor cursor = descending(upper);
+            for (; cursor.valid() && cursor.key().startsWith(prefix) && records.size() < limit; cursor.advance()) {
+                if (cursor.value() != null) {
+                    records.add(toEntry(cursor.key(), cursor.value()));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new DiaryPage(records, count(openid));
+    }
+
+    @Override
+    public List<DiaryIndexEntry> range(String openid, DiaryDateRange range) throws IOException {
+        String prefix = userPrefix(openid);
+        List<DiaryIndexEntry> records = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (range == null) {
+                collect(records, descending(prefix + Character.MAX_VALUE), prefix, prefix, null);
+            } else {
+                // yyyy-MM-dd 开头的key连续排列：结束日期的下一天（不含）到起始日期（含）
+                String lower = prefix + range.getFrom();
+                collect(records, descending(prefix + range.getToExclusive()), prefix, lower, range);
+                // 早期 "M月d日" 等其他格式按字符串排在上述区间的两侧，逐条判断日期
+                KeyValueCursor head = descending(prefix + Character.MAX_VALUE);
+                for (; head.valid() && head.key().startsWith(prefix)
+                        && !DiaryDateRange.isIsoDay(head.key().substring(prefix.length())); head.advance()) {
+                    addIfContained(records, head, range);
+                }
+                String tailUpper = lower.compareTo(prefix + "2") < 0 ? lower : prefix + "2";
+                collect(records, descending(tailUpper), prefix, prefix, range);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        records.sort(DiaryIndexEntry.NEWEST_DAY_FIRST);
+        return records;
+    }
+
+    @Override
+    public List<DiaryIndexEntry> metadata(String openid) throws IOException {
+        String prefix = userPrefix(openid);
+        List<DiaryIndexEntry> records = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            KeyValueCursor cursor = descending(prefix + Character.MAX_VALUE);
+            for (; cursor.valid() && cursor.key().startsWith(prefix); cursor.advance()) {
+                if (cursor.value() != null) {
+                    // 内容和元数据保存在同一条记录中，解析后丢弃内容，不在列表中保留
+                    records.add(toEntry(cursor.key(), cursor.value()).withEditorContent(null));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return records;
+    }
+
+    @Override
+    public Set<String> listUsers() throws IOException {
+        Set<String> openids = new TreeSet<>();
+        lock.readLock().lock();
+        try {
+            KeyValueCursor cursor = descending(DIARY_PREFIX + Character.MAX_VALUE);
+            while (cursor.valid() && cursor.key().startsWith(DIARY_PREFIX)) {
+                if (cursor.value() == null) {
+                    cursor.advance();
+                    continue;
+                }
+                String openid = cursor.key().substring(DIARY_PREFIX.length(),
+                        cursor.key().indexOf(SEPARATOR, DIARY_PREFIX.length()));
+                openids.add(openid);
+                // 跳过该用户的其余记录，排在它前面的用户（openid更大）已经遍历过
+                cursor = descending(DIARY_PREFIX + openid);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return openids;
+    }
+
+    @Override
+    public Map<String, JSONObject> readYears(String openid) throws IOException {
+        String prefix = userPrefix(openid);
+        Map<String, JSONObject> years = new TreeMap<>();
+        lock.readLock().lock();
+        try {
+            KeyValueCursor cursor = descending(prefix + Character.MAX_VALUE);
+            for (; cursor.valid() && cursor.key().startsWith(prefix); cursor.advance()) {
+                if (cursor.value() != null) {
+                    // D openid logTime key year
+                    String[] parts = cursor.key().split(String.valueOf(SEPARATOR), -1);
+                    years.computeIfAbsent(parts[4], year -> new JSONObject())
+                            .put(parts[3], new JSONObject(new String(cursor.value(), StandardCharsets.UTF_8)));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return years;
+    }
+
+    /**
+     * 向下遍历到 lower（含）为止，range 不为null时只保留范围内的日记
+     */
+    private void collect(List<DiaryIndexEntry> records, KeyValueCursor cursor, String prefix, String lower,
+                         DiaryDateRange range) throws IOException {
+        for (; cursor.valid() && cursor.key().startsWith(prefix) && cursor.key().compareTo(lower) >= 0;
+             cursor.advance()) {
+            if (range == null) {
+                if (cursor.value() != null) {
+                    records.add(toEntry(cursor.key(), cursor.value()));
+                }
+            } else {
+                addIfContained(records, cursor, range);
+            }
+        }
+    }
+
+    private void addIfContained(List<DiaryIndexEntry> records, KeyValueCursor cursor, DiaryDateRange range) {
+        if (cursor.value() == null) {
+            return;
+        }
+        DiaryIndexEntry entry = toEntry(cursor.key(), cursor.value());
+        if (range.contains(entry.getLogTime(), entry.getYear())) {
+            records.add(entry);
+        }
+    }
+
+    /**
+     * 导入一个年度文件中的日记，保留原有的key，已存在的日记跳过，用于从JSON文件迁移；
+     * diaryId已对应其他记录（迁移后修改过）的日记也跳过，不让旧内容占用ID
+     *
+     * @return 实际导入的日记数
+     */
+    public int importYear(String openid, String year, JSONObject yearJson) throws IOException {
+        synchronized (writeMonitor) {
+            Map<String, byte[]> batch = new LinkedHashMap<>();
+            for (String key : yearJson.keySet()) {
+                JSONObject diary = yearJson.getJSONObject(key);
+                String diaryKey = diaryKey(openid, diary.optString("logTime", ""), key, year);
+                String diaryId = diary.optString("diaryId", "");
+                if (lookup(diaryKey) != null || (!diaryId.isEmpty() && lookup(idKey(openid, diaryId)) != null)) {
+                    continue;
+                }
+                batch.put(diaryKey, diary.toString().getBytes(StandardCharsets.UTF_8));
+                if (!diaryId.isEmpty()) {
+                    batch.put(idKey(openid, diaryId), diaryKey.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+                counts.remove(openid);
+            }
+            return (int) batch.keySet().stream().filter(k -> k.startsWith(DIARY_PREFIX)).count();
+        }
+    }
+
+    /**
+     * 全量合并段文件，段文件数未达到阈值时不做任何事
+     */
+    @Scheduled(fixedDelayString = "${diary.store.segment.compaction-interval:60000}")
+    public void compact() {
+        synchronized (compactionMonitor) {
+            List<SegmentFile> snapshot = segments;
+            if (snapshot.size() < compactionThreshold) {
+                return;
+            }
+            try {
+                // 合并期间新刷盘的段追加在列表末尾，合并的总是最旧的一段前缀，包含最旧的段，因此可以丢弃删除标记
+                List<KeyValueCursor> sources = new ArrayList<>();
+                for (int i = snapshot.size() - 1; i >= 0; i--) {
+                    sources.add(snapshot.get(i).cursor(0, 1));
+                }
+                Path target = Paths.get(segmentPath).resolve(newSegmentName());
+                SegmentFile merged = SegmentFile.write(target, new MergedCursor(sources, false), false);
+
+                lock.writeLock().lock();
+                try {
+                    List<SegmentFile> replaced = new ArrayList<>();
+                    replaced.add(merged);
+                    replaced.addAll(segments.subList(snapshot.size(), segments.size()));
+                    writeManifest(replaced);
+                    segments = Collections.unmodifiableList(replaced);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                for (SegmentFile segment : snapshot) {
+                    Files.deleteIfExists(segment.path());
+                }
+                compactionCounter.increment();
+                logger.info("段文件合并完成: {} 个段合并为 {}，共 {} 条记录",
+                        snapshot.size(), target.getFileName(), merged.size());
+            } catch (IOException e) {
+                logger.error("段文件合并失败", e);
+            }
+        }
+    }
+
+    /**
+     * 写入一批记录：先追加预写日志并落盘，再更新memtable，必须持有writeMonitor
+     */
+    private void write(Map<String, byte[]> batch) throws IOException {
+        JSONArray ops = new JSONArray();
+        for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+            JSONObject op = new JSONObject();
+            op.put("k", entry.getKey());
+            if (entry.getValue() != TOMBSTONE) {
+                op.put("v", new String(entry.getValue(), StandardCharsets.UTF_8));
+            }
+            ops.put(op);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(((walTorn ? "\n" : "") + ops + "\n").getBytes(StandardCharsets.UTF_8));
+        long start = walChannel.size();
+        try {
+            while (buffer.hasRemaining()) {
+                walChannel.write(buffer);
+            }
+            walChannel.force(false);
+        } catch (IOException e) {
+            // 该批写入未被确认，截断回写入前的长度，不留下半条记录
+            try {
+                walChannel.truncate(start);
+            } catch (IOException truncateError) {
+                logger.error("截断写了一半的预写日志记录失败", truncateError);
+                walTorn = true;
+            }
+            throw e;
+        }
+        walTorn = false;
+
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (memtableBytes >= memtableMaxBytes) {
+            flush();
+        }
+    }
+
+    private void applyBatch(JSONArray ops) {
+        for (int i = 0; i < ops.length(); i++) {
+            JSONObject op = ops.getJSONObject(i);
+            put(op.getString("k"), op.has("v") ? op.getString("v").getBytes(StandardCharsets.UTF_8) : TOMBSTONE);
+        }
+    }
+
+    private void put(String key, byte[] value) {
+        byte[] previous = memtable.put(key, value);
+        memtableBytes += value.length - (previous == null ? -2L * key.length() - 64 : previous.length);
+    }
+
+    /**
+     * 把memtable写成新的段文件并清空预写日志，必须持有writeMonitor
+     */
+    private void flush() throws IOException {
+        ConcurrentNavigableMap<String, byte[]> frozen = memtable;
+        // 写入已被writeMonitor挡住，frozen在写段文件期间不会再变化，读请求照常进行
+        Path target = Paths.get(segmentPath).resolve(newSegmentName());
+        SegmentFile segment = SegmentFile.write(target, memtableCursor(frozen.entrySet().iterator()), true);
+
+        lock.writeLock().lock();
+        try {
+            List<SegmentFile> replaced = new ArrayList<>(segments);
+            replaced.add(segment);
+            writeManifest(replaced);
+            segments = Collections.unmodifiableList(replaced);
+            memtable = new ConcurrentSkipListMap<>();
+            memtableBytes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // MANIFEST已落盘，日志中的写入不再需要；若在此之前崩溃，重放日志是幂等的
+        walChannel.truncate(0);
+        walChannel.force(true);
+        walTorn = false;
+        logger.debug("memtable已写入段文件: {}，共 {} 条记录", target.getFileName(), segment.size());
+    }
+
+    /**
+     * 点查：memtable优先，然后从新到旧查段文件
+     *
+     * @return value；不存在或已删除时返回null
+     */
+    private byte[] lookup(String key) {
+        lock.readLock().lock();
+        try {
+            byte[] value = memtable.get(key);
+            if (value != null) {
+                return value == TOMBSTONE ? null : value;
+            }
+            List<SegmentFile> current = segments;
+            for (int i = current.size() - 1; i >= 0; i--) {
+                SegmentFile segment = current.get(i);
+                int index = segment.lowerBound(key);
+                if (index < segment.size() && segment.keyAt(index).equals(key)) {
+                    return segment.valueAt(index);
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 从小于 upper 的最大key开始降序遍历memtable和所有段文件，调用方需持有读锁
+     */
+    private KeyValueCursor descending(String upper) {
+        List<KeyValueCursor> sources = new ArrayList<>();
+        sources.add(memtableCursor(memtable.headMap(upper, false).descendingMap().entrySet().iterator()));
+        List<SegmentFile> current = segments;
+        for (int i = current.size() - 1; i >= 0; i--) {
+            SegmentFile segment = current.get(i);
+            sources.add(segment.cursor(segment.lowerBound(upper) - 1, -1));
+        }
+        return new MergedCursor(sources, true);
+    }
+
+    private static KeyValueCursor memtableCursor(Iterator<Map.Entry<String, byte[]>> iterator) {
+        return new KeyValueCursor() {
+            private Map.Entry<String, byte[]> current = iterator.hasNext() ? iterator.next() : null;
+
+            @Override
+            public boolean valid() {
+                return current != null;
+            }
+
+            @Override
+            public String key() {
+                return current.getKey();
+            }
+
+            @Override
+            public byte[] value() {
+                return current.getValue() == TOMBSTONE ? null : current.getValue();
+            }
+
+            @Override
+            public void advance() {
+                current = iterator.hasNext() ? iterator.next() : null;
+            }
+        };
+    }
+
+    /**
+     * 用户的日记总数，首次访问时遍历统计
+     */
+    private int count(String openid) {
+        Integer cached = counts.get(openid);
+        if (cached != null) {
+            return cached;
+        }
+        synchronized (writeMonitor) {
+            String prefix = userPrefix(openid);
+            int count = 0;
+            lock.readLock().lock();
+            try {
+                for (KeyValueCursor cursor = descending(prefix + Character.MAX_VALUE);
+                     cursor.valid() && cursor.key().startsWith(prefix); cursor.advance()) {
+                    if (cursor.value() != null) {
+                        count++;
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            counts.put(openid, count);
+            return count;
+        }
+    }
+
+    private static boolean endsWithNewline(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            return last.get(0) == '\n';
+        }
+    }
+
+    private DiaryIndexEntry toEntry(String diaryKey, byte[] value) {
+        // D openid logTime key year
+        String[] parts = diaryKey.split(String.valueOf(SEPARATOR), -1);
+        JSONObject diary = new JSONObject(new String(value, StandardCharsets.UTF_8));
+        return DiaryIndexEntry.of(parts[4], parts[3], diary);
+    }
+
+    /**
+     * 写入MANIFEST：临时文件落盘后原子替换，再同步目录，使替换和新段文件的目录项都已持久化；
+     * 返回后才能清空预写日志或删除被合并的段
+     */
+    private void writeManifest(List<SegmentFile> current) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (SegmentFile segment : current) {
+            content.append(segment.path().getFileName()).append('\n');
+        }
+        Path dir = Paths.get(segmentPath);
+        Path manifest = dir.resolve(MANIFEST);
+        Path temp = manifest.resolveSibling(MANIFEST + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    private String newSegmentName() {
+        return SEGMENT_PREFIX + String.format("%08d", nextSegmentId.getAndIncrement()) + SEGMENT_SUFFIX;
+    }
+
+    private static long segmentId(String name) {
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static String userPrefix(String openid) {
+        return DIARY_PREFIX + openid + SEPARATOR;
+    }
+
+    private static String diaryKey(String openid, String logTime, String key, String year) {
+        return userPrefix(openid) + logTime + SEPARATOR + key + SEPARATOR + year;
+    }
+
+    private static String idKey(String openid, String diaryId) {
+        return ID_PREFIX + openid + SEPARATOR + diaryId;
+    }
+}
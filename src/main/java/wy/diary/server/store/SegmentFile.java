@@ -0,0 +1,198 @@
+package wy.diary.server.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 不可变的有序段文件，通过内存映射读取
+ * <p>
+ * 文件格式：
+ * <pre>
+ * [int MAGIC]
+ * 记录 * N: [int keyLen][key UTF-8][int valueLen，删除标记为-1][value]
+ * 偏移表:   [long 记录偏移] * N
+ * 文件尾:   [int N][long 偏移表位置][int MAGIC]
+ * </pre>
+ * 记录按key升序排列，查找时在偏移表上二分。
+ */
+final class SegmentFile {
+
+    private static final int MAGIC = 0x44534731;
+    private static final int FOOTER_BYTES = 4 + 8 + 4;
+    private static final int TOMBSTONE_LENGTH = -1;
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int tableStart;
+
+    private SegmentFile(Path path, MappedByteBuffer buffer, int count, int tableStart) {
+        this.path = path;
+        this.buffer = buffer;
+        this.count = count;
+        this.tableStart = tableStart;
+    }
+
+    /**
+     * 把游标中的记录写成段文件，先写临时文件，落盘后原子替换
+     *
+     * @param cursor 按key升序的游标
+     * @param keepTombstones 是否保留删除标记；合并了最旧的段时可以丢弃
+     */
+    static SegmentFile write(Path path, KeyValueCursor cursor, boolean keepTombstones) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        List<Long> offsets = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream stream = Channels.newOutputStream(channel);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+            out.writeInt(MAGIC);
+            long position = 4;
+            for (; cursor.valid(); cursor.advance()) {
+                byte[] value = cursor.value();
+                if (value == null && !keepTombstones) {
+                    continue;
+                }
+                offsets.add(position);
+                byte[] key = cursor.key().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                if (value == null) {
+                    out.writeInt(TOMBSTONE_LENGTH);
+                } else {
+                    out.writeInt(value.length);
+                    out.write(value);
+                }
+                position += 8 + key.length + (value == null ? 0 : value.length);
+                // 段文件通过单个MappedByteBuffer读取，限制在2GB以内
+                if (position + 8L * offsets.size() + FOOTER_BYTES > Integer.MAX_VALUE) {
+                    throw new IOException("段文件超过2GB上限: " + path);
+                }
+            }
+            long tableOffset = position;
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            out.writeInt(offsets.size());
+            out.writeLong(tableOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(path);
+    }
+
+    /**
+     * 打开并映射段文件，校验文件尾
+     */
+    static SegmentFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 4 + FOOTER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("段文件大小无效: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int footer = (int) size - FOOTER_BYTES;
+            int count = buffer.getInt(footer);
+            long tableStart = buffer.getLong(footer + 4);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(footer + 12) != MAGIC
+                    || count < 0 || tableStart + 8L * count != footer) {
+                throw new IOException("段文件已损坏: " + path);
+            }
+            return new SegmentFile(path, buffer, count, (int) tableStart);
+        }
+    }
+
+    Path path() {
+        return path;
+    }
+
+    int size() {
+        return count;
+    }
+
+    String keyAt(int index) {
+        int offset = recordOffset(index);
+        byte[] key = new byte[buffer.getInt(offset)];
+        buffer.get(offset + 4, key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return 记录的value；删除标记返回null
+     */
+    byte[] valueAt(int index) {
+        int offset = recordOffset(index);
+        offset += 4 + buffer.getInt(offset);
+        int length = buffer.getInt(offset);
+        if (length == TOMBSTONE_LENGTH) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buffer.get(offset + 4, value);
+        return value;
+    }
+
+    /**
+     * 第一条key不小于给定key的记录下标，全部小于时返回size()
+     */
+    int lowerBound(String key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keyAt(mid).compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 从下标 start 开始、按 step 方向（1升序，-1降序）遍历的游标
+     */
+    KeyValueCursor cursor(int start, int step) {
+        return new KeyValueCursor() {
+            private int index = start;
+
+            @Override
+            public boolean valid() {
+                return index >= 0 && index < count;
+            }
+
+            @Override
+            public String key() {
+                return keyAt(index);
+            }
+
+            @Override
+            public byte[] value() {
+                return valueAt(index);
+            }
+
+            @Override
+            public void advance() {
+                index += step;
+            }
+        };
+    }
+
+    private int recordOffset(int index) {
+        return (int) buffer.getLong(tableStart + 8 * index);
+    }
+}
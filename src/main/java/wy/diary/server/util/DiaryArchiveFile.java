@@ -0,0 +1,223 @@
+package wy.diary.server.util;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 已归档年份的压缩日记文件 {openid}-{year}.arc
+ * <p>
+ * 文件格式：
+ * <pre>
+ * [int MAGIC]
+ * 数据块 * N: deflate压缩的JSON对象 {key: 日记}，每块原始大小约 BLOCK_BYTES
+ * 索引:       deflate压缩的JSON {"rawBytes": 原始JSON字节数, "blocks": [[偏移, 长度], ...], "keys": {key: 块序号}}
+ * 文件尾:     [long 索引偏移][int 索引长度][int MAGIC]
+ * </pre>
+ * 按key读取单篇日记时只解压索引和所在的数据块。
+ */
+public final class DiaryArchiveFile {
+
+    private static final int MAGIC = 0x44415243;
+    private static final int FOOTER_BYTES = 8 + 4 + 4;
+    private static final int BLOCK_BYTES = 64 * 1024;
+
+    private DiaryArchiveFile() {
+    }
+
+    /**
+     * 把一年的日记写成归档文件，先写临时文件，落盘后原子替换
+     */
+    public static void write(Path path, JSONObject yearJson) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeInt(out, MAGIC);
+
+        JSONArray blocks = new JSONArray();
+        JSONObject keys = new JSONObject();
+        JSONObject block = new JSONObject();
+        int blockBytes = 0;
+        long rawBytes = 0;
+        for (String key : yearJson.keySet()) {
+            JSONObject diary = yearJson.getJSONObject(key);
+            int size = diary.toString().length() + key.length();
+            rawBytes += size;
+            block.put(key, diary);
+            keys.put(key, blocks.length());
+            blockBytes += size;
+            if (blockBytes >= BLOCK_BYTES) {
+                blocks.put(writeBlock(out, block));
+                block = new JSONObject();
+                blockBytes = 0;
+            }
+        }
+        if (!block.isEmpty()) {
+            blocks.put(writeBlock(out, block));
+        }
+
+        JSONObject index = new JSONObject();
+        index.put("rawBytes", rawBytes);
+        index.put("blocks", blocks);
+        index.put("keys", keys);
+        long indexOffset = out.size();
+        byte[] compressedIndex = deflate(index.toString().getBytes(StandardCharsets.UTF_8));
+        out.write(compressedIndex);
+        writeLong(out, indexOffset);
+        writeInt(out, compressedIndex.length);
+        writeInt(out, MAGIC);
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 读取归档中的全部日记
+     */
+    public static JSONObject readAll(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            JSONObject index = readIndex(channel, path);
+            JSONArray blocks = index.getJSONArray("blocks");
+            JSONObject result = new JSONObject();
+            for (int i = 0; i < blocks.length(); i++) {
+                JSONObject block = readBlock(channel, blocks.getJSONArray(i));
+                for (String key : block.keySet()) {
+                    result.put(key, block.getJSONObject(key));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 按key读取一篇日记，只解压所在的数据块
+     *
+     * @return 不存在时返回null
+     */
+    public static JSONObject readEntry(Path path, String key) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            JSONObject index = readIndex(channel, path);
+            JSONObject keys = index.getJSONObject("keys");
+            if (!keys.has(key)) {
+                return null;
+            }
+            JSONArray block = index.getJSONArray("blocks").getJSONArray(keys.getInt(key));
+            return readBlock(channel, block).optJSONObject(key);
+        }
+    }
+
+    /**
+     * 归档内容解压后的大小（字符数，估算值），用于按原始数据量做容量判断
+     */
+    public static long rawBytes(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return readIndex(channel, path).getLong("rawBytes");
+        }
+    }
+
+    private static JSONArray writeBlock(ByteArrayOutputStream out, JSONObject block) throws IOException {
+        byte[] compressed = deflate(block.toString().getBytes(StandardCharsets.UTF_8));
+        JSONArray location = new JSONArray();
+        location.put(out.size());
+        location.put(compressed.length);
+        out.write(compressed);
+        return location;
+    }
+
+    private static JSONObject readIndex(FileChannel channel, Path path) throws IOException {
+        long size = channel.size();
+        if (size < 4 + FOOTER_BYTES) {
+            throw new IOException("归档文件已损坏: " + path);
+        }
+        ByteBuffer footer = readFully(channel, size - FOOTER_BYTES, FOOTER_BYTES);
+        long indexOffset = footer.getLong();
+        int indexLength = footer.getInt();
+        if (footer.getInt() != MAGIC || indexOffset < 4 || indexOffset + indexLength != size - FOOTER_BYTES) {
+            throw new IOException("归档文件已损坏: " + path);
+        }
+        return new JSONObject(inflate(readFully(channel, indexOffset, indexLength).array()));
+    }
+
+    private static JSONObject readBlock(FileChannel channel, JSONArray location) throws IOException {
+        ByteBuffer compressed = readFully(channel, location.getLong(0), location.getInt(1));
+        return new JSONObject(inflate(compressed.array()));
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("归档文件意外结束");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("归档数据块不完整");
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IOException("归档数据块已损坏", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        writeInt(out, (int) (value >>> 32));
+        writeInt(out, (int) value);
+    }
+}
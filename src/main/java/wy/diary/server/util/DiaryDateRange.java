@@ -0,0 +1,123 @@
+package wy.diary.server.util;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 日期范围查询的参数，日期格式为 yyyy-MM-dd，起止日期都包含在内
+ * <p>
+ * 日记的 logTime 通常以 yyyy-MM-dd 开头，后面可能带时间（如 2025-05-09 10:00），按所在日期判断是否在范围内；
+ * 按字符串比较时以结束日期的下一天作为不含的上界（{@link #getToExclusive()}），当天带时间的日记不会被排除。
+ * 早期客户端保存的 logTime 是不带年份的 "M月d日"（如 5月9日），年份取日记所在的年度文件，见 {@link #dayOf(String, String)}。
+ */
+public final class DiaryDateRange {
+
+    private static final Pattern ISO_DAY = Pattern.compile("^\\d{4}-\\d{2}-\\d{2}");
+    private static final Pattern LEGACY_DAY = Pattern.compile("^(\\d{1,2})月(\\d{1,2})日");
+
+    private final String from;
+    private final String to;
+    private final String toExclusive;
+
+    private DiaryDateRange(LocalDate from, LocalDate to) {
+        this.from = from.toString();
+        this.to = to.toString();
+        this.toExclusive = to.plusDays(1).toString();
+    }
+
+    /**
+     * @throws IllegalArgumentException 日期格式不正确或起始日期晚于结束日期
+     */
+    public static DiaryDateRange of(String from, String to) {
+        LocalDate start = parseDate(from);
+        LocalDate end = parseDate(to);
+        if (start.isAfter(end)) {
+            throw new IllegalArgumentException("起始日期不能晚于结束日期");
+        }
+        return new DiaryDateRange(start, end);
+    }
+
+    /**
+     * 某个月的第一天到最后一天
+     *
+     * @param month 月份，格式 yyyy-MM
+     * @throws IllegalArgumentException 月份格式不正确
+     */
+    public static DiaryDateRange ofMonth(String month) {
+        try {
+            YearMonth yearMonth = YearMonth.parse(month);
+            return new DiaryDateRange(yearMonth.atDay(1), yearMonth.atEndOfMonth());
+        } catch (DateTimeParseException | NullPointerException e) {
+            throw new IllegalArgumentException("无效的月份: " + month, e);
+        }
+    }
+
+    /**
+     * 日记记录时间所在的日期（yyyy-MM-dd）
+     *
+     * @param logTime 日记的 logTime，yyyy-MM-dd 开头或早期的 "M月d日"
+     * @param year 日记所在年度文件的年份，用于补全 "M月d日"；为null时该格式无法识别
+     * @return 无法识别的格式返回null
+     */
+    public static String dayOf(String logTime, String year) {
+        if (logTime == null) {
+            return null;
+        }
+        if (ISO_DAY.matcher(logTime).find()) {
+            return logTime.substring(0, 10);
+        }
+        Matcher legacy = LEGACY_DAY.matcher(logTime);
+        if (legacy.find() && year != null) {
+            try {
+                return LocalDate.of(Integer.parseInt(year), Integer.parseInt(legacy.group(1)),
+                        Integer.parseInt(legacy.group(2))).toString();
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * logTime 是否以 yyyy-MM-dd 开头，只有这种格式按字符串排序与日期顺序一致
+     */
+    public static boolean isIsoDay(String logTime) {
+        return logTime != null && ISO_DAY.matcher(logTime).find();
+    }
+
+    /**
+     * 日记是否在范围内
+     *
+     * @param year 日记所在年度文件的年份，见 {@link #dayOf(String, String)}
+     */
+    public boolean contains(String logTime, String year) {
+        String day = dayOf(logTime, year);
+        return day != null && day.compareTo(from) >= 0 && day.compareTo(to) <= 0;
+    }
+
+    private static LocalDate parseDate(String date) {
+        try {
+            return LocalDate.parse(date);
+        } catch (DateTimeParseException | NullPointerException e) {
+            throw new IllegalArgumentException("无效的日期: " + date, e);
+        }
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    /**
+     * 结束日期的下一天，logTime 按字符串比较时作为不含的上界
+     */
+    public String getToExclusive() {
+        return toExclusive;
+    }
+}
@@ -0,0 +1,42 @@
+package wy.diary.server.util;
+
+import java.util.regex.Pattern;
+
+/**
+ * 日记内容预览：去掉富文本标签后的前若干个字符，保存时预先计算，列表摘要视图直接返回
+ */
+public final class DiaryPreview {
+
+    /**
+     * 预览的最大字符数
+     */
+    public static final int MAX_LENGTH = 100;
+
+    /**
+     * 计算旧数据的预览时从内容开头读取的字符数，足够覆盖标签后的预览文本
+     */
+    public static final int SOURCE_LENGTH = 512;
+
+    // 末尾被截断的标签（只有"<"没有">"）也一并去掉
+    private static final Pattern TAG = Pattern.compile("<[^>]*(>|$)");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private DiaryPreview() {
+    }
+
+    /**
+     * @param editorContent 日记的富文本内容，可为null
+     */
+    public static String of(String editorContent) {
+        if (editorContent == null || editorContent.isEmpty()) {
+            return "";
+        }
+        String text = TAG.matcher(editorContent).replaceAll(" ")
+                .replace("&nbsp;", " ")
+                .replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&amp;", "&");
+        text = WHITESPACE.matcher(text).replaceAll(" ").trim();
+        return text.length() > MAX_LENGTH ? text.substring(0, MAX_LENGTH) : text;
+    }
+}
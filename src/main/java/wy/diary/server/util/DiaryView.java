@@ -0,0 +1,97 @@
+package wy.diary.server.util;
+
+import java.util.*;
+
+/**
+ * 列表接口返回的日记字段：完整视图(full)、摘要视图(summary)，或用 fields 指定的字段
+ * <p>
+ * 摘要视图只包含预览、图片数和元数据，不返回 editorContent 和 imageUrls。
+ */
+public final class DiaryView {
+
+    /**
+     * 摘要视图的字段
+     */
+    public static final List<String> SUMMARY_FIELDS = List.of(
+            "key", "diaryId", "preview", "imageCount", "createTime", "logTime", "logWeek", "logLunar", "address");
+
+    /**
+     * 只在完整内容中才有的字段，请求这些字段时需要读取日记内容
+     */
+    private static final Set<String> CONTENT_FIELDS = Set.of("editorContent", "imageUrls");
+
+    // 总是返回的标识字段
+    private static final List<String> ID_FIELDS = List.of("key", "diaryId");
+
+    public static final DiaryView FULL = new DiaryView(null, true);
+
+    private final Set<String> fields;
+    private final boolean full;
+
+    private DiaryView(Set<String> fields, boolean full) {
+        this.fields = fields;
+        this.full = full;
+    }
+
+    /**
+     * @param view full 或 summary，为null时为full
+     * @param fields 逗号分隔的字段名，指定后忽略view
+     * @throws IllegalArgumentException view取值不正确
+     */
+    public static DiaryView of(String view, String fields) {
+        if (fields != null && !fields.isBlank()) {
+            Set<String> selected = new LinkedHashSet<>(ID_FIELDS);
+            for (String field : fields.split(",")) {
+                if (!field.isBlank()) {
+                    selected.add(field.trim());
+                }
+            }
+            return new DiaryView(selected, !Collections.disjoint(selected, CONTENT_FIELDS));
+        }
+        if (view == null || view.isEmpty() || "full".equals(view)) {
+            return FULL;
+        }
+        if ("summary".equals(view)) {
+            return new DiaryView(new LinkedHashSet<>(SUMMARY_FIELDS), false);
+        }
+        throw new IllegalArgumentException("无效的视图: " + view);
+    }
+
+    /**
+     * 是否需要读取日记的完整内容
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * 是否是未做投影的完整视图，此时返回的记录与原有列表接口相同
+     */
+    public boolean isDefault() {
+        return fields == null;
+    }
+
+    /**
+     * 从包含全部可用字段的记录中取出该视图的字段
+     */
+    public Map<String, Object> project(Map<String, Object> record) {
+        if (fields == null) {
+            return record;
+        }
+        Map<String, Object> projected = new HashMap<>();
+        for (String field : fields) {
+            if (record.containsKey(field)) {
+                projected.put(field, record.get(field));
+            }
+        }
+        return projected;
+    }
+
+    /**
+     * 用作缓存key的一部分
+     */
+    @Override
+    public String toString() {
+        return fields == null ? "full" : String.join(",", fields);
+    }
+}
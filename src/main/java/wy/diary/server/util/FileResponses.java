@@ -0,0 +1,260 @@
+package wy.diary.server.util;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import wy.diary.server.model.CachedImage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+/**
+ * 以文件为响应体的下载响应，不把文件读入内存，支持HTTP Range
+ * <p>
+ * 容器支持sendfile时（Tomcat NIO连接器默认开启），只设置响应头和sendfile请求属性，
+ * 由Tomcat在请求处理结束后用 FileChannel.transferTo 直接从文件发送到socket，数据不经过JVM堆。
+ * 不支持sendfile或请求多个范围时返回文件资源，由Spring按8KB缓冲区流式写出并处理Range。
+ */
+public final class FileResponses {
+
+    // Tomcat的sendfile请求属性，见 org.apache.catalina.Globals
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private FileResponses() {
+    }
+
+    /**
+     * 构造文件响应：没有Range请求头时返回200和完整文件，单个范围返回206和该范围，
+     * 范围无效时返回416
+     * <p>
+     * 响应带强ETag（文件大小和修改时间）和Last-Modified，If-None-Match / If-Modified-Since
+     * 与文件一致时返回304，不发送文件内容；If-Range与文件不一致时忽略Range返回完整文件。
+     *
+     * @param cacheControl 响应的Cache-Control，可为null
+     */
+    public static ResponseEntity<?> serve(HttpServletRequest request, Path file, MediaType contentType,
+                                          CacheControl cacheControl) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long length = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = etagOf(length, lastModified);
+
+        HttpHeaders responseHeaders = validatorHeaders(etag, lastModified, cacheControl);
+        if (notModified(request, etag, lastModified)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(responseHeaders).build();
+        }
+        responseHeaders.setContentType(contentType);
+        responseHeaders.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        List<HttpRange> ranges;
+        try {
+            ranges = rangeHeader != null && rangeMatches(request, etag, lastModified)
+                    ? HttpRange.parseRanges(rangeHeader) : List.of();
+        } catch (IllegalArgumentException e) {
+            return rangeNotSatisfiable(length);
+        }
+
+        if (!Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR)) || ranges.size() > 1) {
+            // Spring遇到Range请求头时自动按范围写出资源并返回206
+            return ResponseEntity.ok().headers(responseHeaders).body(new FileSystemResource(file));
+        }
+
+        long start = 0;
+        long end = length - 1;
+        HttpStatus status = HttpStatus.OK;
+        if (!ranges.isEmpty()) {
+            try {
+                start = ranges.get(0).getRangeStart(length);
+                end = ranges.get(0).getRangeEnd(length);
+            } catch (IllegalArgumentException e) {
+                return rangeNotSatisfiable(length);
+            }
+            if (start >= length || start > end) {
+                return rangeNotSatisfiable(length);
+            }
+            status = HttpStatus.PARTIAL_CONTENT;
+            responseHeaders.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        }
+        responseHeaders.setContentLength(end - start + 1);
+
+        // 空文件没有可发送的内容，不设置sendfile
+        if (length > 0) {
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_END_ATTR, end + 1);
+        }
+        return ResponseEntity.status(status).headers(responseHeaders).build();
+    }
+
+    /**
+     * 从内存中的图片构造响应，ETag、304和单个范围的处理与文件响应相同，不访问磁盘
+     *
+     * @return 多个范围、If-Range与图片不一致或范围无效时返回null，由调用方按文件响应处理
+     */
+    public static ResponseEntity<?> serve(HttpServletRequest request, CachedImage image, MediaType contentType,
+                                          CacheControl cacheControl) {
+        long length = image.size();
+        long lastModified = image.getLastModified();
+        String etag = etagOf(length, lastModified);
+
+        HttpHeaders responseHeaders = validatorHeaders(etag, lastModified, cacheControl);
+        if (notModified(request, etag, lastModified)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(responseHeaders).build();
+        }
+        responseHeaders.setContentType(contentType);
+        responseHeaders.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        ByteBuffer content = image.content();
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null) {
+            return ResponseEntity.ok().headers(responseHeaders).body(new ByteBufferResource(content));
+        }
+        if (!rangeMatches(request, etag, lastModified)) {
+            return null;
+        }
+        try {
+            List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+            if (ranges.size() != 1) {
+                return null;
+            }
+            long start = ranges.get(0).getRangeStart(length);
+            long end = ranges.get(0).getRangeEnd(length);
+            if (start >= length || start > end) {
+                return null;
+            }
+            content.position((int) start).limit((int) end + 1);
+            responseHeaders.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            // 状态码不是200，Spring不会再按Range请求头截取响应体
+            return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT).headers(responseHeaders)
+                    .body(new ByteBufferResource(content.slice()));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String etagOf(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    private static HttpHeaders validatorHeaders(String etag, long lastModified, CacheControl cacheControl) {
+        HttpHeaders responseHeaders = new HttpHeaders();
+        responseHeaders.setETag(etag);
+        responseHeaders.setLastModified(lastModified);
+        if (cacheControl != null) {
+            responseHeaders.setCacheControl(cacheControl);
+        }
+        return responseHeaders;
+    }
+
+    /**
+     * If-None-Match存在时按ETag判断（弱比较），否则按If-Modified-Since判断（精确到秒）
+     */
+    private static boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince = dateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+        return ifModifiedSince >= 0 && lastModified / 1000 * 1000 <= ifModifiedSince;
+    }
+
+    /**
+     * If-Range为ETag时要求强匹配，为日期时要求与Last-Modified相同；没有If-Range时总是匹配
+     */
+    private static boolean rangeMatches(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        return dateHeader(request, HttpHeaders.IF_RANGE) == lastModified / 1000 * 1000;
+    }
+
+    private static long dateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            // 格式错误的日期视为没有该请求头
+            return -1;
+        }
+    }
+
+    private static ResponseEntity<?> rangeNotSatisfiable(long length) {
+        return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length)
+                .build();
+    }
+
+    /**
+     * 以ByteBuffer为内容的资源，读取时从缓冲区直接复制，不生成完整的字节数组
+     */
+    private static final class ByteBufferResource extends AbstractResource {
+        private final ByteBuffer content;
+
+        ByteBufferResource(ByteBuffer content) {
+            this.content = content;
+        }
+
+        @Override
+        public String getDescription() {
+            return "cached image";
+        }
+
+        @Override
+        public long contentLength() {
+            return content.remaining();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            ByteBuffer buffer = content.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] target, int offset, int length) {
+                    if (!buffer.hasRemaining()) {
+                        return length == 0 ? 0 : -1;
+                    }
+                    int count = Math.min(length, buffer.remaining());
+                    buffer.get(target, offset, count);
+                    return count;
+                }
+
+                @Override
+                public int available() {
+                    return buffer.remaining();
+                }
+            };
+        }
+    }
+}
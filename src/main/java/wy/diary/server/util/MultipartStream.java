@@ -0,0 +1,258 @@
+package wy.diary.server.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * 边读边解析的multipart/form-data请求体，各部分的内容直接从请求流中读出，不落临时文件
+ * <p>
+ * 按顺序调用 {@link #nextPart()} 取下一部分，读完（或丢弃）当前部分的内容流后才能取下一部分。
+ * 只使用一个固定大小的缓冲区，内存占用与上传文件大小无关。
+ */
+public class MultipartStream {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // 一个部分的头部总长度上限
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+
+    private final InputStream input;
+    // 分隔符 "\r\n--{boundary}"，第一个分隔符前没有换行，在缓冲区开头补上
+    private final byte[] delimiter;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int head;
+    private int tail;
+    private boolean eof;
+
+    private PartInputStream current;
+    private boolean finished;
+
+    public MultipartStream(InputStream input, String boundary) {
+        this.input = input;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        if (delimiter.length * 2 > BUFFER_SIZE) {
+            throw new IllegalArgumentException("multipart boundary过长");
+        }
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        tail = 2;
+        // 跳过第一个分隔符之前的内容
+        current = new PartInputStream();
+    }
+
+    /**
+     * 从Content-Type中取boundary
+     *
+     * @return 不是multipart/form-data或没有boundary时返回null
+     */
+    public static String boundaryOf(String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data")) {
+            return null;
+        }
+        String boundary = parameter(contentType, "boundary");
+        return boundary == null || boundary.isEmpty() ? null : boundary;
+    }
+
+    /**
+     * 下一部分，当前部分未读完的内容被丢弃
+     *
+     * @return 没有更多部分时返回null
+     */
+    public Part nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+        current.skipAll();
+
+        // 分隔符后是 "--" 表示结束，否则是换行和头部
+        if (!fill(2)) {
+            throw new IOException("multipart请求体不完整");
+        }
+        if (buffer[head] == '-' && buffer[head + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        String name = null;
+        String fileName = null;
+        String contentType = null;
+        int headerSize = 0;
+        // 跳过分隔符所在行的剩余部分（通常为空）
+        readLine();
+        String line = readLine();
+        while (!line.isEmpty()) {
+            headerSize += line.length();
+            if (headerSize > MAX_HEADER_SIZE) {
+                throw new IOException("multipart头部过长");
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                String headerName = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String headerValue = line.substring(colon + 1).trim();
+                if (headerName.equals("content-disposition")) {
+                    name = parameter(headerValue, "name");
+                    fileName = parameter(headerValue, "filename");
+                } else if (headerName.equals("content-type")) {
+                    contentType = headerValue;
+                }
+            }
+            line = readLine();
+        }
+        current = new PartInputStream();
+        return new Part(name, fileName, contentType, current);
+    }
+
+    /**
+     * 读一行头部，不含换行；头部按UTF-8解码（浏览器和小程序的中文文件名不转义）
+     */
+    private String readLine() throws IOException {
+        int start = head;
+        while (true) {
+            for (int i = start; i + 1 < tail; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                    String line = new String(buffer, head, i - head, StandardCharsets.UTF_8);
+                    head = i + 2;
+                    return line;
+                }
+            }
+            if (tail - head >= MAX_HEADER_SIZE) {
+                throw new IOException("multipart头部过长");
+            }
+            start = Math.max(head, tail - 1);
+            int offset = head;
+            if (!fill(tail - head + 1)) {
+                throw new IOException("multipart请求体不完整");
+            }
+            start -= offset - head;
+        }
+    }
+
+    /**
+     * 保证缓冲区中至少有 count 个未读字节，必要时把未读部分移到开头再读
+     *
+     * @return 流已结束且不足 count 字节时返回false
+     */
+    private boolean fill(int count) throws IOException {
+        while (tail - head < count) {
+            if (eof) {
+                return false;
+            }
+            if (head > 0 && tail == buffer.length) {
+                System.arraycopy(buffer, head, buffer, 0, tail - head);
+                tail -= head;
+                head = 0;
+            }
+            int read = input.read(buffer, tail, buffer.length - tail);
+            if (read < 0) {
+                eof = true;
+            } else {
+                tail += read;
+            }
+        }
+        return true;
+    }
+
+    private int indexOfDelimiter() {
+        outer:
+        for (int i = head; i <= tail - delimiter.length; i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static String parameter(String header, String name) {
+        for (String item : header.split(";")) {
+            item = item.trim();
+            int equals = item.indexOf('=');
+            if (equals > 0 && item.substring(0, equals).trim().equalsIgnoreCase(name)) {
+                String value = item.substring(equals + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 请求体中的一部分
+     *
+     * @param name 表单字段名
+     * @param fileName 文件名，不是文件时为null
+     * @param contentType 该部分的Content-Type，可为null
+     * @param content 内容流，读到分隔符时结束
+     */
+    public record Part(String name, String fileName, String contentType, InputStream content) {
+
+        public boolean isFile() {
+            return fileName != null;
+        }
+    }
+
+    /**
+     * 当前部分的内容：缓冲区中分隔符之前的字节；未找到分隔符时保留可能是分隔符开头的末尾几个字节
+     */
+    private class PartInputStream extends InputStream {
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int read = read(one, 0, 1);
+            return read < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (ended) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+            while (true) {
+                int index = indexOfDelimiter();
+                int available = index >= 0 ? index - head : tail - head - (delimiter.length - 1);
+                if (available > 0) {
+                    int count = Math.min(available, length);
+                    System.arraycopy(buffer, head, target, offset, count);
+                    head += count;
+                    return count;
+                }
+                if (index >= 0) {
+                    // 分隔符之前的内容已读完
+                    head = index + delimiter.length;
+                    ended = true;
+                    return -1;
+                }
+                if (!fill(tail - head + 1)) {
+                    throw new IOException("multipart请求体不完整");
+                }
+            }
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            skipAll();
+        }
+
+        void skipAll() throws IOException {
+            byte[] discard = new byte[8192];
+            while (read(discard, 0, discard.length) >= 0) {
+                // 丢弃
+            }
+        }
+    }
+}
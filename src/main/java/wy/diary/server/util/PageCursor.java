@@ -0,0 +1,59 @@
+package wy.diary.server.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * 列表游标分页的游标，对客户端不透明
+ * <p>
+ * 记录上一页最后一条日记的排序键 (logTime, key)，下一页从严格排在它之后的日记开始。
+ * 文件存储中key是年度文件中的日记key，附带年份区分不同年度文件；数据库存储中key是主键id。
+ */
+public final class PageCursor {
+
+    private static final String SEPARATOR = "\n";
+
+    private final String logTime;
+    private final String key;
+    private final String year;
+
+    public PageCursor(String logTime, String key, String year) {
+        this.logTime = logTime;
+        this.key = key;
+        this.year = year == null ? "" : year;
+    }
+
+    public String encode() {
+        String raw = logTime + SEPARATOR + key + SEPARATOR + year;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 解析客户端传回的游标
+     * @throws IllegalArgumentException 游标格式不正确
+     */
+    public static PageCursor decode(String cursor) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] parts = raw.split(SEPARATOR, -1);
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("无效的分页游标");
+            }
+            return new PageCursor(parts[0], parts[1], parts[2]);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("无效的分页游标", e);
+        }
+    }
+
+    public String getLogTime() {
+        return logTime;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getYear() {
+        return year;
+    }
+}
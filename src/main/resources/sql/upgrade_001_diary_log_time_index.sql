@@ -0,0 +1,3 @@
+-- 日记列表游标分页使用的索引
+-- 文件名排在 diary_schema.sql 之后，容器初始化时在建表后执行；已有数据库请手动执行一次
+CREATE INDEX idx_diary_open_log ON diary (open_id, deleted, log_time, id);
@@ -0,0 +1,3 @@
+-- 日记列表摘要视图使用的预览列，保存日记时写入去掉标签后的内容前100个字符
+-- 已有数据无需回填：preview为NULL时摘要查询从editor_content开头截取后计算
+ALTER TABLE diary ADD COLUMN preview VARCHAR(200) NULL;
@@ -0,0 +1,7 @@
+-- 早期客户端保存的 log_time 是不带年份的 "M月d日"，按字符串排序时与 yyyy-MM-dd 混在一起，范围查询和日历统计会漏掉
+-- 用 create_time（如 Fri May 09 23:01:38 CST 2025）末尾的年份补全为 yyyy-MM-dd，新导入的数据由迁移任务直接补全
+UPDATE diary
+SET log_time = DATE_FORMAT(STR_TO_DATE(CONCAT(RIGHT(create_time, 4), '-', log_time), '%Y-%c月%e日'), '%Y-%m-%d')
+WHERE log_time LIKE '%月%日'
+  AND RIGHT(create_time, 4) REGEXP '^[0-9]{4}$'
+  AND STR_TO_DATE(CONCAT(RIGHT(create_time, 4), '-', log_time), '%Y-%c月%e日') IS NOT NULL;
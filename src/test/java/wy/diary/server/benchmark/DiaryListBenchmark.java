@@ -0,0 +1,164 @@
+package wy.diary.server.benchmark;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
+import wy.diary.server.store.DiaryStore;
+import wy.diary.server.store.JsonFileDiaryStore;
+import wy.diary.server.util.JwtUtil;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 平台线程与虚拟线程处理 /api/diary/list 的对比压测
+ * <p>
+ * 存储的分页读取被替换为先等待 benchmark.store.delay-millis 再读取，模拟变慢的磁盘；
+ * 每个请求使用不同的页码，不命中列表响应缓存。两个子类分别以 diary.threads.virtual=false/true 启动服务，
+ * 以相同的并发发出相同数量的请求，输出吞吐量和延迟分位数。
+ * <p>
+ * 默认的 mvn test 不运行，需要 mvn test -Pbenchmark（与 ServerApplicationTests 一样需要可用的数据库配置）。
+ */
+@Tag("benchmark")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@Import(DiaryListBenchmark.SlowStoreConfig.class)
+abstract class DiaryListBenchmark {
+    private static final Logger logger = LoggerFactory.getLogger(DiaryListBenchmark.class);
+
+    private static final String OPENID = "benchmark-user";
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private JwtUtil jwtUtil;
+
+    @Value("${diary.threads.virtual:false}")
+    private boolean virtualThreads;
+
+    @Value("${benchmark.concurrency:400}")
+    private int concurrency;
+
+    @Value("${benchmark.requests:4000}")
+    private int requests;
+
+    @Value("${benchmark.store.delay-millis:50}")
+    private long delayMillis;
+
+    @Test
+    void listDiariesConcurrently() throws Exception {
+        HttpClient client = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        String token = jwtUtil.generateToken(OPENID);
+        // 预热：建立连接、加载类
+        for (int i = 0; i < 20; i++) {
+            assertThat(client.send(request(token, -1 - i), HttpResponse.BodyHandlers.discarding()).statusCode()).isEqualTo(200);
+        }
+
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>(requests));
+        AtomicInteger failures = new AtomicInteger();
+        Semaphore permits = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            List<Future<?>> futures = new ArrayList<>(requests);
+            for (int i = 0; i < requests; i++) {
+                int pageIndex = i + 1;
+                permits.acquire();
+                futures.add(clients.submit(() -> {
+                    long sent = System.nanoTime();
+                    try {
+                        int status = client.send(request(token, pageIndex), HttpResponse.BodyHandlers.discarding()).statusCode();
+                        if (status != 200) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        latencies.add(System.nanoTime() - sent);
+                        permits.release();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            clients.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        logger.info("列表接口压测({}): 并发 {}，请求 {}，存储延迟 {} ms，吞吐量 {} 请求/秒，延迟 p50 {} ms, p99 {} ms, max {} ms，失败 {}",
+                virtualThreads ? "虚拟线程" : "平台线程", concurrency, requests, delayMillis,
+                String.format("%.1f", requests * 1e9 / elapsed),
+                percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0), failures.get());
+        assertThat(failures.get()).isZero();
+    }
+
+    private HttpRequest request(String token, int pageIndex) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/diary/list?pageSize=10&pageIndex=" + pageIndex))
+                .header("Authorization", "Bearer " + token)
+                .timeout(Duration.ofSeconds(60))
+                .GET()
+                .build();
+    }
+
+    private static long percentile(List<Long> sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1_000_000;
+    }
+
+    /**
+     * 分页读取前等待固定时间的存储，其余方法直接转发
+     */
+    @TestConfiguration
+    static class SlowStoreConfig {
+        private static final Set<String> SLOW_METHODS = Set.of("page", "scan", "range");
+
+        @Bean
+        @Primary
+        DiaryStore slowDiaryStore(JsonFileDiaryStore delegate,
+                                  @Value("${benchmark.store.delay-millis:50}") long delayMillis) {
+            return (DiaryStore) Proxy.newProxyInstance(DiaryStore.class.getClassLoader(),
+                    new Class<?>[]{DiaryStore.class}, (proxy, method, args) -> {
+                        if (SLOW_METHODS.contains(method.getName())) {
+                            Thread.sleep(delayMillis);
+                        }
+                        try {
+                            return method.invoke(delegate, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package wy.diary.server.benchmark;
+
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Tomcat默认的平台线程池处理请求
+ */
+@TestPropertySource(properties = "diary.threads.virtual=false")
+class PlatformThreadDiaryListBenchmark extends DiaryListBenchmark {
+}
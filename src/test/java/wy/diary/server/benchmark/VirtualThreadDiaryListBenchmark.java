@@ -0,0 +1,10 @@
+package wy.diary.server.benchmark;
+
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * 每个请求一个虚拟线程
+ */
+@TestPropertySource(properties = "diary.threads.virtual=true")
+class VirtualThreadDiaryListBenchmark extends DiaryListBenchmark {
+}
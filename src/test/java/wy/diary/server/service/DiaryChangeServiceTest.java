@@ -0,0 +1,121 @@
+package wy.diary.server.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import wy.diary.server.model.DiarySource;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 变更序列的写入失败处理、按偏移读取增量和压缩
+ */
+class DiaryChangeServiceTest {
+
+    private static final String OPENID = "user1";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void failedAppendNeverReusesSeq() throws Exception {
+        DiaryChangeService service = create(10000);
+        service.onDelete(DiarySource.FILE, OPENID, "d1");
+        long synced = latestSeq(service.getChanges(DiarySource.FILE, OPENID, 0, 100));
+
+        // 日志路径变成目录，追加失败
+        Path log = dir.resolve("changes").resolve("file").resolve(OPENID + ".log");
+        byte[] content = Files.readAllBytes(log);
+        Files.delete(log);
+        Files.createDirectory(log);
+        service.onDelete(DiarySource.FILE, OPENID, "d2");
+        long failedSeq = latestSeq(service.getChanges(DiarySource.FILE, OPENID, synced, 100));
+        assertThat(failedSeq).isGreaterThan(synced);
+        assertThat(service.getChanges(DiarySource.FILE, OPENID, synced, 100).get("resync")).isEqualTo(true);
+
+        Files.delete(log);
+        Files.write(log, content);
+        service.onDelete(DiarySource.FILE, OPENID, "d3");
+
+        // 丢失d2的客户端必须重新同步，新变更的序号大于所有已分配过的序号
+        assertThat(service.getChanges(DiarySource.FILE, OPENID, synced, 100).get("resync")).isEqualTo(true);
+        DiaryChangeService restarted = create(10000);
+        assertThat(restarted.getChanges(DiarySource.FILE, OPENID, synced, 100).get("resync")).isEqualTo(true);
+        long latest = latestSeq(restarted.getChanges(DiarySource.FILE, OPENID, 0, 100));
+        Map<String, Object> afterRestart = restarted.getChanges(DiarySource.FILE, OPENID, latest - 1, 100);
+        assertThat(afterRestart.get("resync")).isEqualTo(false);
+        assertThat(diaryIds(afterRestart)).containsExactly("d3");
+        assertThat(seqs(afterRestart).get(0)).isGreaterThan(failedSeq);
+    }
+
+    @Test
+    void tornTailIsSeparatedBeforeNextAppend() throws Exception {
+        DiaryChangeService service = create(10000);
+        service.onDelete(DiarySource.FILE, OPENID, "d1");
+        Path log = dir.resolve("changes").resolve("file").resolve(OPENID + ".log");
+        Files.write(log, "{\"seq\":3,\"op\":\"del".getBytes(), StandardOpenOption.APPEND);
+
+        DiaryChangeService restarted = create(10000);
+        restarted.onDelete(DiarySource.FILE, OPENID, "d2");
+        Map<String, Object> changes = create(10000).getChanges(DiarySource.FILE, OPENID, 2, 100);
+        assertThat(changes.get("resync")).isEqualTo(true);
+        long latest = latestSeq(changes);
+        assertThat(diaryIds(create(10000).getChanges(DiarySource.FILE, OPENID, latest - 1, 100)))
+                .containsExactly("d2");
+    }
+
+    @Test
+    void changesAreReadFromIndexedOffsetsBeforeAndAfterRestartAndCompaction() throws Exception {
+        DiaryChangeService service = create(300);
+        for (int i = 0; i < 250; i++) {
+            service.onDelete(DiarySource.FILE, OPENID, "d" + i);
+        }
+        // 序号1是初始reset记录，d{i}的序号是i+2
+        assertThat(diaryIds(service.getChanges(DiarySource.FILE, OPENID, 201, 3)))
+                .containsExactly("d200", "d201", "d202");
+        assertThat(diaryIds(create(300).getChanges(DiarySource.FILE, OPENID, 129, 2)))
+                .containsExactly("d128", "d129");
+
+        // 超过上限后只保留较新的一半
+        for (int i = 250; i < 301; i++) {
+            service.onDelete(DiarySource.FILE, OPENID, "d" + i);
+        }
+        assertThat(service.getChanges(DiarySource.FILE, OPENID, 100, 10).get("resync")).isEqualTo(true);
+        assertThat(diaryIds(service.getChanges(DiarySource.FILE, OPENID, 280, 3)))
+                .containsExactly("d279", "d280", "d281");
+        assertThat(diaryIds(service.getChanges(DiarySource.FILE, OPENID, 300, 10)))
+                .containsExactly("d299", "d300");
+    }
+
+    private DiaryChangeService create(int maxEntries) {
+        DiaryChangeService service = new DiaryChangeService();
+        ReflectionTestUtils.setField(service, "storagePath", dir.toString());
+        ReflectionTestUtils.setField(service, "maxEntries", maxEntries);
+        return service;
+    }
+
+    private static long latestSeq(Map<String, Object> changes) {
+        return ((Number) changes.get("latestSeq")).longValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> changeList(Map<String, Object> changes) {
+        return (List<Map<String, Object>>) changes.get("changes");
+    }
+
+    private static List<String> diaryIds(Map<String, Object> changes) {
+        return changeList(changes).stream().map(change -> (String) change.get("diaryId")).collect(Collectors.toList());
+    }
+
+    private static List<Long> seqs(Map<String, Object> changes) {
+        return changeList(changes).stream().map(change -> ((Number) change.get("seq")).longValue())
+                .collect(Collectors.toList());
+    }
+}
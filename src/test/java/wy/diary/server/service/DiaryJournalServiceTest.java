@@ -0,0 +1,156 @@
+package wy.diary.server.service;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 日志的崩溃恢复与检查点
+ */
+class DiaryJournalServiceTest {
+
+    private static final String OPENID = "user1";
+    private static final String YEAR = "2025";
+
+    @TempDir
+    Path dir;
+
+    private DiaryJournalService service;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (service != null) {
+            service.destroy();
+        }
+    }
+
+    @Test
+    void appendedDiariesSurviveRestart() throws Exception {
+        service = start();
+        String first = service.appendPut(OPENID, YEAR, "2025-05-09", diary("第一篇"));
+        String second = service.appendPut(OPENID, YEAR, "2025-05-09", diary("第二篇"));
+        service.appendDelete(OPENID, YEAR, first);
+        service.destroy();
+
+        service = start();
+        JSONObject view = service.readYear(OPENID, YEAR);
+        assertThat(first).isEqualTo("2025-05-0901");
+        assertThat(second).isEqualTo("2025-05-0902");
+        assertThat(view.keySet()).containsExactly(second);
+        assertThat(view.getJSONObject(second).getString("editorContent")).isEqualTo("第二篇");
+    }
+
+    @Test
+    void onlyOneConcurrentDeleteOfTheSameDiarySucceeds() throws Exception {
+        service = start();
+        String key = service.appendPut(OPENID, YEAR, "2025-05-09", diary("内容"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> service.appendDelete(OPENID, YEAR, key)));
+            }
+            int deleted = 0;
+            for (Future<Boolean> result : results) {
+                deleted += result.get() ? 1 : 0;
+            }
+            assertThat(deleted).isEqualTo(1);
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(service.appendDelete(OPENID, YEAR, key)).isFalse();
+        assertThat(service.readYear(OPENID, YEAR).isEmpty()).isTrue();
+    }
+
+    @Test
+    void checkpointMergesLogIntoYearFileAndReleasesLogState() throws Exception {
+        service = start();
+        String key = service.appendPut(OPENID, YEAR, "2025-05-09", diary("内容"));
+        service.checkpointAll();
+        awaitEmptyLog();
+
+        JSONObject yearFile = new JSONObject(Files.readString(dir.resolve(OPENID + "-" + YEAR + ".json")));
+        assertThat(yearFile.has(key)).isTrue();
+        assertThat((Map<?, ?>) ReflectionTestUtils.getField(service, "openLogs")).isEmpty();
+        assertThat((Map<?, ?>) ReflectionTestUtils.getField(service, "yearKeys")).isEmpty();
+
+        // 检查点后重新加载key集合，序号不重复
+        assertThat(service.appendPut(OPENID, YEAR, "2025-05-09", diary("内容2"))).isEqualTo("2025-05-0902");
+    }
+
+    @Test
+    void recoveryDropsTornTailRecord() throws Exception {
+        Path journal = Files.createDirectories(dir.resolve("journal"));
+        String complete = record("2025-05-0901", "完整");
+        String torn = record("2025-05-0902", "写了一半");
+        Files.writeString(journal.resolve(OPENID + "-" + YEAR + ".log"),
+                complete + "\n" + torn.substring(0, torn.length() / 2));
+
+        service = start();
+        JSONObject view = service.readYear(OPENID, YEAR);
+        assertThat(view.keySet()).containsExactly("2025-05-0901");
+    }
+
+    @Test
+    void appendAfterTornTailDoesNotLoseAcknowledgedRecord() throws Exception {
+        service = start();
+        // 服务运行期间出现半条记录（例如上次写入失败），下一条记录不能与它拼成一行
+        Path log = dir.resolve("journal").resolve(OPENID + "-" + YEAR + ".log");
+        String torn = record("2025-05-0901", "写了一半");
+        Files.write(log, torn.substring(0, torn.length() / 2).getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        String key = service.appendPut(OPENID, YEAR, "2025-05-10", diary("确认过的"));
+        List<String> lines = Files.readAllLines(log);
+        assertThat(lines).hasSize(2);
+        assertThat(service.readDiary(OPENID, YEAR, key).getString("editorContent")).isEqualTo("确认过的");
+    }
+
+    private DiaryJournalService start() throws Exception {
+        DiaryJournalService journal = new DiaryJournalService();
+        ReflectionTestUtils.setField(journal, "storagePath", dir.toString());
+        ReflectionTestUtils.setField(journal, "checkpointBytes", 1024L * 1024);
+        ReflectionTestUtils.setField(journal, "groupCommitSize", 16);
+        journal.afterPropertiesSet();
+        return journal;
+    }
+
+    private void awaitEmptyLog() throws Exception {
+        Path log = dir.resolve("journal").resolve(OPENID + "-" + YEAR + ".log");
+        for (int i = 0; i < 100 && Files.size(log) > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(Files.size(log)).isZero();
+    }
+
+    private static JSONObject diary(String content) {
+        JSONObject diary = new JSONObject();
+        diary.put("editorContent", content);
+        diary.put("logTime", "2025-05-09");
+        return diary;
+    }
+
+    private static String record(String key, String content) {
+        JSONObject record = new JSONObject();
+        record.put("op", "put");
+        record.put("key", key);
+        record.put("diary", diary(content));
+        return record.toString();
+    }
+}
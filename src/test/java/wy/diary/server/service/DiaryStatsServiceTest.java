@@ -0,0 +1,106 @@
+package wy.diary.server.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import wy.diary.server.model.DiaryIndexEntry;
+import wy.diary.server.model.DiarySource;
+import wy.diary.server.store.DiaryStore;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 写作统计的首次重建与并发保存交错时，保存既不丢失也不重复计入
+ */
+class DiaryStatsServiceTest {
+
+    private static final String OPENID = "user1";
+
+    @TempDir
+    Path dir;
+
+    private final List<DiaryIndexEntry> diaries = new ArrayList<>();
+    private final CountDownLatch rebuildStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseRebuild = new CountDownLatch(1);
+
+    @Test
+    void saveDuringFirstRebuildIsCountedOnce() throws Exception {
+        diaries.add(diary("1", "2025-05-08"));
+        DiaryStatsService service = create();
+
+        CompletableFuture<Map<String, Object>> first = CompletableFuture.supplyAsync(() -> stats(service));
+        assertThat(rebuildStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // 保存写入存储后重建才读取，重建结果已包含这篇日记，之后的增量更新不能再加一次
+        try (DiaryStatsService.PendingWrite ignored = service.beginWrite(DiarySource.FILE, OPENID)) {
+            synchronized (diaries) {
+                diaries.add(diary("2", "2025-05-09"));
+            }
+            releaseRebuild.countDown();
+            first.get(5, TimeUnit.SECONDS);
+            service.onSave(DiarySource.FILE, OPENID, "2025-05-09", "2025", 0);
+        }
+
+        assertThat(stats(service).get("totalCount")).isEqualTo(2);
+        // 重启后读取统计文件
+        assertThat(stats(create()).get("totalCount")).isEqualTo(2);
+    }
+
+    @Test
+    void saveAfterRebuildIsApplied() throws Exception {
+        diaries.add(diary("1", "2025-05-08"));
+        releaseRebuild.countDown();
+        DiaryStatsService service = create();
+        assertThat(stats(service).get("totalCount")).isEqualTo(1);
+
+        try (DiaryStatsService.PendingWrite ignored = service.beginWrite(DiarySource.FILE, OPENID)) {
+            synchronized (diaries) {
+                diaries.add(diary("2", "2025-05-09"));
+            }
+            service.onSave(DiarySource.FILE, OPENID, "2025-05-09", "2025", 0);
+        }
+
+        assertThat(stats(service).get("totalCount")).isEqualTo(2);
+        assertThat(stats(create()).get("totalCount")).isEqualTo(2);
+    }
+
+    private DiaryStatsService create() {
+        DiaryStore store = (DiaryStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{DiaryStore.class}, (proxy, method, args) -> {
+                    if (!method.getName().equals("metadata")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    rebuildStarted.countDown();
+                    releaseRebuild.await(5, TimeUnit.SECONDS);
+                    synchronized (diaries) {
+                        return new ArrayList<>(diaries);
+                    }
+                });
+        DiaryStatsService service = new DiaryStatsService();
+        ReflectionTestUtils.setField(service, "diaryStore", store);
+        ReflectionTestUtils.setField(service, "storagePath", dir.toString());
+        return service;
+    }
+
+    private static Map<String, Object> stats(DiaryStatsService service) {
+        try {
+            return service.getStats(DiarySource.FILE, OPENID);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static DiaryIndexEntry diary(String diaryId, String logTime) {
+        return DiaryIndexEntry.of("2025", logTime.substring(5).replace("-", "") + "-1", diaryId, "", null,
+                logTime, logTime, "", "", "", List.of());
+    }
+}
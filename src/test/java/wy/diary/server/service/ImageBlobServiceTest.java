@@ -0,0 +1,84 @@
+package wy.diary.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 图片内容去重的引用计数：最后一个引用删除时才删除内容文件
+ */
+class ImageBlobServiceTest {
+
+    private static final byte[] CONTENT = "same image content".getBytes();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void blobIsDeletedWithLastReference() throws Exception {
+        ImageBlobService service = create();
+        Path first = dir.resolve("user1").resolve("2025").resolve("a.jpg");
+        Path second = dir.resolve("user2").resolve("2025").resolve("b.jpg");
+        Files.createDirectories(first.getParent());
+        Files.createDirectories(second.getParent());
+
+        assertThat(service.store(new ByteArrayInputStream(CONTENT), first)).isFalse();
+        assertThat(service.store(new ByteArrayInputStream(CONTENT), second)).isTrue();
+        assertThat(blobs(service)).hasSize(1);
+        assertThat(Files.isSameFile(first, second)).isTrue();
+
+        assertThat(service.release(first)).isTrue();
+        assertThat(Files.readAllBytes(second)).isEqualTo(CONTENT);
+        assertThat(blobs(service)).hasSize(1);
+
+        assertThat(service.release(second)).isTrue();
+        assertThat(blobs(service)).isEmpty();
+        assertThat(service.release(second)).isFalse();
+    }
+
+    @Test
+    void existingReferenceLeavesNoOrphanBlob() throws Exception {
+        ImageBlobService service = create();
+        Path reference = dir.resolve("user1").resolve("a.jpg");
+        Files.createDirectories(reference.getParent());
+        Files.write(reference, "other".getBytes());
+
+        assertThatThrownBy(() -> service.store(new ByteArrayInputStream(CONTENT), reference))
+                .isInstanceOf(FileAlreadyExistsException.class);
+        assertThat(blobs(service)).isEmpty();
+        assertThat(Files.readAllBytes(reference)).isEqualTo("other".getBytes());
+    }
+
+    private ImageBlobService create() throws Exception {
+        ImageBlobService service = new ImageBlobService();
+        ReflectionTestUtils.setField(service, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(service, "storagePath", dir.toString());
+        ReflectionTestUtils.setField(service, "enabled", true);
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    /**
+     * .blobs 下的内容文件，不含上传临时文件
+     */
+    private static List<Path> blobs(ImageBlobService service) throws Exception {
+        Path tempDir = service.blobRoot().resolve("tmp");
+        try (Stream<Path> files = Files.walk(service.blobRoot())) {
+            return files.filter(Files::isRegularFile)
+                    .filter(file -> !file.startsWith(tempDir))
+                    .collect(Collectors.toList());
+        }
+    }
+}
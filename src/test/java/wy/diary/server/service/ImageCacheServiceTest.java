@@ -0,0 +1,101 @@
+package wy.diary.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import wy.diary.server.model.CachedImage;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 热点图片缓存的TinyLFU准入：只看一次的图片不挤掉热点图片，访问频率更高的图片替换LRU末尾的图片
+ */
+class ImageCacheServiceTest {
+
+    private static final int IMAGE_SIZE = 1000;
+
+    @TempDir
+    Path dir;
+
+    private SimpleMeterRegistry registry;
+    private ImageCacheService service;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+        service = new ImageCacheService();
+        ReflectionTestUtils.setField(service, "meterRegistry", registry);
+        ReflectionTestUtils.setField(service, "enabled", true);
+        // 容量恰好放下3张图片
+        ReflectionTestUtils.setField(service, "maxBytes", 3L * IMAGE_SIZE);
+        ReflectionTestUtils.setField(service, "maxEntryBytes", (long) IMAGE_SIZE);
+        service.afterPropertiesSet();
+    }
+
+    @Test
+    void oneHitImagesDoNotEvictHotImages() throws Exception {
+        Path[] hot = {image("a.jpg"), image("b.jpg"), image("c.jpg")};
+        CachedImage[] cached = new CachedImage[hot.length];
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < hot.length; i++) {
+                cached[i] = service.get(hot[i]);
+            }
+        }
+
+        // 扫过一批只看一次的图片，未准入的由调用方从文件发送
+        for (int i = 0; i < 20; i++) {
+            assertThat(service.get(image("once" + i + ".jpg"))).isNull();
+        }
+        assertThat(registry.get("diary.images.cache.rejected").counter().count()).isEqualTo(20);
+        for (int i = 0; i < hot.length; i++) {
+            assertThat(service.get(hot[i])).isSameAs(cached[i]);
+        }
+        assertThat(registry.get("diary.images.cache.evictions").counter().count()).isZero();
+    }
+
+    @Test
+    void frequentImageReplacesLeastRecentlyUsed() throws Exception {
+        Path a = image("a.jpg");
+        Path b = image("b.jpg");
+        Path c = image("c.jpg");
+        service.get(a);
+        CachedImage cachedB = service.get(b);
+        CachedImage cachedC = service.get(c);
+
+        // 新图片的访问频率超过LRU末尾的a后被准入，a被淘汰
+        Path d = image("d.jpg");
+        assertThat(service.get(d)).isNull();
+        CachedImage cachedD = service.get(d);
+        assertThat(cachedD).isNotNull();
+        assertThat(registry.get("diary.images.cache.evictions").counter().count()).isEqualTo(1);
+        assertThat(service.get(b)).isSameAs(cachedB);
+        assertThat(service.get(c)).isSameAs(cachedC);
+        assertThat(service.get(d)).isSameAs(cachedD);
+    }
+
+    @Test
+    void invalidatedImageIsReadAgain() throws Exception {
+        Path a = image("a.jpg");
+        CachedImage cached = service.get(a);
+        assertThat(service.get(a)).isSameAs(cached);
+
+        service.invalidate(a);
+        assertThat(service.get(a)).isNotSameAs(cached);
+        assertThat(registry.get("diary.images.cache.bytes").gauge().value()).isEqualTo(IMAGE_SIZE);
+    }
+
+    private Path image(String name) throws Exception {
+        Path file = dir.resolve(name);
+        if (!Files.exists(file)) {
+            byte[] content = new byte[IMAGE_SIZE];
+            content[0] = (byte) name.hashCode();
+            Files.write(file, content);
+        }
+        return file;
+    }
+}
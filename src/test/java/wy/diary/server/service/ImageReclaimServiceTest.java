@@ -0,0 +1,118 @@
+package wy.diary.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import wy.diary.server.util.TornChannel;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 图片回收日志的追加失败和损坏记录：写了一半的记录不吞掉之后的登记
+ */
+class ImageReclaimServiceTest {
+
+    private static final String OPENID = "user1";
+
+    @TempDir
+    Path dir;
+
+    private ImageReclaimService service;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (service != null) {
+            service.destroy();
+        }
+    }
+
+    @Test
+    void failedAppendIsTruncated() throws Exception {
+        Path first = image("a.jpg");
+        Path second = image("b.jpg");
+        service = create();
+        Path log = dir.resolve("reclaim").resolve("queue.log");
+        FileChannel channel = (FileChannel) ReflectionTestUtils.getField(service, "logChannel");
+        ReflectionTestUtils.setField(service, "logChannel", new TornChannel(channel, false));
+
+        assertThatThrownBy(() -> service.enqueue(OPENID, List.of(first.toString()))).isInstanceOf(IOException.class);
+        assertThat(Files.size(log)).isZero();
+
+        service.enqueue(OPENID, List.of(second.toString()));
+        awaitDeleted(second);
+        assertThat(Files.exists(first)).isTrue();
+    }
+
+    @Test
+    void recoverySkipsTornRecord() throws Exception {
+        Path first = image("a.jpg");
+        Path second = image("b.jpg");
+        String torn = record(image("c.jpg"));
+        Path log = dir.resolve("reclaim").resolve("queue.log");
+        Files.createDirectories(log.getParent());
+        Files.writeString(log, record(first) + "\n" + torn.substring(0, torn.length() / 2) + "\n" + record(second) + "\n",
+                StandardCharsets.UTF_8);
+
+        service = create();
+        awaitDeleted(first);
+        awaitDeleted(second);
+        assertThat(Files.exists(dir.resolve("c.jpg"))).isTrue();
+    }
+
+    private ImageReclaimService create() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ImageCacheService imageCacheService = new ImageCacheService();
+        ReflectionTestUtils.setField(imageCacheService, "meterRegistry", registry);
+        ImageVariantService imageVariantService = new ImageVariantService();
+        ReflectionTestUtils.setField(imageVariantService, "imageCacheService", imageCacheService);
+        ReflectionTestUtils.setField(imageVariantService, "storagePath", dir.toString());
+        ReflectionTestUtils.setField(imageVariantService, "variantPath", dir.resolve("variants").toString());
+        ReflectionTestUtils.setField(imageVariantService, "widths", new int[]{160});
+        ImageBlobService imageBlobService = new ImageBlobService();
+        ReflectionTestUtils.setField(imageBlobService, "meterRegistry", registry);
+        ReflectionTestUtils.setField(imageBlobService, "storagePath", dir.toString());
+        imageBlobService.afterPropertiesSet();
+
+        ImageReclaimService reclaimService = new ImageReclaimService();
+        ReflectionTestUtils.setField(reclaimService, "meterRegistry", registry);
+        ReflectionTestUtils.setField(reclaimService, "imageVariantService", imageVariantService);
+        ReflectionTestUtils.setField(reclaimService, "imageBlobService", imageBlobService);
+        ReflectionTestUtils.setField(reclaimService, "imageCacheService", imageCacheService);
+        ReflectionTestUtils.setField(reclaimService, "storagePath", dir.toString());
+        ReflectionTestUtils.setField(reclaimService, "batchSize", 64);
+        reclaimService.afterPropertiesSet();
+        return reclaimService;
+    }
+
+    private Path image(String name) throws IOException {
+        Path file = dir.resolve(name);
+        Files.write(file, name.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String record(Path image) {
+        JSONObject record = new JSONObject();
+        record.put("openid", OPENID);
+        record.put("paths", new JSONArray(List.of(image.toString())));
+        return record.toString();
+    }
+
+    private static void awaitDeleted(Path file) throws InterruptedException {
+        for (int i = 0; i < 100 && Files.exists(file); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(Files.exists(file)).as("%s 未被回收", file).isFalse();
+    }
+}
@@ -0,0 +1,193 @@
+package wy.diary.server.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 分片上传的断点续传、重传中断、提交与分片写入的互斥和每用户上传数限制
+ */
+class ImageUploadServiceTest {
+
+    private static final String OPENID = "user1";
+    private static final int CHUNK_SIZE = 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void resumesMissingChunksAfterRestart() throws Exception {
+        byte[] file = content(3 * CHUNK_SIZE + 100);
+        String sha256 = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(file));
+        ImageUploadService service = create();
+        String uploadId = (String) service.init(OPENID, "d1", "a.jpg", file.length, sha256).get("uploadId");
+        service.writeChunk(OPENID, uploadId, 0, chunk(file, 0));
+        service.writeChunk(OPENID, uploadId, 2 * CHUNK_SIZE, chunk(file, 2));
+
+        // 重启后按已收到的分片补传其余分片
+        ImageUploadService restarted = create();
+        Map<String, Object> status = restarted.getStatus(OPENID, uploadId);
+        assertThat(status.get("receivedChunks")).isEqualTo(List.of(0, 2));
+        assertThat(status.get("complete")).isEqualTo(false);
+        assertThatThrownBy(() -> restarted.complete(OPENID, uploadId)).isInstanceOf(IllegalArgumentException.class);
+
+        restarted.writeChunk(OPENID, uploadId, 3 * CHUNK_SIZE, chunk(file, 3));
+        // 重传已收到的分片时覆盖
+        restarted.writeChunk(OPENID, uploadId, 0, chunk(file, 0));
+        assertThat(restarted.writeChunk(OPENID, uploadId, CHUNK_SIZE, chunk(file, 1)).get("complete")).isEqualTo(true);
+
+        ImageUploadService.CompletedUpload upload = restarted.complete(OPENID, uploadId);
+        assertThat(upload.sha256()).isEqualTo(sha256);
+        assertThat(Files.readAllBytes(upload.file())).isEqualTo(file);
+        restarted.finish(OPENID, uploadId);
+        assertThatThrownBy(() -> restarted.getStatus(OPENID, uploadId)).isInstanceOf(IllegalArgumentException.class);
+        assertThat(Files.exists(upload.file())).isFalse();
+    }
+
+    @Test
+    void failedSaveKeepsUploadForRetry() throws Exception {
+        byte[] file = content(CHUNK_SIZE);
+        ImageUploadService service = create();
+        String uploadId = (String) service.init(OPENID, "d1", "a.jpg", file.length, null).get("uploadId");
+        service.writeChunk(OPENID, uploadId, 0, chunk(file, 0));
+
+        service.complete(OPENID, uploadId);
+        assertThatThrownBy(() -> service.complete(OPENID, uploadId)).isInstanceOf(IllegalArgumentException.class);
+        service.release(OPENID, uploadId);
+
+        assertThat(create().getStatus(OPENID, uploadId).get("complete")).isEqualTo(true);
+        assertThat(Files.readAllBytes(service.complete(OPENID, uploadId).file())).isEqualTo(file);
+    }
+
+    @Test
+    void unfinishedUploadsArePerUserCapped() throws Exception {
+        ImageUploadService service = create();
+        ReflectionTestUtils.setField(service, "maxSessionsPerUser", 2);
+        String first = (String) service.init(OPENID, "d1", "a.jpg", 10, null).get("uploadId");
+        service.init(OPENID, "d1", "b.jpg", 10, null);
+        assertThatThrownBy(() -> service.init(OPENID, "d1", "c.jpg", 10, null))
+                .isInstanceOf(IllegalArgumentException.class);
+        service.init("user2", "d2", "a.jpg", 10, null);
+
+        service.abort(OPENID, first);
+        service.init(OPENID, "d1", "c.jpg", 10, null);
+    }
+
+    @Test
+    void interruptedResendMarksChunkMissing() throws Exception {
+        byte[] file = content(2 * CHUNK_SIZE);
+        ImageUploadService service = create();
+        String uploadId = (String) service.init(OPENID, "d1", "a.jpg", file.length, null).get("uploadId");
+        service.writeChunk(OPENID, uploadId, 0, chunk(file, 0));
+        service.writeChunk(OPENID, uploadId, CHUNK_SIZE, chunk(file, 1));
+
+        // 重传分片0时连接中断，已写入一半的新内容覆盖了原来的分片
+        byte[] other = content(CHUNK_SIZE + 1);
+        InputStream broken = new SequenceInputStream(new ByteArrayInputStream(other, 1, CHUNK_SIZE / 2), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("连接已断开");
+            }
+        });
+        assertThatThrownBy(() -> service.writeChunk(OPENID, uploadId, 0, broken)).isInstanceOf(IOException.class);
+
+        assertThat(service.getStatus(OPENID, uploadId).get("receivedChunks")).isEqualTo(List.of(1));
+        assertThatThrownBy(() -> service.complete(OPENID, uploadId)).isInstanceOf(IllegalArgumentException.class);
+        ImageUploadService restarted = create();
+        assertThat(restarted.getStatus(OPENID, uploadId).get("receivedChunks")).isEqualTo(List.of(1));
+
+        restarted.writeChunk(OPENID, uploadId, 0, chunk(file, 0));
+        assertThat(Files.readAllBytes(restarted.complete(OPENID, uploadId).file())).isEqualTo(file);
+    }
+
+    @Test
+    void completeRejectsWhileChunkIsBeingWritten() throws Exception {
+        byte[] file = content(CHUNK_SIZE);
+        ImageUploadService service = create();
+        String uploadId = (String) service.init(OPENID, "d1", "a.jpg", file.length, null).get("uploadId");
+        service.writeChunk(OPENID, uploadId, 0, chunk(file, 0));
+
+        // 重传分片0，读到一半时阻塞
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        InputStream slow = new SequenceInputStream(new ByteArrayInputStream(file, 0, CHUNK_SIZE / 2), new InputStream() {
+            private final InputStream rest = new ByteArrayInputStream(file, CHUNK_SIZE / 2, CHUNK_SIZE / 2);
+
+            @Override
+            public int read() throws IOException {
+                started.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return rest.read();
+            }
+        });
+        CompletableFuture<Map<String, Object>> resend = CompletableFuture.supplyAsync(() -> {
+            try {
+                return service.writeChunk(OPENID, uploadId, 0, slow);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThatThrownBy(() -> service.complete(OPENID, uploadId)).isInstanceOf(IllegalArgumentException.class);
+
+        resume.countDown();
+        assertThat(resend.get(5, TimeUnit.SECONDS).get("complete")).isEqualTo(true);
+        ImageUploadService.CompletedUpload upload = service.complete(OPENID, uploadId);
+        assertThat(Files.readAllBytes(upload.file())).isEqualTo(file);
+
+        // 提交开始后不再接受分片，提交中的文件内容不会被改写
+        assertThatThrownBy(() -> service.writeChunk(OPENID, uploadId, 0, chunk(content(CHUNK_SIZE + 1), 0)))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(Files.readAllBytes(upload.file())).isEqualTo(file);
+    }
+
+    private ImageUploadService create() throws Exception {
+        ImageBlobService imageBlobService = new ImageBlobService();
+        ReflectionTestUtils.setField(imageBlobService, "storagePath", dir.toString());
+        ImageUploadService service = new ImageUploadService();
+        ReflectionTestUtils.setField(service, "imageBlobService", imageBlobService);
+        ReflectionTestUtils.setField(service, "chunkSize", DataSize.ofBytes(CHUNK_SIZE));
+        ReflectionTestUtils.setField(service, "maxFileSize", DataSize.ofMegabytes(50));
+        ReflectionTestUtils.setField(service, "expireHours", 24);
+        ReflectionTestUtils.setField(service, "maxSessionsPerUser", 8);
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    private static ByteArrayInputStream chunk(byte[] file, int index) {
+        int from = index * CHUNK_SIZE;
+        return new ByteArrayInputStream(Arrays.copyOfRange(file, from, Math.min(from + CHUNK_SIZE, file.length)));
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31 + 7);
+        }
+        return content;
+    }
+}
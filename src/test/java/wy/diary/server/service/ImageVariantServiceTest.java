@@ -0,0 +1,80 @@
+package wy.diary.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 缩略图生成：原图不比请求的宽度大时只解码一次，之后直接返回原图
+ */
+class ImageVariantServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private SimpleMeterRegistry registry;
+    private ImageVariantService service;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        service.destroy();
+    }
+
+    @Test
+    void smallOriginalIsDecodedOnce() throws Exception {
+        service = create();
+        Path original = image("small.png", 300);
+
+        assertThat(service.getVariant(original, 480)).isEqualTo(original);
+        // 比原图窄的宽度照常生成
+        Path variant = service.getVariant(original, 160);
+        assertThat(variant).isNotEqualTo(original);
+        assertThat(ImageIO.read(variant.toFile()).getWidth()).isEqualTo(160);
+
+        // 原图无法再解码，之后的查看只要再次解码就会计入失败
+        Files.write(original, new byte[]{1, 2, 3});
+        assertThat(service.getVariant(original, 480)).isEqualTo(original);
+        assertThat(service.getVariant(original, 1080)).isEqualTo(original);
+        assertThat(failed()).isZero();
+
+        service.deleteVariants(original);
+        assertThat(service.getVariant(original, 480)).isEqualTo(original);
+        assertThat(failed()).isEqualTo(1);
+    }
+
+    private ImageVariantService create() {
+        registry = new SimpleMeterRegistry();
+        ImageCacheService imageCacheService = new ImageCacheService();
+        ImageVariantService variantService = new ImageVariantService();
+        ReflectionTestUtils.setField(variantService, "meterRegistry", registry);
+        ReflectionTestUtils.setField(variantService, "imageCacheService", imageCacheService);
+        ReflectionTestUtils.setField(variantService, "storagePath", dir.resolve("images").toString());
+        ReflectionTestUtils.setField(variantService, "variantPath", dir.resolve("variants").toString());
+        ReflectionTestUtils.setField(variantService, "widths", new int[]{160, 480, 1080});
+        ReflectionTestUtils.setField(variantService, "threads", 1);
+        ReflectionTestUtils.setField(variantService, "queueSize", 16);
+        ReflectionTestUtils.setField(variantService, "waitMillis", 10000L);
+        variantService.afterPropertiesSet();
+        return variantService;
+    }
+
+    private double failed() {
+        return registry.get("diary.images.variants.failed").counter().count();
+    }
+
+    private Path image(String name, int width) throws Exception {
+        Path file = dir.resolve("images").resolve(name);
+        Files.createDirectories(file.getParent());
+        ImageIO.write(new BufferedImage(width, width / 2, BufferedImage.TYPE_INT_RGB), "png", file.toFile());
+        return file;
+    }
+}
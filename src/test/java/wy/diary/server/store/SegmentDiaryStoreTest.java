@@ -0,0 +1,246 @@
+package wy.diary.server.store;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import wy.diary.server.model.DiaryIndexEntry;
+import wy.diary.server.util.DiaryDateRange;
+import wy.diary.server.util.TornChannel;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 段文件存储的预写日志回放、刷盘、合并和MANIFEST恢复
+ */
+class SegmentDiaryStoreTest {
+
+    private static final String OPENID = "user1";
+    private static final String YEAR = "2025";
+
+    @TempDir
+    Path dir;
+
+    private SegmentDiaryStore store;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (store != null) {
+            store.destroy();
+        }
+    }
+
+    @Test
+    void walIsReplayedAfterCrash() throws Exception {
+        store = start(1024 * 1024);
+        store.save(OPENID, YEAR, diary("d1", "2025-05-09"));
+        store.save(OPENID, YEAR, diary("d2", "2025-05-10"));
+        store.delete(OPENID, "d1", null);
+        // 不调用destroy，模拟进程崩溃：memtable未刷盘，只有预写日志
+        store = start(1024 * 1024);
+
+        assertThat(store.get(OPENID, "d1")).isNull();
+        assertThat(store.get(OPENID, "d2").getLogTime()).isEqualTo("2025-05-10");
+        assertThat(store.page(OPENID, 1, 10).getTotalCount()).isEqualTo(1);
+    }
+
+    @Test
+    void flushedSegmentsSurviveRestartAndKeepNewestFirstOrder() throws Exception {
+        // memtable很小，每次写入都刷成段文件
+        store = start(1);
+        for (int day = 1; day <= 3; day++) {
+            store.save(OPENID, YEAR, diary("d" + day, "2025-05-0" + day));
+        }
+        store.destroy();
+        assertThat(Files.readAllLines(dir.resolve("MANIFEST"))).hasSize(3);
+        assertThat(Files.size(dir.resolve("wal.log"))).isZero();
+
+        store = start(1);
+        List<String> ids = store.page(OPENID, 1, 10).getRecords().stream()
+                .map(DiaryIndexEntry::getDiaryId).collect(Collectors.toList());
+        assertThat(ids).containsExactly("d3", "d2", "d1");
+    }
+
+    @Test
+    void compactionDropsDeletedDiariesAndOldSegments() throws Exception {
+        store = start(1);
+        for (int day = 1; day <= 4; day++) {
+            store.save(OPENID, YEAR, diary("d" + day, "2025-05-0" + day));
+        }
+        store.delete(OPENID, "d2", null);
+        store.compact();
+
+        assertThat(Files.readAllLines(dir.resolve("MANIFEST"))).hasSize(1);
+        assertThat(segmentFiles()).hasSize(1);
+        assertThat(store.get(OPENID, "d2")).isNull();
+        assertThat(store.range(OPENID, null)).extracting(DiaryIndexEntry::getDiaryId)
+                .containsExactly("d4", "d3", "d1");
+
+        store.destroy();
+        store = start(1);
+        assertThat(store.get(OPENID, "d2")).isNull();
+        assertThat(store.page(OPENID, 1, 10).getTotalCount()).isEqualTo(3);
+    }
+
+    @Test
+    void rangeIncludesTimestampedEndDayAndLegacyDays() throws Exception {
+        store = start(1024 * 1024);
+        store.save(OPENID, YEAR, diary("iso", "2025-05-08"));
+        store.save(OPENID, YEAR, diary("timed", "2025-05-09 23:30"));
+        store.save(OPENID, YEAR, diary("legacy", "5月9日"));
+        store.save(OPENID, YEAR, diary("legacyOct", "10月1日"));
+        store.save(OPENID, YEAR, diary("after", "2025-05-10"));
+
+        assertThat(store.range(OPENID, DiaryDateRange.of("2025-05-08", "2025-05-09")))
+                .extracting(DiaryIndexEntry::getDiaryId)
+                .containsExactlyInAnyOrder("iso", "timed", "legacy");
+        assertThat(store.range(OPENID, DiaryDateRange.ofMonth("2025-10")))
+                .extracting(DiaryIndexEntry::getDiaryId)
+                .containsExactly("legacyOct");
+        assertThat(store.range(OPENID, null)).extracting(DiaryIndexEntry::getDiaryId)
+                .containsExactly("legacyOct", "after", "legacy", "timed", "iso");
+    }
+
+    @Test
+    void unlistedSegmentIsKeptAsideNotDeleted() throws Exception {
+        store = start(1);
+        store.save(OPENID, YEAR, diary("d1", "2025-05-01"));
+        store.destroy();
+        store = null;
+        // 未完成的刷盘留下的段文件
+        Path listed = segmentFiles().get(0);
+        Path unlisted = dir.resolve("seg-00000099.sst");
+        Files.copy(listed, unlisted);
+
+        store = start(1);
+        assertThat(Files.exists(unlisted)).isFalse();
+        assertThat(Files.exists(dir.resolve("orphaned").resolve("seg-00000099.sst"))).isTrue();
+        assertThat(store.get(OPENID, "d1")).isNotNull();
+
+        // 新段不会复用保留文件的编号
+        store.save(OPENID, YEAR, diary("d2", "2025-05-02"));
+        assertThat(Files.readAllLines(dir.resolve("MANIFEST"))).noneMatch(name -> name.equals("seg-00000099.sst"));
+    }
+
+    @Test
+    void missingManifestWithSegmentsRefusesToStart() throws Exception {
+        store = start(1);
+        store.save(OPENID, YEAR, diary("d1", "2025-05-01"));
+        store.destroy();
+        store = null;
+        Files.delete(dir.resolve("MANIFEST"));
+
+        assertThatThrownBy(() -> start(1)).isInstanceOf(IllegalStateException.class);
+        assertThat(segmentFiles()).hasSize(1);
+    }
+
+    @Test
+    void failedWalAppendDoesNotSwallowLaterBatches() throws Exception {
+        for (boolean truncateFails : new boolean[]{false, true}) {
+            store = start(1024 * 1024);
+            store.save(OPENID, YEAR, diary("d1", "2025-05-09"));
+            // 下一次追加只写入一半就失败
+            FileChannel wal = (FileChannel) ReflectionTestUtils.getField(store, "walChannel");
+            ReflectionTestUtils.setField(store, "walChannel", new TornChannel(wal, truncateFails));
+            assertThatThrownBy(() -> store.save(OPENID, YEAR, diary("d2", "2025-05-10"))).isInstanceOf(IOException.class);
+            store.save(OPENID, YEAR, diary("d3", "2025-05-11"));
+
+            // 不调用destroy，模拟进程崩溃
+            store = start(1024 * 1024);
+            assertThat(store.get(OPENID, "d1")).isNotNull();
+            assertThat(store.get(OPENID, "d2")).isNull();
+            assertThat(store.get(OPENID, "d3")).as("truncateFails=%s", truncateFails).isNotNull();
+            store.destroy();
+            store = null;
+            for (Path path : segmentFiles()) {
+                Files.delete(path);
+            }
+            Files.delete(dir.resolve("MANIFEST"));
+        }
+    }
+
+    @Test
+    void tornWalTailIsSeparatedFromNextBatch() throws Exception {
+        store = start(1024 * 1024);
+        store.save(OPENID, YEAR, diary("d1", "2025-05-09"));
+        Files.write(dir.resolve("wal.log"), "[{\"k\":\"D".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        store = start(1024 * 1024);
+        store.save(OPENID, YEAR, diary("d2", "2025-05-10"));
+        store = start(1024 * 1024);
+        assertThat(store.get(OPENID, "d1")).isNotNull();
+        assertThat(store.get(OPENID, "d2")).isNotNull();
+    }
+
+    @Test
+    void importSkipsDiaryIdThatAlreadyHasAnotherRecord() throws Exception {
+        store = start(1024 * 1024);
+        JSONObject yearJson = new JSONObject();
+        yearJson.put("2025-05-0901", diary("d1", "2025-05-09"));
+        assertThat(store.importYear(OPENID, YEAR, yearJson)).isEqualTo(1);
+
+        // 迁移后修改过的日记换了key，旧内容再次导入时不能占用它的ID
+        store.delete(OPENID, "d1", null);
+        store.save(OPENID, YEAR, diary("d1", "2025-05-10"));
+        assertThat(store.importYear(OPENID, YEAR, yearJson)).isZero();
+        assertThat(store.get(OPENID, "d1").getLogTime()).isEqualTo("2025-05-10");
+        assertThat(store.page(OPENID, 1, 10).getTotalCount()).isEqualTo(1);
+    }
+
+    @Test
+    void exportsUsersAndYearsAcrossSegmentsAndMemtable() throws Exception {
+        store = start(1);
+        store.save("user1", "2024", diary("a1", "2024-12-31"));
+        store.save("user10", YEAR, diary("b1", "2025-01-01"));
+        store.save("user1", YEAR, diary("a2", "2025-05-09"));
+        ReflectionTestUtils.setField(store, "memtableMaxBytes", 1024 * 1024L);
+        store.save("user2", YEAR, diary("c1", "2025-05-10"));
+        store.delete("user2", "c1", null);
+        store.save("user3", YEAR, diary("d1", "2025-05-11"));
+
+        assertThat(store.listUsers()).containsExactly("user1", "user10", "user3");
+        Map<String, JSONObject> years = store.readYears("user1");
+        assertThat(years.keySet()).containsExactly("2024", YEAR);
+        assertThat(years.get("2024").getJSONObject("2024-12-3101").getString("diaryId")).isEqualTo("a1");
+        assertThat(years.get(YEAR).getJSONObject("2025-05-0901").getString("editorContent")).isEqualTo("内容a2");
+        assertThat(store.readYears("user2")).isEmpty();
+    }
+
+    private SegmentDiaryStore start(long memtableBytes) throws Exception {
+        SegmentDiaryStore segmentStore = new SegmentDiaryStore();
+        ReflectionTestUtils.setField(segmentStore, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(segmentStore, "segmentPath", dir.toString());
+        ReflectionTestUtils.setField(segmentStore, "memtableMaxBytes", memtableBytes);
+        ReflectionTestUtils.setField(segmentStore, "compactionThreshold", 2);
+        segmentStore.afterPropertiesSet();
+        return segmentStore;
+    }
+
+    private List<Path> segmentFiles() throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("seg-")).collect(Collectors.toList());
+        }
+    }
+
+    private static JSONObject diary(String diaryId, String logTime) {
+        JSONObject diary = new JSONObject();
+        diary.put("diaryId", diaryId);
+        diary.put("logTime", logTime);
+        diary.put("editorContent", "内容" + diaryId);
+        return diary;
+    }
+}
@@ -0,0 +1,80 @@
+package wy.diary.server.util;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 归档文件的写入、全量读取、按key读取和损坏检测
+ */
+class DiaryArchiveFileTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTripAcrossMultipleBlocks() throws Exception {
+        // 每篇约4KB，共约400KB，超过多个64KB数据块
+        JSONObject yearJson = new JSONObject();
+        for (int i = 0; i < 100; i++) {
+            yearJson.put(String.format("2025-05-%02d%02d", i % 28 + 1, i), diary(i));
+        }
+        Path path = dir.resolve("user1-2025.arc");
+        DiaryArchiveFile.write(path, yearJson);
+
+        assertThat(DiaryArchiveFile.readAll(path).similar(yearJson)).isTrue();
+        assertThat(DiaryArchiveFile.rawBytes(path)).isGreaterThan(3 * 64 * 1024L);
+        assertThat(Files.size(path)).isLessThan(DiaryArchiveFile.rawBytes(path));
+        for (String key : yearJson.keySet()) {
+            assertThat(DiaryArchiveFile.readEntry(path, key).similar(yearJson.getJSONObject(key))).isTrue();
+        }
+        assertThat(DiaryArchiveFile.readEntry(path, "missing")).isNull();
+        assertThat(Files.exists(path.resolveSibling("user1-2025.arc.tmp"))).isFalse();
+    }
+
+    @Test
+    void emptyYearRoundTrips() throws Exception {
+        Path path = dir.resolve("user1-2024.arc");
+        DiaryArchiveFile.write(path, new JSONObject());
+
+        assertThat(DiaryArchiveFile.readAll(path).isEmpty()).isTrue();
+        assertThat(DiaryArchiveFile.readEntry(path, "2024-01-0101")).isNull();
+    }
+
+    @Test
+    void truncatedArchiveIsRejected() throws Exception {
+        JSONObject yearJson = new JSONObject();
+        yearJson.put("2025-05-0901", diary(1));
+        Path path = dir.resolve("user1-2025.arc");
+        DiaryArchiveFile.write(path, yearJson);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        assertThatThrownBy(() -> DiaryArchiveFile.readAll(path)).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> DiaryArchiveFile.readEntry(path, "2025-05-0901")).isInstanceOf(IOException.class);
+    }
+
+    private static JSONObject diary(int i) {
+        StringBuilder content = new StringBuilder();
+        for (int j = 0; j < 200; j++) {
+            content.append("<p>第").append(i).append("篇日记，第").append(j).append("行</p>");
+        }
+        JSONObject diary = new JSONObject();
+        diary.put("diaryId", "d" + i);
+        diary.put("logTime", "2025-05-09");
+        diary.put("editorContent", content.toString());
+        diary.put("imageUrls", new JSONArray().put("/images/" + i + ".jpg"));
+        return diary;
+    }
+}
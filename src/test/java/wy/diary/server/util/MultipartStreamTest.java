@@ -0,0 +1,115 @@
+package wy.diary.server.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * multipart请求体的流式解析，重点是分隔符跨越64KB缓冲区和单次读取边界的情况
+ */
+class MultipartStreamTest {
+
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Test
+    void delimiterSplitAcrossBufferRefill() throws Exception {
+        // 让文件结尾的分隔符落在第一个64KB缓冲区末尾前后的每个位置
+        for (int size = BUFFER_SIZE - 400; size <= BUFFER_SIZE + 100; size++) {
+            byte[] file = content(size);
+            byte[] body = body(file, "2025-05-09");
+            for (int chunk : new int[]{BUFFER_SIZE, 7919, 13}) {
+                if (chunk == 13 && size % 37 != 0) {
+                    continue;
+                }
+                MultipartStream stream = new MultipartStream(new ChunkedInputStream(body, chunk), BOUNDARY);
+
+                MultipartStream.Part filePart = stream.nextPart();
+                assertThat(filePart.isFile()).isTrue();
+                assertThat(filePart.name()).isEqualTo("file");
+                assertThat(filePart.fileName()).isEqualTo("日记.jpg");
+                assertThat(filePart.content().readAllBytes()).as("size=%d chunk=%d", size, chunk).isEqualTo(file);
+
+                MultipartStream.Part field = stream.nextPart();
+                assertThat(field.isFile()).isFalse();
+                assertThat(new String(field.content().readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("2025-05-09");
+                assertThat(stream.nextPart()).isNull();
+            }
+        }
+    }
+
+    @Test
+    void unreadPartIsSkipped() throws Exception {
+        byte[] body = body(content(3 * BUFFER_SIZE + 17), "2025-05-09");
+        MultipartStream stream = new MultipartStream(new ChunkedInputStream(body, 4096), BOUNDARY);
+
+        assertThat(stream.nextPart().isFile()).isTrue();
+        MultipartStream.Part field = stream.nextPart();
+        assertThat(field.name()).isEqualTo("logTime");
+        assertThat(new String(field.content().readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("2025-05-09");
+        assertThat(stream.nextPart()).isNull();
+    }
+
+    @Test
+    void truncatedBodyIsRejected() throws Exception {
+        byte[] body = body(content(BUFFER_SIZE), "2025-05-09");
+        byte[] truncated = Arrays.copyOf(body, BUFFER_SIZE / 2);
+        MultipartStream stream = new MultipartStream(new ByteArrayInputStream(truncated), BOUNDARY);
+
+        MultipartStream.Part filePart = stream.nextPart();
+        assertThatThrownBy(() -> filePart.content().readAllBytes()).isInstanceOf(IOException.class);
+    }
+
+    /**
+     * 内容中包含分隔符的前缀，确认只有完整分隔符才结束当前部分
+     */
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        byte[] partial = ("\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1)).getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31 + 7);
+        }
+        int at = size / 3;
+        if (at + partial.length <= size) {
+            System.arraycopy(partial, 0, content, at, partial.length);
+        }
+        return content;
+    }
+
+    private static byte[] body(byte[] file, String logTime) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"日记.jpg\"\r\n"
+                + "Content-Type: image/jpeg\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(file);
+        body.write(("\r\n--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"logTime\"\r\n\r\n"
+                + logTime
+                + "\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return body.toByteArray();
+    }
+
+    /**
+     * 每次最多返回 chunk 个字节，模拟网络分包
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int chunk;
+
+        ChunkedInputStream(byte[] bytes, int chunk) {
+            super(bytes);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] target, int offset, int length) {
+            return super.read(target, offset, Math.min(length, chunk));
+        }
+    }
+}